@@ -90,6 +90,7 @@ import projekt.substratum.common.commands.ElevatedCommands;
 import projekt.substratum.common.commands.FileOperations;
 import projekt.substratum.common.platform.ThemeManager;
 import projekt.substratum.databinding.InformationActivityBinding;
+import projekt.substratum.services.packages.PackageChangeMonitor;
 import projekt.substratum.tabs.BootAnimations;
 import projekt.substratum.tabs.Overlays;
 import projekt.substratum.tabs.Wallpapers;
@@ -880,12 +881,11 @@ public class InformationActivity extends AppCompatActivity {
                     Snackbar.LENGTH_SHORT);
             currentShownLunchBar.show();
         }
-        Thread currentThread = Substratum.currentThread;
-        if ((currentThread == null || !currentThread.isAlive()) &&
+        if (!PackageChangeMonitor.isRunning() &&
                 (Systems.isSamsung(context) ||
                         (Systems.IS_OREO &&
                                 Systems.isNewSamsungDevice()))) {
-            Substratum.startSamsungPackageMonitor(context);
+            PackageChangeMonitor.start(context);
         }
     }
 
@@ -1190,10 +1190,7 @@ public class InformationActivity extends AppCompatActivity {
         }
 
         // Close the active Samsung package monitor if applicable
-        Thread currentThread = Substratum.currentThread;
-        if (currentThread != null) {
-            Substratum.stopSamsungPackageMonitor();
-        }
+        PackageChangeMonitor.stop();
 
         // Close the active compiling notification if the app was closed from recents
         NotificationManager manager =
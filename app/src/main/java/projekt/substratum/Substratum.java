@@ -13,12 +13,9 @@ import android.app.Application;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.media.AudioAttributes;
 import android.os.Build;
@@ -29,20 +26,14 @@ import android.util.Log;
 
 import androidx.appcompat.app.AppCompatDelegate;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-
 import cat.ereza.customactivityoncrash.config.CaocConfig;
 import projekt.substratum.activities.crash.SubstratumCrash;
 import projekt.substratum.common.Broadcasts;
-import projekt.substratum.common.Packages;
 import projekt.substratum.common.References;
 import projekt.substratum.common.Systems;
-import projekt.substratum.common.platform.ThemeManager;
 import projekt.substratum.services.binder.AndromedaBinderService;
 import projekt.substratum.services.binder.InterfacerBinderService;
+import projekt.substratum.services.packages.CompileResumeService;
 
 import static androidx.appcompat.app.AppCompatDelegate.MODE_NIGHT_AUTO_BATTERY;
 import static androidx.appcompat.app.AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM;
@@ -61,13 +52,7 @@ import static projekt.substratum.common.Systems.checkThemeInterfacer;
 public class Substratum extends Application {
 
     private static final String BINDER_TAG = "BinderService";
-    private static final FinishReceiver finishReceiver = new FinishReceiver();
-    static Thread currentThread;
-    private static int initialPackageCount = 0;
-    private static int initialOverlayCount = 0;
     private static Substratum substratum;
-    private static boolean isWaiting;
-    private static boolean shouldStopThread = false;
     private static SharedPreferences preferences;
 
     /**
@@ -79,22 +64,6 @@ public class Substratum extends Application {
         return substratum;
     }
 
-    /**
-     * Alerts the application that we are waiting for overlays to be installed
-     */
-    public static void startWaitingInstall() {
-        isWaiting = true;
-    }
-
-    /**
-     * Asks the application whether we are waiting for overlays to be installed
-     *
-     * @return True, if the application is waiting
-     */
-    public static boolean isWaitingInstall() {
-        return isWaiting;
-    }
-
     /**
      * Asks whether the current system needs to wait for install
      *
@@ -108,60 +77,6 @@ public class Substratum extends Application {
                 (system == RUNTIME_RESOURCE_OVERLAY_N_ROOTED);
     }
 
-    /**
-     * Stop the ongoing package detection on Samsung
-     */
-    static void stopSamsungPackageMonitor() {
-        log("Substratum",
-                "The overlay package refresher for Samsung devices is now stopping!");
-        shouldStopThread = true;
-    }
-
-    /**
-     * Start the ongoing package detection on Samsung
-     *
-     * @param context Context!
-     */
-    static void startSamsungPackageMonitor(Context context) {
-        log("Substratum",
-                "The overlay package refresher for Samsung devices has been fully loaded.");
-        PackageManager pm = context.getPackageManager();
-        List<ApplicationInfo> currentApps =
-                pm.getInstalledApplications(PackageManager.GET_META_DATA);
-        initialPackageCount = currentApps.size();
-        if (Systems.IS_OREO) initialOverlayCount = ThemeManager.listAllOverlays(context).size();
-        Timer timer = new Timer();
-        TimerTask timerTask = new TimerTask() {
-            @Override
-            public void run() {
-                if (shouldStopThread || Substratum.getInstance() == null) {
-                    cancel();
-                    try {
-                        currentThread.interrupt();
-                    } catch (Exception ignored) {
-                    }
-                    currentThread = null;
-                }
-                List<ApplicationInfo> currentApps =
-                        pm.getInstalledApplications(PackageManager.GET_META_DATA);
-                List<String> listOfThemes = new ArrayList<>();
-                if (Systems.IS_OREO) listOfThemes = ThemeManager.listAllOverlays(context);
-                if (initialPackageCount != currentApps.size() ||
-                        (Systems.IS_OREO &&
-                                initialOverlayCount >= 1 &&
-                                initialOverlayCount != listOfThemes.size())) {
-                    if (Systems.IS_OREO)
-                        initialOverlayCount = ThemeManager.listAllOverlays(context).size();
-                    initialPackageCount = currentApps.size();
-                    Broadcasts.sendOverlayRefreshMessage(context);
-                }
-            }
-        };
-        timer.scheduleAtFixedRate(timerTask, 0, 1000);
-        currentThread = new Thread(timerTask);
-        currentThread.start();
-    }
-
     /**
      * Restart the application after a change that requires a full exit.
      *
@@ -248,6 +163,9 @@ public class Substratum extends Application {
         // Implicit broadcasts must be declared
         Broadcasts.registerBroadcastReceivers(this);
 
+        // Pick up the overlay batch that was running when the app was last killed
+        CompileResumeService.schedule(this);
+
         // If the device is Android Oreo, create a persistent notification
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
             this.createNotificationChannel();
@@ -354,42 +272,4 @@ public class Substratum extends Application {
         }
         return false;
     }
-
-    /**
-     * Registers the finish receiver for PACKAGE_ADDED
-     */
-    public void registerFinishReceiver() {
-        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
-        filter.addDataScheme("package");
-        this.registerReceiver(finishReceiver, filter);
-    }
-
-    /**
-     * Unregisters the finish receiver for PACKAGE_ADDED
-     */
-    public void unregisterFinishReceiver() {
-        try {
-            this.unregisterReceiver(finishReceiver);
-        } catch (IllegalArgumentException ignored) {
-            // Already unregistered
-        }
-    }
-
-    /**
-     * A persistent receiver that detects whether an application is installed by Substratum
-     */
-    private static class FinishReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getData() != null) {
-                String packageName = intent.getData().getEncodedSchemeSpecificPart();
-                // Check whether the installed package is made by substratum
-                String check = Packages.getOverlayParent(context, packageName);
-                if (check != null) {
-                    isWaiting = false;
-                    log("Substratum", "PACKAGE_ADDED: " + packageName);
-                }
-            }
-        }
-    }
 }
@@ -15,6 +15,7 @@ import java.io.Serializable;
 import projekt.substratum.BuildConfig;
 import projekt.substratum.MainActivity;
 import projekt.substratum.R;
+import projekt.substratum.common.OverlayMetadata;
 import projekt.substratum.common.Packages;
 import projekt.substratum.common.References;
 
@@ -52,14 +53,11 @@ public class ManagerItem implements Serializable {
         this.name = name;
         this.isSelected = false;
 
-        int version = Packages.getOverlaySubstratumVersion(
-                context,
-                this.name);
+        OverlayMetadata metadataRecord = OverlayMetadata.get(context, this.name);
+        int version = (metadataRecord != null) ?
+                metadataRecord.getInt(References.metadataThemeVersion) : 0;
         boolean newUpdate = (version != 0) && (version <= BuildConfig.VERSION_CODE);
-        String metadata = Packages.getOverlayMetadata(
-                context,
-                this.name,
-                References.metadataOverlayParent);
+        String metadata = (metadataRecord != null) ? metadataRecord.getParent() : null;
         if ((metadata != null) && !metadata.isEmpty() && newUpdate) {
             this.themeName = String.format("%s (%s)",
                     Packages.getPackageName(context, metadata),
@@ -70,11 +68,8 @@ public class ManagerItem implements Serializable {
         this.updateEnabledOverlays(isActivated);
         this.setLabelName(context);
 
-        for (int i = 0; i < metadataOverlayTypes.length; i++) {
-            String overlayMetadata = Packages.getOverlayMetadata(
-                    context,
-                    this.name,
-                    metadataOverlayTypes[i]);
+        for (int i = 0; (metadataRecord != null) && (i < metadataOverlayTypes.length); i++) {
+            String overlayMetadata = metadataRecord.getString(metadataOverlayTypes[i]);
 
             if ((overlayMetadata != null) && !overlayMetadata.isEmpty()) {
                 String typeEntry = overlayMetadata.replace("_", " ");
@@ -16,6 +16,7 @@ import android.util.Log;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import projekt.substratum.Substratum;
+import projekt.substratum.common.platform.OverlayStateRepository;
 import projekt.substratum.services.crash.AppCrashReceiver;
 import projekt.substratum.services.packages.OverlayFound;
 import projekt.substratum.services.packages.OverlayUpdater;
@@ -129,6 +130,9 @@ public class Broadcasts {
      */
     public static void registerBroadcastReceivers(Context context) {
         try {
+            OverlayMetadata.registerInvalidator(context);
+            OverlayStateRepository.registerInvalidator(context);
+
             IntentFilter intentPackageAdded = new IntentFilter(PACKAGE_ADDED);
             intentPackageAdded.addDataScheme("package");
             IntentFilter intentPackageFullyRemoved = new IntentFilter(PACKAGE_FULLY_REMOVED);
@@ -117,6 +117,8 @@ public class Internal {
     public static final String CURRENT_WALLPAPERS = "current_wallpapers.xml";
     public static final String OVERLAYS_DIR = "overlays";
     public static final String OVERLAY_DIR = "overlay";
+    public static final String PREBUILT_DIR = "/prebuilt/";
+    public static final String PREBUILT_INDEX = "index";
     public static final String OVERLAY_STATE_FILE = "overlays.xml";
     public static final String OVERLAY_PROFILE_STATE_FILE = "overlay_state.xml";
     public static final String SYSTEM_OVERLAY = "/system/overlay/";
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.common;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static projekt.substratum.common.References.PACKAGE_ADDED;
+import static projekt.substratum.common.References.PACKAGE_FULLY_REMOVED;
+import static projekt.substratum.common.References.metadataOverlayParent;
+import static projekt.substratum.common.References.metadataOverlayTarget;
+import static projekt.substratum.common.References.metadataOverlayType1a;
+import static projekt.substratum.common.References.metadataOverlayType1b;
+import static projekt.substratum.common.References.metadataOverlayType1c;
+import static projekt.substratum.common.References.metadataOverlayType2;
+import static projekt.substratum.common.References.metadataOverlayType3;
+import static projekt.substratum.common.References.metadataOverlayType4;
+import static projekt.substratum.common.References.metadataOverlayVersion;
+import static projekt.substratum.common.References.metadataSamsungSupport;
+
+/**
+ * Metadata of a package, as declared in its manifest.
+ * <p>
+ * Asking the package manager for a single metadata value means a binder call for the whole
+ * application info, so looking up the parent, target and variants of an overlay one at a time
+ * costs a call each. The metadata of a package is loaded with one call instead and kept in
+ * memory along with the time the package was last updated, until a package event tells that it
+ * has been updated or removed.
+ */
+public class OverlayMetadata {
+
+    private static final Map<String, OverlayMetadata> cache = new ConcurrentHashMap<>();
+    private static final Object lock = new Object();
+    private static long generation;
+    private final String packageName;
+    private final long lastUpdateTime;
+    private final Bundle metadata;
+    private final String parent;
+    private final String target;
+    private final String type1a;
+    private final String type1b;
+    private final String type1c;
+    private final String type2;
+    private final String type3;
+    private final String type4;
+    private final int version;
+    private final boolean samsungSupport;
+
+    private OverlayMetadata(String packageName, long lastUpdateTime, Bundle metadata) {
+        super();
+        this.packageName = packageName;
+        this.lastUpdateTime = lastUpdateTime;
+        this.metadata = metadata;
+        parent = metadata.getString(metadataOverlayParent);
+        target = metadata.getString(metadataOverlayTarget);
+        type1a = metadata.getString(metadataOverlayType1a);
+        type1b = metadata.getString(metadataOverlayType1b);
+        type1c = metadata.getString(metadataOverlayType1c);
+        type2 = metadata.getString(metadataOverlayType2);
+        type3 = metadata.getString(metadataOverlayType3);
+        type4 = metadata.getString(metadataOverlayType4);
+        version = metadata.getInt(metadataOverlayVersion);
+        samsungSupport = metadata.getBoolean(metadataSamsungSupport);
+    }
+
+    /**
+     * Get the metadata of a package
+     *
+     * @param context     Context
+     * @param packageName Package name of the desired app to be checked
+     * @return Metadata of the package, or null if it is not installed or declares no metadata
+     */
+    public static OverlayMetadata get(Context context, String packageName) {
+        if (packageName == null) return null;
+        OverlayMetadata cached = cache.get(packageName);
+        if (cached != null) return cached;
+        long readGeneration;
+        synchronized (lock) {
+            readGeneration = generation;
+        }
+        try {
+            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(
+                    packageName, PackageManager.GET_META_DATA);
+            return store(packageInfo, readGeneration);
+        } catch (PackageManager.NameNotFoundException ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Get the metadata of a package from a package info that has already been queried with
+     * {@link PackageManager#GET_META_DATA}, such as one of a bulk query of every package
+     *
+     * @param packageInfo Package info holding the metadata
+     * @return Metadata of the package, or null if it declares no metadata
+     */
+    public static OverlayMetadata get(PackageInfo packageInfo) {
+        OverlayMetadata cached = cache.get(packageInfo.packageName);
+        if ((cached != null) && (cached.lastUpdateTime == packageInfo.lastUpdateTime)) {
+            return cached;
+        }
+        long readGeneration;
+        synchronized (lock) {
+            readGeneration = generation;
+        }
+        return store(packageInfo, readGeneration);
+    }
+
+    private static OverlayMetadata store(PackageInfo packageInfo, long readGeneration) {
+        if ((packageInfo.applicationInfo == null) ||
+                (packageInfo.applicationInfo.metaData == null)) {
+            return null;
+        }
+        OverlayMetadata loaded = new OverlayMetadata(packageInfo.packageName,
+                packageInfo.lastUpdateTime, packageInfo.applicationInfo.metaData);
+        synchronized (lock) {
+            // Do not keep metadata that was read while the package was being changed
+            if (readGeneration == generation) cache.put(loaded.packageName, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Forget the metadata of a package, so that it is loaded again the next time it is needed
+     *
+     * @param packageName Package that has changed, or null to forget every package
+     */
+    public static void invalidate(String packageName) {
+        synchronized (lock) {
+            generation++;
+            if (packageName != null) {
+                cache.remove(packageName);
+            } else {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Register the receiver that forgets the metadata of packages as they change
+     *
+     * @param context Context
+     */
+    public static void registerInvalidator(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PACKAGE_ADDED);
+        filter.addAction(PACKAGE_FULLY_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        filter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY - 1);
+        context.getApplicationContext().registerReceiver(new Invalidator(), filter);
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    public String getParent() {
+        return parent;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getType1a() {
+        return type1a;
+    }
+
+    public String getType1b() {
+        return type1b;
+    }
+
+    public String getType1c() {
+        return type1c;
+    }
+
+    public String getType2() {
+        return type2;
+    }
+
+    public String getType3() {
+        return type3;
+    }
+
+    public String getType4() {
+        return type4;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isSamsungSupported() {
+        return samsungSupport;
+    }
+
+    /**
+     * Get any other metadata value of the package
+     *
+     * @param key Name of the metadata to be acquired
+     * @return Value of the metadata, or null if it is not a string
+     */
+    public String getString(String key) {
+        synchronized (metadata) {
+            return metadata.getString(key);
+        }
+    }
+
+    /**
+     * Get any other metadata value of the package
+     *
+     * @param key Name of the metadata to be acquired
+     * @return Value of the metadata, or 0 if it is not an integer
+     */
+    public int getInt(String key) {
+        synchronized (metadata) {
+            return metadata.getInt(key);
+        }
+    }
+
+    private static class Invalidator extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            invalidate((data != null) ? data.getSchemeSpecificPart() : null);
+        }
+    }
+}
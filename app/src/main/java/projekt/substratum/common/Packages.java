@@ -57,8 +57,6 @@ import static projekt.substratum.common.References.heroImageMainResourceName;
 import static projekt.substratum.common.References.heroImageResourceName;
 import static projekt.substratum.common.References.metadataAuthor;
 import static projekt.substratum.common.References.metadataName;
-import static projekt.substratum.common.References.metadataOverlayParent;
-import static projekt.substratum.common.References.metadataOverlayTarget;
 import static projekt.substratum.common.References.metadataSamsungSupport;
 import static projekt.substratum.common.References.metadataThemeVersion;
 import static projekt.substratum.common.References.metadataVersion;
@@ -280,15 +278,8 @@ public class Packages {
      */
     public static int getOverlaySubstratumVersion(Context context,
                                                   String packageName) {
-        try {
-            ApplicationInfo appInfo = context.getPackageManager().getApplicationInfo(
-                    packageName, PackageManager.GET_META_DATA);
-            if (appInfo.metaData != null) {
-                return appInfo.metaData.getInt(metadataThemeVersion);
-            }
-        } catch (Exception ignored) {
-        }
-        return 0;
+        OverlayMetadata overlayMetadata = OverlayMetadata.get(context, packageName);
+        return (overlayMetadata != null) ? overlayMetadata.getInt(metadataThemeVersion) : 0;
     }
 
     /**
@@ -300,16 +291,8 @@ public class Packages {
      */
     public static Drawable getOverlayParentIcon(Context context,
                                                 String packageName) {
-        try {
-            ApplicationInfo appInfo = context.getPackageManager().getApplicationInfo(
-                    packageName, PackageManager.GET_META_DATA);
-            if ((appInfo.metaData != null) &&
-                    (appInfo.metaData.getString(metadataOverlayParent) != null)) {
-                return getAppIcon(context, appInfo.metaData.getString(metadataOverlayParent));
-            }
-        } catch (Exception ignored) {
-        }
-        return getAppIcon(context, packageName);
+        String parent = getOverlayParent(context, packageName);
+        return getAppIcon(context, (parent != null) ? parent : packageName);
     }
 
     /**
@@ -386,29 +369,12 @@ public class Packages {
             Context context,
             String packageName,
             String metadata) {
-        try {
-            ApplicationInfo appInfo = context.getPackageManager().getApplicationInfo(
-                    packageName, PackageManager.GET_META_DATA);
-            if (appInfo.metaData != null) {
-                if (metadata.equals(metadataSamsungSupport)) {
-                    try {
-                        boolean samsungSupport = appInfo.metaData.getBoolean(metadata);
-                        return String.valueOf(samsungSupport);
-                    } catch (Exception e) {
-                        return String.valueOf(true);
-                    }
-                } else {
-                    String returnMetadata = appInfo.metaData.getString(metadata);
-                    if (returnMetadata != null) {
-                        return returnMetadata;
-                    } else {
-                        throw new Exception();
-                    }
-                }
-            }
-        } catch (Exception ignored) {
+        OverlayMetadata overlayMetadata = OverlayMetadata.get(context, packageName);
+        if (overlayMetadata == null) return null;
+        if (metadata.equals(metadataSamsungSupport)) {
+            return String.valueOf(overlayMetadata.isSamsungSupported());
         }
-        return null;
+        return overlayMetadata.getString(metadata);
     }
 
     /**
@@ -423,15 +389,8 @@ public class Packages {
             Context context,
             String packageName,
             String metadata) {
-        try {
-            ApplicationInfo appInfo = context.getPackageManager().getApplicationInfo(
-                    packageName, PackageManager.GET_META_DATA);
-            if (appInfo.metaData != null) {
-                return appInfo.metaData.getInt(metadata);
-            }
-        } catch (Exception ignored) {
-        }
-        return 0;
+        OverlayMetadata overlayMetadata = OverlayMetadata.get(context, packageName);
+        return (overlayMetadata != null) ? overlayMetadata.getInt(metadata) : 0;
     }
 
     /**
@@ -594,7 +553,8 @@ public class Packages {
      */
     public static String getOverlayParent(Context context,
                                           String packageName) {
-        return getOverlayMetadata(context, packageName, metadataOverlayParent);
+        OverlayMetadata overlayMetadata = OverlayMetadata.get(context, packageName);
+        return (overlayMetadata != null) ? overlayMetadata.getParent() : null;
     }
 
     /**
@@ -606,7 +566,8 @@ public class Packages {
      */
     public static String getOverlayTarget(Context context,
                                           String packageName) {
-        return getOverlayMetadata(context, packageName, metadataOverlayTarget);
+        OverlayMetadata overlayMetadata = OverlayMetadata.get(context, packageName);
+        return (overlayMetadata != null) ? overlayMetadata.getTarget() : null;
     }
 
     /**
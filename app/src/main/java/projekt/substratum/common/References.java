@@ -157,6 +157,8 @@ public class References {
             References.metadataOverlayType4
     };
     public static final String metadataOverlayVersion = "Substratum_OverlayVersion";
+    public static final String metadataOverlayDigest = "Substratum_Digest";
+    public static final String metadataOverlaySource = "Substratum_Source";
     public static final String metadataThemeVersion = "Substratum_Version";
     public static final String metadataSamsungSupport = "Substratum_Samsung";
     public static final String resourceChangelog = "ThemeChangelog";
@@ -180,9 +182,18 @@ public class References {
     public static final String EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE =
             Environment.getExternalStorageDirectory().getAbsolutePath() +
                     "/.samsung_overlays.xml";
+    public static final String EXTERNAL_STORAGE_SAMSUNG_OVERLAY_REGISTRY =
+            Environment.getExternalStorageDirectory().getAbsolutePath() +
+                    "/.samsung_overlays";
     public static final String LOGCHAR_DIR = Environment.getExternalStorageDirectory()
             .getAbsolutePath() + "/substratum" + File.separator + "LogCharReports";
     public static final String SUBSTRATUM_BUILDER_CACHE = "/SubstratumBuilder/";
+    public static final String SUBSTRATUM_BUILDER_JOB_CACHE = "/SubstratumBuilderJobs/";
+    public static final String OVERLAY_CACHE = "/OverlayCache/";
+    public static final String COMPILED_RESOURCE_CACHE = "/CompiledResources/";
+    public static final String DECRYPTED_ASSET_CACHE = "/DecryptedAssets/";
+    public static final String THEME_LAYER_CACHE = "/ThemeLayers/";
+    public static final String COMPILE_JOURNALS = "/compile_journals";
     // These strings control the legacy overlay location
     public static final String DATA_RESOURCE_DIR = "/data/resource-cache/";
     public static final String PIXEL_NEXUS_DIR = "/system/overlay/";
@@ -8,7 +8,6 @@
 package projekt.substratum.common.commands;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -28,9 +27,9 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import projekt.substratum.BuildConfig;
-import projekt.substratum.common.Packages;
 import projekt.substratum.common.References;
 import projekt.substratum.common.Systems;
+import projekt.substratum.util.compilers.CompileSession;
 
 import static projekt.substratum.common.References.COMMON_PACKAGE;
 import static projekt.substratum.common.References.ENABLE_AAPT_OUTPUT;
@@ -50,6 +49,8 @@ public class CompilerCommands {
      * @param variantName         Variant name
      * @param baseVariantName     Base variant name
      * @param versionName         Version
+     * @param overlayVersion      Overlay version shipped by the theme
+     * @param inputDigest         Digest of the overlay's folder in the theme, null if unknown
      * @param targetPackage       Target package
      * @param themeParent         Theme Parent
      * @param themeOms            OMS Support
@@ -62,15 +63,16 @@ public class CompilerCommands {
      * @param type3               Type 3
      * @param type4               Type 4
      * @param packageNameOverride Override package name
-     * @return Returns a string that contains the full manifest file
+     * @return Returns the full manifest document, or null if it could not be created
      */
-    public static String createOverlayManifest(Context context,
+    public static Document createOverlayManifest(Context context,
                                                String overlayPackage,
                                                String themeName,
                                                String variantName,
                                                String baseVariantName,
                                                String versionName,
                                                String overlayVersion,
+                                               String inputDigest,
                                                String targetPackage,
                                                String themeParent,
                                                boolean themeOms,
@@ -131,6 +133,11 @@ public class CompilerCommands {
             metadataNameToValueMap.put(References.metadataOverlayType4, type4);
             metadataNameToValueMap.put(References.metadataThemeVersion, String.valueOf(BuildConfig.VERSION_CODE));
             metadataNameToValueMap.put(References.metadataOverlayVersion, String.valueOf(overlayVersion));
+            if (inputDigest != null) {
+                // The digest only means something along with the theme folder it was taken of
+                metadataNameToValueMap.put(References.metadataOverlayDigest, inputDigest);
+                metadataNameToValueMap.put(References.metadataOverlaySource, overlayPackage);
+            }
 
             metadataNameToValueMap.forEach((key, value) -> {
                 Element element = document.createElement("meta-data");
@@ -141,7 +148,45 @@ public class CompilerCommands {
 
             rootElement.appendChild(applicationElement);
             document.appendChild(rootElement);
+            return document;
+        } catch (ParserConfigurationException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
+    /**
+     * Create the smallest manifest that aapt accepts, for when the real manifest is encoded by
+     * Substratum and replaced into the APK after aapt has run
+     *
+     * @param manifest Full manifest document
+     * @return Returns a string that contains the stub manifest file
+     */
+    public static String createStubManifest(Document manifest) {
+        try {
+            DocumentBuilder documentBuilder =
+                    DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            Document document = documentBuilder.newDocument();
+            Element rootElement = document.createElement("manifest");
+            rootElement.setAttribute("package",
+                    manifest.getDocumentElement().getAttribute("package"));
+            document.appendChild(rootElement);
+            return writeManifest(document);
+        } catch (ParserConfigurationException e) {
+            e.printStackTrace();
+        }
+        return "";
+    }
+
+    /**
+     * Write a manifest document out as text
+     *
+     * @param document Manifest document
+     * @return Returns a string that contains the full manifest file
+     */
+    public static String writeManifest(Document document) {
+        if (document == null) return "";
+        try {
             TransformerFactory transformerFactory = TransformerFactory.newInstance();
             Transformer transformer = transformerFactory.newTransformer();
             Source domSource = new DOMSource(document);
@@ -150,7 +195,7 @@ public class CompilerCommands {
             transformer.transform(domSource, streamResult);
 
             return outWriter.getBuffer().toString();
-        } catch (ParserConfigurationException | TransformerException e) {
+        } catch (TransformerException e) {
             e.printStackTrace();
         }
         return "";
@@ -177,6 +222,7 @@ public class CompilerCommands {
      * @param additionalVariant Additional variant (type2)
      * @param assetReplacement  Asset replacement (type4)
      * @param context           Context
+     * @param session           Snapshot of the installed packages
      * @param dir               Volatile directory to keep changes in
      * @return Returns a string to allow the app to execute
      */
@@ -191,6 +237,7 @@ public class CompilerCommands {
                                                  CharSequence additionalVariant,
                                                  CharSequence assetReplacement,
                                                  Context context,
+                                                 CompileSession session,
                                                  String dir) {
         StringBuilder sb = new StringBuilder();
         // Initialize the AAPT command
@@ -208,16 +255,16 @@ public class CompilerCommands {
         // Build upon the system's Android framework
         sb.append("-I ").append("/system/framework/framework-res.apk ");
         // Build upon the common Substratum framework
-        if (Packages.isPackageInstalled(context, COMMON_PACKAGE)) {
-            sb.append("-I " + Packages.getInstalledDirectory(context, COMMON_PACKAGE) + ' ');
+        if (session.isPackageInstalled(COMMON_PACKAGE)) {
+            sb.append("-I " + session.getPackage(COMMON_PACKAGE).getSourceDir() + ' ');
         }
-        String[] splitLocations = getSplitLocations(context, targetPackage);
-        if (splitLocations != null) {
-            for (String split : splitLocations) {
+        final CompileSession.PackageSnapshot target = session.getPackage(targetPackage);
+        if (target != null) {
+            for (String split : target.getSplitSourceDirs()) {
                 sb.append("-I ").append(split).append(" ");
             }
         }
-        final String packagePath = Packages.getInstalledDirectory(context, targetPackage);
+        final String packagePath = (target != null) ? target.getSourceDir() : null;
         // If running on the AppCompat commits (first run), it will build upon the app too
         if (packagePath != null && !packagePath.equals("null")) {
             if (!legacySwitch)
@@ -240,32 +287,94 @@ public class CompilerCommands {
         return sb.toString();
     }
 
-    private static String[] getSplitLocations(Context context, String packageName) {
-        try {
-            return context.getPackageManager().getApplicationInfo(packageName, 0).splitSourceDirs;
-        } catch (PackageManager.NameNotFoundException ignored) {
+    /**
+     * Create the AAPT2 shell commands that compile a resource directory into flat files
+     *
+     * @param context     Context
+     * @param resourceDir Resource directory to be compiled
+     * @param output      Archive the flat files should be written to
+     * @return Returns a string to allow the app to execute
+     */
+    public static String createAAPT2CompileCommands(Context context,
+                                                    String resourceDir,
+                                                    String output) {
+        StringBuilder sb = new StringBuilder();
+        // Initialize the AAPT2 command
+        sb.append(context.getFilesDir().getAbsolutePath()).append("/aapt2 compile ");
+        // Compile the whole directory into a single archive
+        sb.append("--dir ").append(resourceDir).append(" ");
+        sb.append("-o ").append(output).append(" ");
+        if (ENABLE_AAPT_OUTPUT) {
+            sb.append("-v ");
         }
-        return new String[0];
+        sb.append('\n');
+
+        return sb.toString();
     }
 
     /**
-     * Create the ZipAlign shell commands
+     * Create the AAPT2 shell commands that link compiled resources into an overlay
      *
-     * @param context     Context
-     * @param source      Source
-     * @param destination Destination
-     * @return Returns a string that is executable by the application
+     * @param workArea         Working area
+     * @param targetPackage    Target package to build against
+     * @param overlayPackage   Overlay package
+     * @param themeName        Theme name
+     * @param baseLayer        Compiled base resources
+     * @param overlayLayers    Compiled resources that override the base, lowest priority first
+     * @param assetReplacement Asset replacement (type4)
+     * @param context          Context
+     * @param session          Snapshot of the installed packages
+     * @return Returns a string to allow the app to execute
      */
-    public static String createZipAlignShellCommands(Context context,
-                                                     String source,
-                                                     String destination) {
-        // Initialize the ZipAlign command
-        String ret = context.getFilesDir().getAbsolutePath() + "/zipalign 4 ";
-        // Supply the source
-        ret += source + ' ';
-        // Supply the destination
-        ret += destination;
+    public static String createAAPT2LinkCommands(String workArea,
+                                                 String targetPackage,
+                                                 String overlayPackage,
+                                                 String themeName,
+                                                 String baseLayer,
+                                                 Iterable<String> overlayLayers,
+                                                 CharSequence assetReplacement,
+                                                 Context context,
+                                                 CompileSession session) {
+        StringBuilder sb = new StringBuilder();
+        // Initialize the AAPT2 command
+        sb.append(context.getFilesDir().getAbsolutePath()).append("/aapt2 link ");
+        // Link with specified manifest
+        sb.append("--manifest ").append(workArea).append("/AndroidManifest.xml ");
+        // If the user picked an asset variant (type4), add the assets
+        if (isNotNullOrEmpty(assetReplacement))
+            sb.append("-A ").append(workArea).append("/assets/ ");
+        // Build upon the system's Android framework
+        sb.append("-I ").append("/system/framework/framework-res.apk ");
+        // Build upon the common Substratum framework
+        if (session.isPackageInstalled(COMMON_PACKAGE)) {
+            sb.append("-I ").append(session.getPackage(COMMON_PACKAGE).getSourceDir())
+                    .append(' ');
+        }
+        final CompileSession.PackageSnapshot target = session.getPackage(targetPackage);
+        if (target != null) {
+            for (String split : target.getSplitSourceDirs()) {
+                sb.append("-I ").append(split).append(" ");
+            }
+        }
+        final String packagePath = (target != null) ? target.getSourceDir() : null;
+        if (packagePath != null && !packagePath.equals("null")) {
+            sb.append("-I ").append(packagePath).append(" ");
+        }
+        // Specify the file output
+        sb.append("-o ").append(workArea).append("/").append(overlayPackage)
+                .append(".").append(themeName).append("-unsigned.apk ");
+        if (ENABLE_AAPT_OUTPUT) {
+            sb.append("-v ");
+        }
+        // Allow themers to append new resources
+        sb.append("--auto-add-overlay ");
+        // The base resources, followed by every variant layered on top of them
+        sb.append(baseLayer).append(" ");
+        for (String layer : overlayLayers) {
+            sb.append("-R ").append(layer).append(" ");
+        }
+        sb.append('\n');
 
-        return ret;
+        return sb.toString();
     }
 }
\ No newline at end of file
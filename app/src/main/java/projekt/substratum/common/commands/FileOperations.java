@@ -27,12 +27,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 
 import projekt.substratum.Substratum;
 import projekt.substratum.common.References;
+import projekt.substratum.common.platform.OperationCompletion;
 import projekt.substratum.common.platform.SubstratumService;
 import projekt.substratum.common.platform.ThemeInterfacerService;
 import projekt.substratum.util.helpers.Root;
@@ -52,6 +54,7 @@ public class FileOperations {
     private static final String CREATE_LOG = "SubstratumCreate";
     private static final String DELETE_LOG = "SubstratumDelete";
     private static final String MOVE_LOG = "SubstratumMove";
+    private static final long OPERATION_TIMEOUT = 5000L;
 
     /**
      * Set SEContext for a folder
@@ -253,21 +256,11 @@ public class FileOperations {
         } else if (checkThemeInterfacer(context) && needRoot) {
             Substratum.log(COPY_LOG,
                     "Using theme interface operation to copy " + source + " to " + destination);
-            ThemeInterfacerService.copy(source, destination);
-
             // Wait until copy succeeds
-            try {
-                int retryCount = 0;
-                final File file = new File(destination);
-                while (!file.exists() && (retryCount < 5)) {
-                    Thread.sleep(1000L);
-                    retryCount++;
-                }
-                if (retryCount == 5) Substratum.log(COPY_LOG, "Operation timed out!");
-                Substratum.log(COPY_LOG, "Operation " + (file.exists() ? "succeeded" : "failed"));
-            } catch (final InterruptedException e) {
-                Thread.interrupted();
-            }
+            final Future<Boolean> copied = OperationCompletion.forFileWritten(destination);
+            ThemeInterfacerService.copy(source, destination);
+            final boolean succeeded = OperationCompletion.await(copied, OPERATION_TIMEOUT);
+            Substratum.log(COPY_LOG, "Operation " + (succeeded ? "succeeded" : "failed"));
         } else {
             copy(source, destination);
         }
@@ -390,22 +383,13 @@ public class FileOperations {
             SubstratumService.delete(directory, deleteParent);
         } else if (checkThemeInterfacer(context) && needRoot) {
             Substratum.log(DELETE_LOG, "Using theme interfacer operation to delete " + directory);
-            ThemeInterfacerService.delete(directory, deleteParent);
-
             // Wait until delete success
-            try {
-                int retryCount = 0;
-                final File file = new File(directory);
-                final boolean notDone = deleteParent ? file.exists() : file.list().length == 0;
-                while (notDone && (retryCount < 5)) {
-                    Thread.sleep(1000L);
-                    retryCount++;
-                }
-                if (retryCount == 5) Substratum.log(DELETE_LOG, "Operation timed out!");
-                Substratum.log(DELETE_LOG, "Operation " + (!file.exists() ? "succeeded" : "failed"));
-            } catch (final InterruptedException e) {
-                Thread.interrupted();
-            }
+            final Future<Boolean> deleted = deleteParent ?
+                    OperationCompletion.forFileRemoved(directory) :
+                    OperationCompletion.forDirectoryEmptied(directory);
+            ThemeInterfacerService.delete(directory, deleteParent);
+            final boolean succeeded = OperationCompletion.await(deleted, OPERATION_TIMEOUT);
+            Substratum.log(DELETE_LOG, "Operation " + (succeeded ? "succeeded" : "failed"));
         } else {
             delete(directory, deleteParent);
         }
@@ -472,21 +456,11 @@ public class FileOperations {
         } else if (checkThemeInterfacer(context) && needRoot) {
             Substratum.log(MOVE_LOG,
                     "Using theme interfacer operation to move " + source + " to " + destination);
-            ThemeInterfacerService.move(source, destination);
-
             // Wait until move success
-            try {
-                int retryCount = 0;
-                final File file = new File(destination);
-                while (!file.exists() && (retryCount < 5)) {
-                    Thread.sleep(1000L);
-                    retryCount++;
-                }
-                if (retryCount == 5) Substratum.log(MOVE_LOG, "Operation timed out");
-                Substratum.log(MOVE_LOG, "Operation " + (file.exists() ? "succeeded" : "failed"));
-            } catch (final InterruptedException e) {
-                Thread.interrupted();
-            }
+            final Future<Boolean> moved = OperationCompletion.forFileWritten(destination);
+            ThemeInterfacerService.move(source, destination);
+            final boolean succeeded = OperationCompletion.await(moved, OPERATION_TIMEOUT);
+            Substratum.log(MOVE_LOG, "Operation " + (succeeded ? "succeeded" : "failed"));
         } else {
             move(source, destination);
         }
@@ -8,132 +8,238 @@
 package projekt.substratum.common.commands;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
-import projekt.substratum.common.Packages;
+import projekt.substratum.Substratum;
 
 import static projekt.substratum.common.References.EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE;
-
+import static projekt.substratum.common.References.EXTERNAL_STORAGE_SAMSUNG_OVERLAY_REGISTRY;
+
+/**
+ * Registry of the overlays that have been installed on Samsung devices, where the overlay manager
+ * can not be asked for them.
+ * <p>
+ * The registry is a plain text file holding one overlay per line, while a line starting with
+ * {@link #REMOVED} drops an overlay again. Changes are appended to the end of the file rather than
+ * rewriting it, and the registry is mirrored by a set in memory, so that listing the overlays does
+ * not read the file again. Once the appended lines outgrow the overlays that are still registered,
+ * the file is compacted. The XML file used by older versions is migrated on first use.
+ */
 public class SamsungOverlayCacher {
 
+    private static final String TAG = "SamsungOverlayCacher";
+    private static final char REMOVED = '-';
+    private static final int COMPACTION_THRESHOLD = 64;
+    private static final Object lock = new Object();
+    private static Set<String> registered;
+    private static int lines;
     private final Context context;
 
     public SamsungOverlayCacher(Context context) {
+        super();
         this.context = context;
-        if (!checkSamsungCacheExists()) {
-            createSamsungCache();
+        synchronized (lock) {
+            load();
         }
     }
 
-    private boolean checkSamsungCacheExists() {
-        return new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE).exists();
+    /**
+     * Check whether overlays have ever been registered on this device
+     *
+     * @return True, if there is a registry, or an older one that can be migrated
+     */
+    public static boolean exists() {
+        return new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_REGISTRY).exists() ||
+                new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE).exists();
     }
 
-    private void createSamsungCache() {
+    /**
+     * Read the registry into memory, unless it has been read already
+     */
+    private static void load() {
+        if (registered != null) return;
+        registered = new LinkedHashSet<>();
+        lines = 0;
+        File registry = new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_REGISTRY);
+        if (registry.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(registry), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    lines++;
+                    if (line.charAt(0) == REMOVED) {
+                        registered.remove(line.substring(1));
+                    } else {
+                        registered.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            migrate();
+        }
+    }
+
+    /**
+     * Carry the overlays of the XML file used by older versions over into the registry, or create
+     * an empty registry if there is nothing to carry over
+     */
+    private static void migrate() {
+        File legacy = new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE);
+        if (!legacy.exists()) {
+            // Start out with an empty registry
+            compact();
+            return;
+        }
         try {
-            DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-            Document doc = docBuilder.newDocument();
-
-            Element rootElement = doc.createElement("overlays");
-            doc.appendChild(rootElement);
-
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(
-                    new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE));
-            transformer.transform(source, result);
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+            Document doc = dBuilder.parse(legacy);
+            NodeList nodeList = doc.getElementsByTagName("overlay");
+            for (int i = 0; i < nodeList.getLength(); i++) {
+                String overlayPackage = ((Element) nodeList.item(i)).getAttribute("package");
+                if (!overlayPackage.isEmpty()) registered.add(overlayPackage);
+            }
         } catch (Exception e) {
             e.printStackTrace();
+            return;
         }
+        if (compact() && !legacy.delete()) {
+            Substratum.log(TAG, "Could not remove the old overlay cache");
+        }
+        Substratum.log(TAG, "Migrated " + registered.size() + " overlays to the registry");
     }
 
-    public void updateSamsungCache(String overlay) {
-        if (!getOverlays(false).contains(overlay)) {
-            ArrayList<String> overlayList = new ArrayList<>();
-            overlayList.add(overlay);
-            updateSamsungCache(overlayList);
+    /**
+     * Append lines to the registry
+     *
+     * @param entries Lines to be appended
+     */
+    private static void append(Collection<String> entries) {
+        if (entries.isEmpty()) return;
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_REGISTRY, true),
+                StandardCharsets.UTF_8))) {
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.write('\n');
+            }
+            lines += entries.size();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        if (lines > Math.max(COMPACTION_THRESHOLD, registered.size() * 2)) compact();
     }
 
-    private void updateSamsungCache(List<String> overlays) {
-        try {
-            DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-            Document doc = docBuilder.parse(new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE));
+    /**
+     * Rewrite the registry with only the overlays that are still registered
+     *
+     * @return True, if the registry has been rewritten
+     */
+    private static boolean compact() {
+        File registry = new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_REGISTRY);
+        File temporary = new File(registry.getAbsolutePath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temporary, false), StandardCharsets.UTF_8))) {
+            for (String overlay : registered) {
+                writer.write(overlay);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (!temporary.renameTo(registry)) {
+            Substratum.log(TAG, "Could not compact the overlay registry");
+            return false;
+        }
+        lines = registered.size();
+        return true;
+    }
 
-            NodeList rootList = doc.getElementsByTagName("overlays");
-            Node root = rootList.item(0);
+    /**
+     * Register a newly installed overlay
+     *
+     * @param overlay Overlay package
+     */
+    public void updateSamsungCache(String overlay) {
+        updateSamsungCache(Collections.singletonList(overlay));
+    }
 
+    /**
+     * Register newly installed overlays, with a single write
+     *
+     * @param overlays Overlay packages
+     */
+    public void updateSamsungCache(List<String> overlays) {
+        synchronized (lock) {
+            List<String> added = new ArrayList<>();
             for (String overlay : overlays) {
-                Element overlayItem = doc.createElement("overlay");
-                overlayItem.setAttribute("package", overlay);
-                root.appendChild(overlayItem);
+                if (registered.add(overlay)) added.add(overlay);
             }
-
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(
-                    new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE));
-            transformer.transform(source, result);
-        } catch (Exception e) {
-            e.printStackTrace();
+            append(added);
         }
     }
 
+    /**
+     * Get the registered overlays that are installed
+     *
+     * @param shouldClean Whether overlays that have been uninstalled should be dropped from the
+     *                    registry
+     * @return Installed overlays
+     */
     public ArrayList<String> getOverlays(boolean shouldClean) {
-        try {
-            File fXmlFile = new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE);
-
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(fXmlFile);
-            doc.getDocumentElement().normalize();
-            NodeList nodeList = doc.getElementsByTagName("overlay");
-
-            Set<String> returnOverlays = new HashSet<>();
-
-            for (int temp = 0; temp < nodeList.getLength(); temp++) {
-                Node node = nodeList.item(temp);
-                Element element = (Element) node;
-
-                if (node.getNodeType() == Node.ELEMENT_NODE) {
-                    String overlayPackage = element.getAttribute("package");
-                    if (shouldClean) {
-                        if (!Packages.isPackageInstalled(context, overlayPackage)) {
-                            Node parent = element.getParentNode();
-                            parent.removeChild(element);
-                        }
-                    } else {
-                        if (Packages.isPackageInstalled(context, overlayPackage)) {
-                            returnOverlays.add(overlayPackage);
-                        }
-                    }
+        // Check every overlay against one snapshot of the installed packages, making the same
+        // checks as Packages.isPackageInstalled
+        Set<String> installed = new HashSet<>();
+        for (ApplicationInfo applicationInfo :
+                context.getPackageManager().getInstalledApplications(0)) {
+            if (applicationInfo.enabled && (applicationInfo.sourceDir != null) &&
+                    new File(applicationInfo.sourceDir).exists()) {
+                installed.add(applicationInfo.packageName);
+            }
+        }
+        synchronized (lock) {
+            ArrayList<String> overlays = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (String overlay : registered) {
+                if (installed.contains(overlay)) {
+                    overlays.add(overlay);
+                } else if (shouldClean) {
+                    removed.add(REMOVED + overlay);
                 }
             }
-            return new ArrayList<>(returnOverlays);
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!removed.isEmpty()) {
+                registered.retainAll(overlays);
+                append(removed);
+            }
+            return overlays;
         }
-        return new ArrayList<>();
     }
-}
\ No newline at end of file
+}
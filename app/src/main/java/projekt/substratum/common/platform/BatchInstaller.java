@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.common.platform;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import projekt.substratum.R;
+import projekt.substratum.Substratum;
+import projekt.substratum.util.helpers.Root;
+
+import static projekt.substratum.common.References.SUBSTRATUM_LOG;
+import static projekt.substratum.common.Systems.checkSubstratumService;
+import static projekt.substratum.common.Systems.checkThemeInterfacer;
+import static projekt.substratum.common.Systems.isAndromedaDevice;
+import static projekt.substratum.common.Systems.isNewSamsungDeviceAndromeda;
+
+/**
+ * Installs a whole batch of overlays at once, instead of paying the per-package overhead of the
+ * install backend for every single overlay.
+ * <p>
+ * Backends that take a list of overlays are handed the complete batch in one call. Without one,
+ * the batch is committed as a single multi-package install session when the platform supports it
+ * and Substratum may install packages itself, otherwise every install is grouped into a single
+ * superuser shell invocation. Afterwards, the package manager is asked whether each overlay has
+ * really been installed.
+ */
+public class BatchInstaller {
+
+    private static final String TAG = "BatchInstaller";
+    private static final String INSTALL_PACKAGES = "android.permission.INSTALL_PACKAGES";
+    private static final String SESSION_COMMITTED = "projekt.substratum.BATCH_INSTALL_COMMITTED";
+    private static final String SHELL_MARKER = "/batchInstall/";
+    private static final int MULTI_PACKAGE_SDK = 29;
+    private static final long VERIFY_TIMEOUT = 60000L;
+
+    /**
+     * Install a batch of overlays
+     * <p>
+     * This blocks until the batch has been installed, so it must not be called on the main thread.
+     *
+     * @param context Context
+     * @param apks    Signed overlay APKs
+     * @return Whether each APK ended up installed, in the order of the batch
+     */
+    public static Map<String, Boolean> install(Context context, List<String> apks) {
+        if (apks.isEmpty()) return new LinkedHashMap<>();
+        Map<String, Boolean> results;
+        long start = System.currentTimeMillis();
+        long elapsed = SystemClock.elapsedRealtime();
+        Map<String, String> packages = readPackageNames(context, apks);
+        Map<String, Future<Boolean>> broadcasts = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : packages.entrySet()) {
+            broadcasts.put(entry.getKey(),
+                    OperationCompletion.forPackage(context, entry.getValue()));
+        }
+
+        if (checkSubstratumService(context)) {
+            SubstratumService.installOverlay(apks);
+            results = verify(context, apks, packages, broadcasts, start);
+        } else if (checkThemeInterfacer(context)) {
+            ThemeInterfacerService.installOverlays(new ArrayList<>(apks));
+            results = verify(context, apks, packages, broadcasts, start);
+        } else if (isAndromedaDevice(context) && !isNewSamsungDeviceAndromeda(context)) {
+            if (!AndromedaService.installOverlays(apks)) {
+                Handler handler = new Handler(Looper.getMainLooper());
+                handler.post(() ->
+                        Toast.makeText(
+                                context,
+                                context.getString(R.string.toast_andromeda_timed_out),
+                                Toast.LENGTH_LONG).show()
+                );
+            }
+            results = verify(context, apks, packages, broadcasts, start);
+        } else if (canCommitMultiPackage(context) && commitMultiPackage(context, apks)) {
+            results = verify(context, apks, packages, broadcasts, start);
+        } else {
+            results = installGrouped(apks);
+            for (Future<Boolean> broadcast : broadcasts.values()) broadcast.cancel(false);
+        }
+
+        int installed = 0;
+        for (Boolean result : results.values()) {
+            if (result) installed++;
+        }
+        Substratum.log(SUBSTRATUM_LOG,
+                "Batch installed " + installed + '/' + apks.size() + " overlays in " +
+                        (SystemClock.elapsedRealtime() - elapsed) + "ms");
+        return results;
+    }
+
+    /**
+     * Read the package name of every APK in the batch before it gets installed
+     *
+     * @param context Context
+     * @param apks    Signed overlay APKs
+     * @return Package name by APK, skipping any APK that could not be parsed
+     */
+    private static Map<String, String> readPackageNames(Context context, List<String> apks) {
+        Map<String, String> packages = new LinkedHashMap<>();
+        PackageManager packageManager = context.getPackageManager();
+        for (String apk : apks) {
+            PackageInfo packageInfo = packageManager.getPackageArchiveInfo(apk, 0);
+            if (packageInfo != null) {
+                packages.put(apk, packageInfo.packageName);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Wait until the package manager has broadcast every package of the batch, then confirm that
+     * each of them has really been updated
+     *
+     * @param context    Context
+     * @param apks       Signed overlay APKs
+     * @param packages   Package name by APK
+     * @param broadcasts Install broadcast by APK, obtained before the batch was started
+     * @param start      Wall clock time the batch was started at
+     * @return Whether each APK ended up installed
+     */
+    private static Map<String, Boolean> verify(Context context,
+                                               List<String> apks,
+                                               Map<String, String> packages,
+                                               Map<String, Future<Boolean>> broadcasts,
+                                               long start) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        PackageManager packageManager = context.getPackageManager();
+        long deadline = SystemClock.elapsedRealtime() + VERIFY_TIMEOUT;
+        for (String apk : apks) {
+            boolean installed = false;
+            Future<Boolean> broadcast = broadcasts.get(apk);
+            if (broadcast != null) {
+                OperationCompletion.await(broadcast,
+                        Math.max(0L, deadline - SystemClock.elapsedRealtime()));
+                try {
+                    installed = packageManager.getPackageInfo(packages.get(apk), 0)
+                            .lastUpdateTime >= start;
+                } catch (PackageManager.NameNotFoundException ignored) {
+                    // Not installed
+                }
+            }
+            results.put(apk, installed);
+        }
+        return results;
+    }
+
+    /**
+     * Check whether the batch can be committed as a single multi-package session
+     *
+     * @param context Context
+     * @return True, if the platform has multi-package sessions and Substratum may install packages
+     */
+    private static boolean canCommitMultiPackage(Context context) {
+        return (Build.VERSION.SDK_INT >= MULTI_PACKAGE_SDK) &&
+                (context.checkSelfPermission(INSTALL_PACKAGES) ==
+                        PackageManager.PERMISSION_GRANTED);
+    }
+
+    /**
+     * Commit the batch as one parent session holding a child session for every APK, so the
+     * package manager only has to scan and broadcast once for the whole batch
+     *
+     * @param context Context
+     * @param apks    Signed overlay APKs
+     * @return True, if the session has been committed
+     */
+    private static boolean commitMultiPackage(Context context, List<String> apks) {
+        PackageInstaller installer = context.getPackageManager().getPackageInstaller();
+        int parentId = -1;
+        try {
+            // Multi-package sessions are newer than the SDK this is compiled against
+            Method setMultiPackage =
+                    PackageInstaller.SessionParams.class.getMethod("setMultiPackage");
+            Method addChildSessionId =
+                    PackageInstaller.Session.class.getMethod("addChildSessionId", int.class);
+
+            PackageInstaller.SessionParams parentParams = new PackageInstaller.SessionParams(
+                    PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+            setMultiPackage.invoke(parentParams);
+            parentId = installer.createSession(parentParams);
+            try (PackageInstaller.Session parent = installer.openSession(parentId)) {
+                for (String apk : apks) {
+                    File file = new File(apk);
+                    int childId = installer.createSession(new PackageInstaller.SessionParams(
+                            PackageInstaller.SessionParams.MODE_FULL_INSTALL));
+                    try (PackageInstaller.Session child = installer.openSession(childId)) {
+                        try (InputStream input = new FileInputStream(file);
+                             OutputStream output =
+                                     child.openWrite(file.getName(), 0L, file.length())) {
+                            IOUtils.copy(input, output);
+                            child.fsync(output);
+                        }
+                    }
+                    addChildSessionId.invoke(parent, childId);
+                }
+                Intent intent = new Intent(SESSION_COMMITTED).setPackage(context.getPackageName());
+                parent.commit(PendingIntent.getBroadcast(
+                        context, parentId, intent, 0).getIntentSender());
+            }
+            Substratum.log(TAG, "Committed " + apks.size() + " overlays in a single session");
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e(TAG, "Could not commit a multi-package session, installing one by one...");
+            if (parentId != -1) {
+                try {
+                    installer.abandonSession(parentId);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Install every APK of the batch within a single superuser shell invocation
+     *
+     * @param apks Signed overlay APKs
+     * @return Whether each APK was reported as installed by the package manager
+     */
+    private static Map<String, Boolean> installGrouped(List<String> apks) {
+        StringBuilder commands = new StringBuilder();
+        for (int i = 0; i < apks.size(); i++) {
+            commands.append("echo ").append(SHELL_MARKER).append(i).append(';')
+                    .append("pm install -r \"").append(apks.get(i)).append("\";");
+        }
+        String output = Root.runCommand(commands.toString());
+
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (String apk : apks) results.put(apk, false);
+        if (output == null) return results;
+        for (String section : output.split(SHELL_MARKER)) {
+            int end = 0;
+            while ((end < section.length()) && Character.isDigit(section.charAt(end))) end++;
+            if (end == 0) continue;
+            int index = Integer.parseInt(section.substring(0, end));
+            if ((index < apks.size()) && section.contains("Success")) {
+                results.put(apks.get(index), true);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.common.platform;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.Packages;
+
+import static projekt.substratum.common.References.SUBSTRATUM_LOG;
+
+/**
+ * Futures that complete when an operation handed to another process has really finished.
+ * <p>
+ * Installs, overlay state changes and file operations that run in a backend or a superuser shell
+ * return before they are done. Instead of sleeping for a fixed time, callers obtain a future
+ * before starting the operation and wait on it with an upper bound. The future is completed by the
+ * system signal that belongs to the operation: the package broadcasts of the package manager, the
+ * overlay change broadcast of the overlay manager, or the file system events of the destination.
+ */
+public class OperationCompletion {
+
+    private static final String OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
+    private static final int FILE_CREATED =
+            FileObserver.CREATE | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+    private static final int FILE_REMOVED =
+            FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF;
+    private static final int FILE_WRITTEN = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+    // FileObservers stop watching once they are garbage collected
+    private static final Set<FileObserver> observers = new HashSet<>();
+    private static Handler handler;
+
+    /**
+     * Get a future that completes once a package has been installed or replaced
+     *
+     * @param context     Context
+     * @param packageName Package to be installed
+     * @return Future completing with true when the package manager has broadcast the package
+     */
+    public static CompletableFuture<Boolean> forPackage(Context context, String packageName) {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        Set<String> pending = new HashSet<>();
+        pending.add(packageName);
+        return forBroadcast(context, filter, pending);
+    }
+
+    /**
+     * Get a future that completes once the overlay manager has reported a state change for the
+     * targets of every given overlay
+     *
+     * @param context  Context
+     * @param overlays Overlays that are about to be switched
+     * @return Future completing with true when every target has been updated
+     */
+    public static CompletableFuture<Boolean> forOverlayChange(Context context,
+                                                              Collection<String> overlays) {
+        IntentFilter filter = new IntentFilter(OVERLAY_CHANGED);
+        filter.addDataScheme("package");
+        Set<String> pending = new HashSet<>();
+        for (String overlay : overlays) {
+            String target = Packages.getOverlayTarget(context, overlay);
+            if (target != null) pending.add(target);
+        }
+        return forBroadcast(context, filter, pending);
+    }
+
+    /**
+     * Get a future that completes once a file has been written out, whether it existed before or
+     * not. An older copy of the file does not count.
+     *
+     * @param path File to be written
+     * @return Future completing with true when the writer has closed the file
+     */
+    public static CompletableFuture<Boolean> forFileWritten(String path) {
+        File file = new File(path);
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (file.getParentFile() == null) {
+            future.complete(false);
+            return future;
+        }
+        observeWritten(future, file, false);
+        return future;
+    }
+
+    /**
+     * Complete a future once a file has been written out. If the directory of the file does not
+     * exist yet, as on the first run of a backend, the nearest parent that does is watched until
+     * the missing directories have been created.
+     *
+     * @param future  Future to be completed
+     * @param file    File to be written
+     * @param created Whether the directory of the file has been created after the future was
+     *                obtained, so that any copy of the file found in it is a new one
+     */
+    private static void observeWritten(CompletableFuture<Boolean> future,
+                                       File file,
+                                       boolean created) {
+        File directory = file.getParentFile();
+        if (directory.isDirectory()) {
+            String name = file.getName();
+            observe(future, directory, FILE_WRITTEN, (event, changed) -> name.equals(changed));
+            // The file may have been written before the observer was watching
+            if (created && file.exists()) future.complete(true);
+            return;
+        }
+        File missing = directory;
+        File existing = directory.getParentFile();
+        while ((existing != null) && !existing.isDirectory()) {
+            missing = existing;
+            existing = existing.getParentFile();
+        }
+        if (existing == null) {
+            future.complete(false);
+            return;
+        }
+        String next = missing.getName();
+        CompletableFuture<Boolean> parentCreated = new CompletableFuture<>();
+        observe(parentCreated, existing, FILE_CREATED, (event, changed) -> next.equals(changed));
+        if (missing.isDirectory()) parentCreated.complete(true);
+        parentCreated.thenRun(() -> {
+            if (!future.isDone()) observeWritten(future, file, true);
+        });
+        future.whenComplete((result, throwable) -> parentCreated.cancel(false));
+    }
+
+    /**
+     * Get a future that completes once a file or directory has been removed
+     *
+     * @param path File to be removed
+     * @return Future completing with true when the file no longer exists
+     */
+    public static CompletableFuture<Boolean> forFileRemoved(String path) {
+        File file = new File(path);
+        return forFileEvent(file.getParentFile(), FILE_REMOVED, () -> !file.exists());
+    }
+
+    /**
+     * Get a future that completes once a directory has been emptied
+     *
+     * @param path Directory to be emptied
+     * @return Future completing with true when the directory has no children left
+     */
+    public static CompletableFuture<Boolean> forDirectoryEmptied(String path) {
+        File directory = new File(path);
+        return forFileEvent(directory, FILE_REMOVED, () -> {
+            String[] children = directory.list();
+            return (children == null) || (children.length == 0);
+        });
+    }
+
+    /**
+     * Wait on a future for a bounded amount of time
+     *
+     * @param future  Future of the operation
+     * @param timeout Time in milliseconds after which the operation is considered to have failed
+     * @return True, if the operation has completed in time
+     */
+    public static boolean await(Future<Boolean> future, long timeout) {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Substratum.log(SUBSTRATUM_LOG, "Operation timed out after " + timeout + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            future.cancel(false);
+        }
+        return false;
+    }
+
+    /**
+     * Receivers are run on their own thread, so that the main thread may wait on them
+     *
+     * @return Handler of the completion thread
+     */
+    private static synchronized Handler getHandler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("OperationCompletion");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    private static CompletableFuture<Boolean> forBroadcast(Context context,
+                                                           IntentFilter filter,
+                                                           Set<String> pending) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (pending.isEmpty()) {
+            future.complete(true);
+            return future;
+        }
+        Context appContext = context.getApplicationContext();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getData() == null) return;
+                pending.remove(intent.getData().getEncodedSchemeSpecificPart());
+                if (pending.isEmpty()) future.complete(true);
+            }
+        };
+        appContext.registerReceiver(receiver, filter, null, getHandler());
+        future.whenComplete((result, throwable) -> {
+            try {
+                appContext.unregisterReceiver(receiver);
+            } catch (IllegalArgumentException ignored) {
+                // Already unregistered
+            }
+        });
+        return future;
+    }
+
+    private static CompletableFuture<Boolean> forFileEvent(File watched,
+                                                           int mask,
+                                                           BooleanSupplier done) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if ((watched == null) || done.getAsBoolean()) {
+            future.complete(done.getAsBoolean());
+            return future;
+        }
+        observe(future, watched, mask, (event, path) -> done.getAsBoolean());
+        // The operation may have finished before the observer was watching
+        if (done.getAsBoolean()) future.complete(true);
+        return future;
+    }
+
+    /**
+     * Complete a future once an event on a watched directory matches
+     *
+     * @param future  Future to be completed
+     * @param watched Directory to be watched
+     * @param mask    Events to be watched
+     * @param matches Whether an event, along with the path it happened to, completes the future
+     */
+    private static void observe(CompletableFuture<Boolean> future,
+                                File watched,
+                                int mask,
+                                BiPredicate<Integer, String> matches) {
+        FileObserver observer = new FileObserver(watched.getAbsolutePath(), mask) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (matches.test(event, path)) future.complete(true);
+            }
+        };
+        synchronized (observers) {
+            observers.add(observer);
+        }
+        observer.startWatching();
+        future.whenComplete((result, throwable) -> {
+            observer.stopWatching();
+            synchronized (observers) {
+                observers.remove(observer);
+            }
+        });
+    }
+}
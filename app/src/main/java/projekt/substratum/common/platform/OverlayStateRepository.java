@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.common.platform;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.Packages.getOverlayParent;
+import static projekt.substratum.common.References.PACKAGE_ADDED;
+import static projekt.substratum.common.References.PACKAGE_FULLY_REMOVED;
+import static projekt.substratum.common.Resources.PIXEL_OVERLAY_PACKAGES;
+import static projekt.substratum.common.platform.ThemeManager.STATE_DISABLED;
+import static projekt.substratum.common.platform.ThemeManager.STATE_ENABLED;
+import static projekt.substratum.common.platform.ThemeManager.STATE_MISSING_TARGET;
+
+/**
+ * Keeps the overlay states reported by the backend, so that they are only read once per refresh.
+ * <p>
+ * Reading the overlay states means a binder call into the overlay manager, a root shell or a
+ * round trip through Andromeda, while callers tend to ask for one overlay at a time from within a
+ * loop. The states are read into a {@link Snapshot} once, indexed by package, target, state and
+ * parent theme, and kept until an overlay is changed through {@link ThemeManager}, a package is
+ * added, changed or removed, or {@link #MAX_AGE} has passed, which covers changes made from
+ * outside of the app. Callers that miss the snapshot while it is being read wait for that read,
+ * rather than asking the backend again.
+ */
+public class OverlayStateRepository {
+
+    private static final String TAG = "OverlayStateRepository";
+    private static final String OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
+    private static final long MAX_AGE = 2500L;
+    private static final Object lock = new Object();
+    private static volatile Snapshot snapshot;
+    private static long generation;
+    private static CompletableFuture<Snapshot> reading;
+
+    /**
+     * Get the current overlay states, reading them from the backend if they are not known
+     *
+     * @param context Context
+     * @return Snapshot of the overlay states
+     */
+    public static Snapshot getSnapshot(Context context) {
+        Snapshot current = snapshot;
+        if ((current != null) &&
+                ((SystemClock.elapsedRealtime() - current.created) < MAX_AGE)) {
+            return current;
+        }
+        CompletableFuture<Snapshot> read;
+        boolean owner;
+        long readGeneration;
+        synchronized (lock) {
+            current = snapshot;
+            if ((current != null) &&
+                    ((SystemClock.elapsedRealtime() - current.created) < MAX_AGE)) {
+                return current;
+            }
+            if (reading != null) {
+                // Share the read that is already running, such as a single Andromeda dump
+                read = reading;
+                owner = false;
+            } else {
+                read = reading = new CompletableFuture<>();
+                owner = true;
+            }
+            readGeneration = generation;
+        }
+        if (!owner) {
+            try {
+                return read.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+            // The shared read has failed, so try on our own
+            return ThemeManager.readOverlayStates(context);
+        }
+        // Read outside of the lock, as the backend may take a while to answer
+        Snapshot states;
+        try {
+            states = ThemeManager.readOverlayStates(context);
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                if (reading == read) reading = null;
+            }
+            read.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (lock) {
+            // Do not keep states that were read while they were being changed
+            if (readGeneration == generation) snapshot = states;
+            if (reading == read) reading = null;
+        }
+        read.complete(states);
+        Substratum.log(TAG, "Read the states of " + states.states.size() + " overlays");
+        return states;
+    }
+
+    /**
+     * Forget the overlay states, so that the next caller reads them from the backend again
+     */
+    public static void invalidate() {
+        synchronized (lock) {
+            generation++;
+            snapshot = null;
+            // Callers from now on must not wait on a read that has started before the change
+            reading = null;
+        }
+    }
+
+    /**
+     * Register the receiver that forgets the overlay states whenever packages or overlays change.
+     * It is registered ahead of the other package receivers, so that they see the new states.
+     *
+     * @param context Context
+     */
+    public static void registerInvalidator(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PACKAGE_ADDED);
+        filter.addAction(PACKAGE_FULLY_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(OVERLAY_CHANGED);
+        filter.addDataScheme("package");
+        filter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY - 1);
+        context.getApplicationContext().registerReceiver(new Invalidator(), filter);
+    }
+
+    /**
+     * Overlay states as they were at one point in time
+     */
+    public static final class Snapshot {
+        private final long created = SystemClock.elapsedRealtime();
+        private final Map<String, Boolean> states = new LinkedHashMap<>();
+        private final Map<String, Integer> enabledByTarget = new HashMap<>();
+        private final List<String> enabledOverlays = new ArrayList<>();
+        private final List<String> disabledOverlays = new ArrayList<>();
+        private final List<String> missingTargetOverlays = new ArrayList<>();
+        private final Map<String, List<String>> byParent = new HashMap<>();
+
+        Snapshot() {
+            super();
+        }
+
+        /**
+         * Add an overlay reported by the backend
+         *
+         * @param packageName Overlay package
+         * @param target      Target package, or null if the backend does not tell
+         * @param enabled     Whether the overlay is enabled
+         * @param state       State reported by the backend
+         */
+        void add(String packageName, String target, boolean enabled, int state) {
+            if (Arrays.asList(PIXEL_OVERLAY_PACKAGES).contains(packageName) ||
+                    states.containsKey(packageName)) {
+                return;
+            }
+            // Overlays whose target is missing are neither enabled nor disabled
+            if (state == STATE_MISSING_TARGET) {
+                if (!missingTargetOverlays.contains(packageName)) {
+                    missingTargetOverlays.add(packageName);
+                }
+                return;
+            }
+            states.put(packageName, enabled);
+            // Build every view while the overlays are added, rather than on each lookup
+            (enabled ? enabledOverlays : disabledOverlays).add(packageName);
+            if (enabled && (target != null)) enabledByTarget.merge(target, 1, Integer::sum);
+        }
+
+        /**
+         * List every overlay
+         *
+         * @return Overlay packages
+         */
+        public List<String> listAll() {
+            return new ArrayList<>(states.keySet());
+        }
+
+        /**
+         * List the overlays in a state
+         *
+         * @param state {@link ThemeManager#STATE_ENABLED}, {@link ThemeManager#STATE_DISABLED}
+         *              or {@link ThemeManager#STATE_MISSING_TARGET}
+         * @return Overlay packages
+         */
+        public List<String> list(int state) {
+            if (state == STATE_ENABLED) return new ArrayList<>(enabledOverlays);
+            if (state == STATE_DISABLED) return new ArrayList<>(disabledOverlays);
+            if (state == STATE_MISSING_TARGET) return new ArrayList<>(missingTargetOverlays);
+            return new ArrayList<>();
+        }
+
+        public boolean isOverlay(String packageName) {
+            return states.containsKey(packageName);
+        }
+
+        public boolean isEnabled(String packageName) {
+            return Boolean.TRUE.equals(states.get(packageName));
+        }
+
+        /**
+         * List the targets that have more than one overlay enabled
+         *
+         * @return Target packages
+         */
+        public List<String> listTargetsWithMultipleEnabled() {
+            List<String> targets = new ArrayList<>();
+            for (Map.Entry<String, Integer> target : enabledByTarget.entrySet()) {
+                if (target.getValue() > 1) targets.add(target.getKey());
+            }
+            return targets;
+        }
+
+        /**
+         * List the overlays of a theme. The parent of every overlay is only looked up once per
+         * snapshot.
+         *
+         * @param context      Context
+         * @param themePackage Theme package
+         * @return Overlay packages
+         */
+        public List<String> listByTheme(Context context, String themePackage) {
+            synchronized (byParent) {
+                if (byParent.isEmpty() && !states.isEmpty()) {
+                    for (String overlay : states.keySet()) {
+                        String parent = getOverlayParent(context, overlay);
+                        byParent.computeIfAbsent(String.valueOf(parent),
+                                key -> new ArrayList<>()).add(overlay);
+                    }
+                }
+                List<String> overlays = byParent.get(themePackage);
+                return (overlays != null) ?
+                        new ArrayList<>(overlays) : Collections.emptyList();
+            }
+        }
+    }
+
+    private static class Invalidator extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    }
+}
@@ -12,10 +12,9 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.om.OM;
 import android.content.om.OverlayInfo;
-import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
@@ -25,22 +24,24 @@ import android.widget.Toast;
 
 import androidx.annotation.RestrictTo;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import projekt.substratum.MainActivity;
 import projekt.substratum.R;
 import projekt.substratum.Substratum;
+import projekt.substratum.common.OverlayMetadata;
 import projekt.substratum.common.Packages;
 import projekt.substratum.common.References;
 import projekt.substratum.common.Resources;
@@ -53,8 +54,6 @@ import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.O;
 import static projekt.substratum.common.Packages.getOverlayParent;
 import static projekt.substratum.common.Packages.getOverlayTarget;
-import static projekt.substratum.common.Packages.isPackageInstalled;
-import static projekt.substratum.common.References.EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE;
 import static projekt.substratum.common.References.INTERFACER_PACKAGE;
 import static projekt.substratum.common.References.LEGACY_NEXUS_DIR;
 import static projekt.substratum.common.Resources.FRAMEWORK;
@@ -95,11 +94,8 @@ public class ThemeManager {
             INTERFACER_PACKAGE,
     };
     // Non-Interfacer (NI) values
-    private static final Integer NI_restartSystemUIDelay = 2000;
-    private static final int EXPORT_RETURN_ALL_OVERLAYS = 0;
-    private static final int EXPORT_RETURN_MULTIPLE_TARGETS_ENABLED = 1;
-    private static final int EXPORT_RETURN_DEFAULT = 2;
-    private static final int STATE_LIST_ALL_OVERLAYS = 13579;
+    private static final long NI_restartSystemUIDelay = 2000L;
+    private static final long ANDROMEDA_LIST_TIMEOUT = 2000L;
 
     /**
      * Blacklisted applications to hide on specific devices, for example Samsung devices
@@ -180,16 +176,14 @@ public class ThemeManager {
             for (int i = 1; i < overlays.size(); i++) {
                 commands.append(';' + enableOverlay + ' ').append(overlays.get(i));
             }
+            Future<Boolean> changed = OperationCompletion.forOverlayChange(context, overlays);
             ElevatedCommands.runThreadedCommand(commands.toString());
-            try {
-                Thread.sleep(NI_restartSystemUIDelay);
-                if (shouldRestartUI(context, overlays)) {
-                    restartSystemUI(context);
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            OperationCompletion.await(changed, NI_restartSystemUIDelay);
+            if (shouldRestartUI(context, overlays)) {
+                restartSystemUI(context);
             }
         }
+        OverlayStateRepository.invalidate();
     }
 
     /**
@@ -226,16 +220,14 @@ public class ThemeManager {
             for (int i = 1; i < overlays.size(); i++) {
                 commands.append(';' + disableOverlay + ' ').append(overlays.get(i));
             }
+            Future<Boolean> changed = OperationCompletion.forOverlayChange(context, overlays);
             ElevatedCommands.runThreadedCommand(commands.toString());
-            try {
-                Thread.sleep(NI_restartSystemUIDelay);
-                if (shouldRestartUI(context, overlays)) {
-                    restartSystemUI(context);
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            OperationCompletion.await(changed, NI_restartSystemUIDelay);
+            if (shouldRestartUI(context, overlays)) {
+                restartSystemUI(context);
             }
         }
+        OverlayStateRepository.invalidate();
     }
 
     /**
@@ -273,6 +265,7 @@ public class ThemeManager {
                 restartSystemUI(context);
             }
         }
+        OverlayStateRepository.invalidate();
     }
 
     /**
@@ -311,7 +304,7 @@ public class ThemeManager {
      * @return Returns a list of overlays
      */
     public static List<String> listAllOverlays(Context context) {
-        return listOverlays(context, STATE_LIST_ALL_OVERLAYS, EXPORT_RETURN_DEFAULT);
+        return OverlayStateRepository.getSnapshot(context).listAll();
     }
 
     /**
@@ -322,7 +315,7 @@ public class ThemeManager {
      * @return Returns a list of overlays
      */
     public static List<String> listOverlays(Context context, int state) {
-        return listOverlays(context, state, EXPORT_RETURN_DEFAULT);
+        return OverlayStateRepository.getSnapshot(context).list(state);
     }
 
     /**
@@ -332,26 +325,20 @@ public class ThemeManager {
      * @return Returns a list of target packages with multiple overlays enabled
      */
     public static List<String> listTargetWithMultipleOverlaysEnabled(Context context) {
-        return listOverlays(context, STATE_ENABLED,
-                EXPORT_RETURN_MULTIPLE_TARGETS_ENABLED);
+        return OverlayStateRepository.getSnapshot(context).listTargetsWithMultipleEnabled();
     }
 
     /**
-     * List overlays, beef of {@link #listOverlays(Context, int),
-     * {@link #listAllOverlays(Context)} and
-     * {@link #listTargetWithMultipleOverlaysEnabled(Context)}}
+     * Read the states of every overlay from the backend in one go, beef of
+     * {@link OverlayStateRepository#getSnapshot(Context)}
      *
-     * @param context        Context
-     * @param overlayState   Overlay state
-     * @param secondaryState Secondary state to have a more refined filter
-     * @return Returns a list of overlays
+     * @param context Context
+     * @return Returns the overlay states
      */
     @RestrictTo(RestrictTo.Scope.LIBRARY)
     @SuppressWarnings("unchecked")
-    private static List<String> listOverlays(Context context,
-                                             int overlayState,
-                                             int secondaryState) {
-        Set<String> list = new HashSet<>();
+    static OverlayStateRepository.Snapshot readOverlayStates(Context context) {
+        OverlayStateRepository.Snapshot snapshot = new OverlayStateRepository.Snapshot();
         try {
             // Throw certain exceptions intentionally when unsupported device found
             boolean substratumService = checkSubstratumService(context);
@@ -373,48 +360,12 @@ public class ThemeManager {
                 }
             }
             if (allOverlays != null) {
-                switch (secondaryState) {
-                    case EXPORT_RETURN_ALL_OVERLAYS:
-                        for (Map.Entry<String, List<OverlayInfo>> stringListEntry :
-                                allOverlays.entrySet()) {
-                            for (OverlayInfo oi : stringListEntry.getValue()) {
-                                if (oi.isEnabled()) {
-                                    list.add(oi.packageName);
-                                }
-                            }
-                        }
-                        break;
-                    case EXPORT_RETURN_MULTIPLE_TARGETS_ENABLED:
-                        for (Map.Entry<String, List<OverlayInfo>>
-                                stringListEntry : allOverlays.entrySet()) {
-                            List<OverlayInfo> targetOverlays = stringListEntry.getValue();
-                            int targetOverlaysSize = targetOverlays.size();
-                            int count = 0;
-                            for (OverlayInfo oi : targetOverlays) {
-                                if (oi.isEnabled()) count++;
-                            }
-                            if ((targetOverlaysSize > 1) && (count > 1))
-                                list.add(stringListEntry.getKey());
-                        }
-                        break;
-                    case EXPORT_RETURN_DEFAULT:
-                        for (Map.Entry<String, List<OverlayInfo>>
-                                stringListEntry : allOverlays.entrySet()) {
-                            for (OverlayInfo oi : stringListEntry.getValue()) {
-                                if ((overlayState == STATE_ENABLED) && oi.isEnabled()) {
-                                    list.add(oi.packageName);
-                                } else if ((overlayState == STATE_DISABLED) && !oi.isEnabled()) {
-                                    list.add(oi.packageName);
-                                } else if (overlayState == STATE_MISSING_TARGET) {
-                                    if (oi.state == STATE_MISSING_TARGET) {
-                                        list.add(oi.packageName);
-                                    }
-                                } else if (overlayState == STATE_LIST_ALL_OVERLAYS) {
-                                    list.add(oi.packageName);
-                                }
-                            }
-                        }
-                        break;
+                for (Map.Entry<String, List<OverlayInfo>>
+                        stringListEntry : allOverlays.entrySet()) {
+                    for (OverlayInfo oi : stringListEntry.getValue()) {
+                        snapshot.add(oi.packageName, stringListEntry.getKey(),
+                                oi.isEnabled(), oi.state);
+                    }
                 }
             } else {
                 Log.e("ThemeManager",
@@ -425,155 +376,136 @@ public class ThemeManager {
             if (!isNewSamsungDeviceAndromeda(context) &&
                     (Systems.checkOMS(context) || Systems.IS_OREO) &&
                     !MainActivity.instanceBasedAndromedaFailure) {
-                String prefix;
-                if (overlayState == STATE_ENABLED) {
-                    prefix = "[x]";
-                } else if (overlayState == STATE_DISABLED) {
-                    prefix = "[ ]";
-                } else {
-                    prefix = "---";
-                }
-
-                String[] arrList = null;
-
                 // This is a check for Oreo and Andromeda's integration
                 if (Systems.isAndromedaDevice(context) && !MainActivity.instanceBasedAndromedaFailure) {
                     File overlays = new File(
                             Environment.getExternalStorageDirectory().getAbsolutePath() +
                                     "/.andromeda/overlays.xml");
 
-                    // Call Andromeda to output the file!
+                    // Call Andromeda to output the file, and wait until it has been written
                     Substratum.log("ThemeManager", "Fetching new file from Andromeda, please wait!");
+                    Future<Boolean> written =
+                            OperationCompletion.forFileWritten(overlays.getAbsolutePath());
                     AndromedaService.listOverlays();
-                    int counter = 0;
-                    while (!overlays.exists() && (counter <= 200)) {
-                        try {
-                            Thread.sleep(10L);
-                            counter++;
-                            Substratum.log("ThemeManager",
-                                    "Substratum is still waiting for a response " +
-                                            "from Andromeda...");
-                        } catch (InterruptedException e1) {
-                            e1.printStackTrace();
-                        }
+                    if (!OperationCompletion.await(written, ANDROMEDA_LIST_TIMEOUT)) {
+                        Substratum.log("ThemeManager",
+                                "Andromeda did not write a new file in time, reading the last one");
                     }
 
                     // Andromeda's file is done!
                     if (overlays.exists()) {
-                        try {
-                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                                String str = new String(
-                                        Files.readAllBytes(Paths.get(overlays.getAbsolutePath())));
-                                arrList = str.split(System.getProperty("line.separator"));
-                            }
+                        try (BufferedReader reader = new BufferedReader(new FileReader(overlays))) {
+                            readOverlayList(context, reader, snapshot);
                         } catch (IOException e1) {
                             e1.printStackTrace();
                         }
                     }
                 } else {
                     // It's not Andromeda, so it needs to run as root
-                    try {
-                        arrList = Root.runCommand(listAllOverlays).split(
-                                System.getProperty("line.separator"));
-                    } catch (NullPointerException npe) {
-                        npe.printStackTrace();
-                    }
-                }
-                switch (secondaryState) {
-                    case EXPORT_RETURN_MULTIPLE_TARGETS_ENABLED:
-                        if (arrList != null) {
-                            String currentApp = "";
-                            int counter = 0;
-                            for (String line : arrList) {
-                                if (line.startsWith(prefix)) {
-                                    if ((getOverlayParent(context, line.substring(4)) != null) &&
-                                            isPackageInstalled(context, line.substring(4))) {
-                                        counter++;
-                                    }
-                                } else if (!line.startsWith("[") && !line.startsWith("-")) {
-                                    if (counter > 1) list.add(currentApp);
-                                    counter = 0;
-                                    currentApp = line;
-                                }
-                            }
-                            if (counter > 1) list.add(currentApp);
-                        }
-                        break;
-                    case EXPORT_RETURN_ALL_OVERLAYS:
-                    case EXPORT_RETURN_DEFAULT:
-                        if (arrList != null) {
-                            String enabledPrefix = "[x]";
-                            String disabledPrefix = "[ ]";
-                            for (String line : arrList) {
-                                boolean checker;
-                                if (overlayState == STATE_LIST_ALL_OVERLAYS) {
-                                    checker = line.startsWith(enabledPrefix) ||
-                                            line.startsWith(disabledPrefix);
-                                } else {
-                                    checker = line.startsWith(prefix);
-                                }
-                                if (checker &&
-                                        getOverlayParent(context, line.substring(4)) != null &&
-                                        isPackageInstalled(context, line.substring(4))) {
-                                    try {
-                                        String packageName = line.substring(4);
-                                        String sourceDir = context.getPackageManager()
-                                                .getApplicationInfo(packageName, 0).sourceDir;
-                                        if (!sourceDir.startsWith("/vendor/overlay/")) {
-                                            list.add(packageName);
-                                        }
-                                    } catch (Exception ignored) {
-                                    }
-                                }
-                            }
+                    String output = Root.runCommand(listAllOverlays);
+                    if (output != null) {
+                        try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
+                            readOverlayList(context, reader, snapshot);
+                        } catch (IOException e1) {
+                            e1.printStackTrace();
                         }
-                        break;
+                    }
                 }
             } else {
                 // We now know this is not OMS, so fallback for Samsung and Legacy or
-                // offline Andromeda
-                if ((overlayState == STATE_LIST_ALL_OVERLAYS) || (overlayState == STATE_ENABLED)) {
-                    if (isNewSamsungDeviceAndromeda(context) ||
-                            Systems.isSamsungDevice(context) ||
-                            MainActivity.instanceBasedAndromedaFailure) {
+                // offline Andromeda, where every overlay that is installed is enabled
+                List<String> list = new ArrayList<>();
+                if (isNewSamsungDeviceAndromeda(context) ||
+                        Systems.isSamsungDevice(context) ||
+                        MainActivity.instanceBasedAndromedaFailure) {
+                    if ((isNewSamsungDevice() || isNewSamsungDeviceAndromeda(context)) &&
+                            SamsungOverlayCacher.exists()) {
+                        SamsungOverlayCacher samsungOverlayCacher =
+                                new SamsungOverlayCacher(context);
+                        list.addAll(samsungOverlayCacher.getOverlays(false));
+                    } else {
+                        // Query the metadata of every package at once rather than one by one
                         PackageManager pm = context.getPackageManager();
-                        List<ApplicationInfo> packages = pm.getInstalledApplications(0);
-                        list.clear();
-
-                        if ((isNewSamsungDevice() || isNewSamsungDeviceAndromeda(context)) &&
-                                new File(EXTERNAL_STORAGE_SAMSUNG_OVERLAY_CACHE).exists()) {
-                            SamsungOverlayCacher samsungOverlayCacher =
-                                    new SamsungOverlayCacher(context);
-                            list.addAll(samsungOverlayCacher.getOverlays(false));
-                        } else {
-                            for (ApplicationInfo packageInfo : packages) {
-                                if (Packages.getOverlayMetadata(
-                                        context,
-                                        packageInfo.packageName,
-                                        References.metadataOverlayParent) != null) {
-                                    list.add(packageInfo.packageName);
-                                }
+                        List<PackageInfo> packages =
+                                pm.getInstalledPackages(PackageManager.GET_META_DATA);
+                        for (PackageInfo packageInfo : packages) {
+                            OverlayMetadata metadata = OverlayMetadata.get(packageInfo);
+                            if ((metadata != null) && (metadata.getParent() != null)) {
+                                list.add(packageInfo.packageName);
                             }
                         }
-                    } else {
-                        File legacyCheck = new File(LEGACY_NEXUS_DIR);
-                        if (legacyCheck.exists() && legacyCheck.isDirectory()) {
-                            list.clear();
-                            String[] lister = legacyCheck.list();
-                            for (String aLister : lister) {
-                                if (aLister.endsWith(".apk")) {
-                                    list.add(aLister.substring(0, aLister.length() - 4));
-                                }
+                    }
+                } else {
+                    File legacyCheck = new File(LEGACY_NEXUS_DIR);
+                    if (legacyCheck.exists() && legacyCheck.isDirectory()) {
+                        String[] lister = legacyCheck.list();
+                        for (String aLister : lister) {
+                            if (aLister.endsWith(".apk")) {
+                                list.add(aLister.substring(0, aLister.length() - 4));
                             }
                         }
                     }
-                } else {
-                    list.clear();
+                }
+                for (String packageName : list) {
+                    snapshot.add(packageName, null, true, STATE_ENABLED);
                 }
             }
         }
-        list.removeAll(Arrays.asList(PIXEL_OVERLAY_PACKAGES));
-        return new ArrayList<>(list);
+        return snapshot;
+    }
+
+    /**
+     * Read the overlay list printed by "cmd overlay list", or written out by Andromeda, line by
+     * line. Every overlay is listed below its target, prefixed with its state.
+     * <p>
+     * The overlays are collected first and then resolved against a single query of every
+     * installed package, rather than asking the package manager about each overlay in turn.
+     *
+     * @param context  Context
+     * @param reader   Overlay list
+     * @param snapshot Snapshot the overlays are added to
+     * @throws IOException If the list could not be read
+     */
+    private static void readOverlayList(Context context,
+                                        BufferedReader reader,
+                                        OverlayStateRepository.Snapshot snapshot)
+            throws IOException {
+        List<String[]> listed = new ArrayList<>();
+        String currentApp = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("[x]") || line.startsWith("[ ]") || line.startsWith("---")) {
+                listed.add(new String[]{line.substring(4), currentApp, line.substring(0, 3)});
+            } else if (!line.isEmpty() && !line.startsWith("[") && !line.startsWith("-")) {
+                currentApp = line;
+            }
+        }
+        if (listed.isEmpty()) return;
+
+        Map<String, PackageInfo> installed = new HashMap<>();
+        for (PackageInfo packageInfo : context.getPackageManager()
+                .getInstalledPackages(PackageManager.GET_META_DATA)) {
+            installed.put(packageInfo.packageName, packageInfo);
+        }
+        for (String[] overlay : listed) {
+            PackageInfo packageInfo = installed.get(overlay[0]);
+            if ((packageInfo == null) || (packageInfo.applicationInfo == null)) continue;
+            // Same checks as Packages.isPackageInstalled, made on the bulk query
+            String sourceDir = packageInfo.applicationInfo.sourceDir;
+            if (!packageInfo.applicationInfo.enabled ||
+                    (sourceDir == null) || !new File(sourceDir).exists()) {
+                continue;
+            }
+            OverlayMetadata metadata = OverlayMetadata.get(packageInfo);
+            if ((metadata != null) && (metadata.getParent() != null) &&
+                    !sourceDir.startsWith("/vendor/overlay/")) {
+                boolean enabled = "[x]".equals(overlay[2]);
+                snapshot.add(overlay[0], overlay[1], enabled,
+                        enabled ? STATE_ENABLED :
+                                ("---".equals(overlay[2]) ?
+                                        STATE_MISSING_TARGET : STATE_DISABLED));
+            }
+        }
     }
 
     /**
@@ -585,13 +517,7 @@ public class ThemeManager {
      */
     public static boolean isOverlay(Context context,
                                     String packageName) {
-        List<String> overlays = listAllOverlays(context);
-        for (String overlay : overlays) {
-            if (overlay.equals(packageName)) {
-                return true;
-            }
-        }
-        return false;
+        return OverlayStateRepository.getSnapshot(context).isOverlay(packageName);
     }
 
     /**
@@ -603,14 +529,7 @@ public class ThemeManager {
      */
     public static List<String> listOverlaysByTheme(Context context,
                                                    String packageName) {
-        List<String> list = new ArrayList<>();
-        List<String> overlays = listAllOverlays(context);
-        for (String overlay : overlays) {
-            if (getOverlayParent(context, overlay).equals(packageName)) {
-                list.add(overlay);
-            }
-        }
-        return list;
+        return OverlayStateRepository.getSnapshot(context).listByTheme(context, packageName);
     }
 
     /**
@@ -660,11 +579,7 @@ public class ThemeManager {
      * @return True, if overlay is enabled
      */
     public static boolean isOverlayEnabled(Context context, String overlayName) {
-        List<String> enabledOverlays = ThemeManager.listOverlays(context, STATE_ENABLED);
-        for (String o : enabledOverlays) {
-            if (o.equals(overlayName)) return true;
-        }
-        return false;
+        return OverlayStateRepository.getSnapshot(context).isEnabled(overlayName);
     }
 
     /*
@@ -705,6 +620,21 @@ public class ThemeManager {
         } else {
             ElevatedCommands.runThreadedCommand("pm install -r " + overlay);
         }
+        OverlayStateRepository.invalidate();
+    }
+
+    /**
+     * Install a batch of overlays at once, blocking until they have been installed
+     *
+     * @param context  Context
+     * @param overlays Signed overlay APKs
+     * @return Whether each overlay ended up installed, by APK
+     */
+    public static Map<String, Boolean> installOverlay(Context context,
+                                                      List<String> overlays) {
+        Map<String, Boolean> installed = BatchInstaller.install(context, overlays);
+        OverlayStateRepository.invalidate();
+        return installed;
     }
 
     /**
@@ -731,6 +661,7 @@ public class ThemeManager {
                 deleteBuilder.append(String.format(" %s/_%s.apk", pieDir, overlay));
             }
             Root.runCommand(deleteBuilder.toString());
+            OverlayStateRepository.invalidate();
             return;
         }
 
@@ -771,6 +702,7 @@ public class ThemeManager {
             }
             ElevatedCommands.runThreadedCommand(command.toString());
         }
+        OverlayStateRepository.invalidate();
     }
 
     /**
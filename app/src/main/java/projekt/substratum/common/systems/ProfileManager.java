@@ -37,7 +37,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import projekt.substratum.Substratum;
-import projekt.substratum.common.Packages;
+import projekt.substratum.common.OverlayMetadata;
 import projekt.substratum.common.platform.ThemeManager;
 import projekt.substratum.services.profiles.ScheduledProfileReceiver;
 
@@ -45,14 +45,6 @@ import static projekt.substratum.common.Internal.OVERLAY_PROFILE_STATE_FILE;
 import static projekt.substratum.common.Internal.PROFILE_DIRECTORY;
 import static projekt.substratum.common.Internal.XML_SERIALIZER;
 import static projekt.substratum.common.Internal.XML_UTF;
-import static projekt.substratum.common.References.metadataOverlayParent;
-import static projekt.substratum.common.References.metadataOverlayTarget;
-import static projekt.substratum.common.References.metadataOverlayType1a;
-import static projekt.substratum.common.References.metadataOverlayType1b;
-import static projekt.substratum.common.References.metadataOverlayType1c;
-import static projekt.substratum.common.References.metadataOverlayType2;
-import static projekt.substratum.common.References.metadataOverlayType3;
-import static projekt.substratum.common.References.metadataOverlayType4;
 import static projekt.substratum.common.platform.ThemeManager.STATE_DISABLED;
 import static projekt.substratum.common.platform.ThemeManager.STATE_ENABLED;
 
@@ -265,7 +257,6 @@ public class ProfileManager {
      * @param context     Context
      * @param profileName Profile name
      */
-    @SuppressWarnings("RedundantCast")
     public static void writeProfileState(Context context,
                                          String profileName) {
         try {
@@ -283,43 +274,7 @@ public class ProfileManager {
                 if (!enabled.isEmpty()) {
                     xmlSerializer.startTag(null, METADATA_PROFILE_ENABLED);
                     for (String packageName : enabled) {
-                        String target = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayTarget);
-                        String parent = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayParent);
-                        String type1a = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType1a);
-                        String type1b = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType1b);
-                        String type1c = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType1c);
-                        String type2 = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType2);
-                        String type3 = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType3);
-                        String type4 = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType4);
-
-                        xmlSerializer.startTag(null, METADATA_PROFILE_ITEM)
-                                .attribute(null, METADATA_PROFILE_PACKAGE_NAME,
-                                        String.valueOf((Object) packageName))
-                                .attribute(null, METADATA_PROFILE_TARGET,
-                                        String.valueOf((Object) target))
-                                .attribute(null, METADATA_PROFILE_PARENT,
-                                        String.valueOf((Object) parent))
-                                .attribute(null, METADATA_PROFILE_TYPE1A,
-                                        String.valueOf((Object) type1a))
-                                .attribute(null, METADATA_PROFILE_TYPE1B,
-                                        String.valueOf((Object) type1b))
-                                .attribute(null, METADATA_PROFILE_TYPE1C,
-                                        String.valueOf((Object) type1c))
-                                .attribute(null, METADATA_PROFILE_TYPE2,
-                                        String.valueOf((Object) type2))
-                                .attribute(null, METADATA_PROFILE_TYPE3,
-                                        String.valueOf((Object) type3))
-                                .attribute(null, METADATA_PROFILE_TYPE4,
-                                        String.valueOf((Object) type4))
-                                .endTag(null, METADATA_PROFILE_ITEM);
+                        writeOverlayState(context, xmlSerializer, packageName);
                     }
                     xmlSerializer.endTag(null, METADATA_PROFILE_ENABLED);
                 }
@@ -329,43 +284,7 @@ public class ProfileManager {
                 if (!disabled.isEmpty()) {
                     xmlSerializer.startTag(null, METADATA_PROFILE_DISABLED);
                     for (String packageName : disabled) {
-                        String target = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayTarget);
-                        String parent = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayParent);
-                        String type1a = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType1a);
-                        String type1b = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType1b);
-                        String type1c = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType1c);
-                        String type2 = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType2);
-                        String type3 = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType3);
-                        String type4 = Packages.getOverlayMetadata(
-                                context, packageName, metadataOverlayType4);
-
-                        xmlSerializer.startTag(null, METADATA_PROFILE_ITEM)
-                                .attribute(null, METADATA_PROFILE_PACKAGE_NAME,
-                                        String.valueOf((Object) packageName))
-                                .attribute(null, METADATA_PROFILE_TARGET,
-                                        String.valueOf((Object) target))
-                                .attribute(null, METADATA_PROFILE_PARENT,
-                                        String.valueOf((Object) parent))
-                                .attribute(null, METADATA_PROFILE_TYPE1A,
-                                        String.valueOf((Object) type1a))
-                                .attribute(null, METADATA_PROFILE_TYPE1B,
-                                        String.valueOf((Object) type1b))
-                                .attribute(null, METADATA_PROFILE_TYPE1C,
-                                        String.valueOf((Object) type1c))
-                                .attribute(null, METADATA_PROFILE_TYPE2,
-                                        String.valueOf((Object) type2))
-                                .attribute(null, METADATA_PROFILE_TYPE3,
-                                        String.valueOf((Object) type3))
-                                .attribute(null, METADATA_PROFILE_TYPE4,
-                                        String.valueOf((Object) type4))
-                                .endTag(null, METADATA_PROFILE_ITEM);
+                        writeOverlayState(context, xmlSerializer, packageName);
                     }
                     xmlSerializer.endTag(null, METADATA_PROFILE_DISABLED);
                 }
@@ -378,6 +297,43 @@ public class ProfileManager {
         }
     }
 
+    /**
+     * Write the state of a single overlay of a profile
+     *
+     * @param context       Context
+     * @param xmlSerializer Serializer of the profile state
+     * @param packageName   Overlay package
+     * @throws IOException If the state could not be written
+     */
+    @SuppressWarnings("RedundantCast")
+    private static void writeOverlayState(Context context,
+                                          XmlSerializer xmlSerializer,
+                                          String packageName) throws IOException {
+        // Every value comes from a single lookup of the overlay's metadata
+        OverlayMetadata metadata = OverlayMetadata.get(context, packageName);
+        boolean found = metadata != null;
+        xmlSerializer.startTag(null, METADATA_PROFILE_ITEM)
+                .attribute(null, METADATA_PROFILE_PACKAGE_NAME,
+                        String.valueOf((Object) packageName))
+                .attribute(null, METADATA_PROFILE_TARGET,
+                        String.valueOf((Object) (found ? metadata.getTarget() : null)))
+                .attribute(null, METADATA_PROFILE_PARENT,
+                        String.valueOf((Object) (found ? metadata.getParent() : null)))
+                .attribute(null, METADATA_PROFILE_TYPE1A,
+                        String.valueOf((Object) (found ? metadata.getType1a() : null)))
+                .attribute(null, METADATA_PROFILE_TYPE1B,
+                        String.valueOf((Object) (found ? metadata.getType1b() : null)))
+                .attribute(null, METADATA_PROFILE_TYPE1C,
+                        String.valueOf((Object) (found ? metadata.getType1c() : null)))
+                .attribute(null, METADATA_PROFILE_TYPE2,
+                        String.valueOf((Object) (found ? metadata.getType2() : null)))
+                .attribute(null, METADATA_PROFILE_TYPE3,
+                        String.valueOf((Object) (found ? metadata.getType3() : null)))
+                .attribute(null, METADATA_PROFILE_TYPE4,
+                        String.valueOf((Object) (found ? metadata.getType4() : null)))
+                .endTag(null, METADATA_PROFILE_ITEM);
+    }
+
     /**
      * Read profile state
      *
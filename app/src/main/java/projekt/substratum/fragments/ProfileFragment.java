@@ -9,14 +9,10 @@ package projekt.substratum.fragments;
 
 import android.annotation.SuppressLint;
 import android.app.ProgressDialog;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
-import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
@@ -45,7 +41,6 @@ import androidx.databinding.DataBindingUtil;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.google.android.material.snackbar.Snackbar;
 
@@ -56,19 +51,15 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 import projekt.substratum.R;
 import projekt.substratum.Substratum;
 import projekt.substratum.common.Packages;
 import projekt.substratum.common.References;
 import projekt.substratum.common.Systems;
-import projekt.substratum.common.Theming;
 import projekt.substratum.common.commands.ElevatedCommands;
 import projekt.substratum.common.commands.FileOperations;
 import projekt.substratum.common.platform.SubstratumService;
@@ -78,7 +69,11 @@ import projekt.substratum.common.systems.ProfileItem;
 import projekt.substratum.common.systems.ProfileManager;
 import projekt.substratum.databinding.ProfileFragmentBinding;
 import projekt.substratum.tabs.WallpapersManager;
+import projekt.substratum.util.compilers.CompileScheduler;
+import projekt.substratum.util.compilers.CompileSession;
+import projekt.substratum.util.compilers.OverlayAssembler;
 import projekt.substratum.util.compilers.SubstratumBuilder;
+import projekt.substratum.util.compilers.ThemeDecryptor;
 import projekt.substratum.util.views.Lunchbar;
 
 import static projekt.substratum.common.Internal.ALARM_THEME_DIRECTORY;
@@ -86,13 +81,9 @@ import static projekt.substratum.common.Internal.AUDIO_THEME_DIRECTORY;
 import static projekt.substratum.common.Internal.BOOTANIMATION;
 import static projekt.substratum.common.Internal.BOOTANIMATION_BU_LOCATION;
 import static projekt.substratum.common.Internal.BOOTANIMATION_LOCATION;
-import static projekt.substratum.common.Internal.CIPHER_ALGORITHM;
-import static projekt.substratum.common.Internal.ENCRYPTED_FILE_EXTENSION;
-import static projekt.substratum.common.Internal.ENCRYPTION_KEY_EXTRA;
 import static projekt.substratum.common.Internal.FONTS_THEME_DIRECTORY;
 import static projekt.substratum.common.Internal.HIDDEN_FOLDER;
 import static projekt.substratum.common.Internal.HOME_WALLPAPER;
-import static projekt.substratum.common.Internal.IV_ENCRYPTION_KEY_EXTRA;
 import static projekt.substratum.common.Internal.LOCK_WALL;
 import static projekt.substratum.common.Internal.LOCK_WALLPAPER;
 import static projekt.substratum.common.Internal.LOCK_WALLPAPER_FILE_NAME;
@@ -106,8 +97,6 @@ import static projekt.substratum.common.Internal.PROFILE_BOOTANIMATIONS;
 import static projekt.substratum.common.Internal.PROFILE_DIRECTORY;
 import static projekt.substratum.common.Internal.PROFILE_FONTS;
 import static projekt.substratum.common.Internal.RINGTONE_THEME_DIRECTORY;
-import static projekt.substratum.common.Internal.SECRET_KEY_SPEC;
-import static projekt.substratum.common.Internal.SPECIAL_SNOWFLAKE_DELAY;
 import static projekt.substratum.common.Internal.SYSTEM_OVERLAY;
 import static projekt.substratum.common.Internal.SYSTEM_VENDOR_OVERLAY;
 import static projekt.substratum.common.Internal.THEME_644;
@@ -118,7 +107,6 @@ import static projekt.substratum.common.Internal.USERS_DIR;
 import static projekt.substratum.common.Internal.WALLPAPER_DIR;
 import static projekt.substratum.common.Internal.WALLPAPER_FILE_NAME;
 import static projekt.substratum.common.References.EXTERNAL_STORAGE_CACHE;
-import static projekt.substratum.common.References.KEY_RETRIEVAL;
 import static projekt.substratum.common.References.LEGACY_NEXUS_DIR;
 import static projekt.substratum.common.References.PIXEL_NEXUS_DIR;
 import static projekt.substratum.common.References.SUBSTRATUM_BUILDER_CACHE;
@@ -1036,34 +1024,12 @@ public class ProfileFragment extends Fragment {
      */
     private static class ContinueRestore extends AsyncTask<Void, String, Void> {
         private static final String TAG = "ContinueRestore";
-        private final Handler handler = new Handler();
+        private static final long KEY_TIMEOUT = 2500L;
         private final WeakReference<ProfileFragment> ref;
         private String profileName;
         private List<List<String>> toBeCompiled;
         private ArrayList<String> toBeRun;
         private ProgressDialog progressDialog;
-        private LocalBroadcastManager localBroadcastManager;
-        private KeyRetrieval keyRetrieval;
-        private Intent securityIntent;
-        private final Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                Substratum.log(TAG, "Waiting for encryption key handshake approval...");
-                if (securityIntent != null) {
-                    Substratum.log(TAG, "Encryption key handshake approved!");
-                    handler.removeCallbacks(runnable);
-                } else {
-                    Substratum.log(TAG, "Encryption key still null...");
-                    try {
-                        Thread.sleep(500L);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    handler.postDelayed(this, 100L);
-                }
-            }
-        };
-        private Cipher cipher;
         private boolean needToWait;
 
         // Restore wallpaper
@@ -1113,9 +1079,6 @@ public class ProfileFragment extends Fragment {
                 }
                 if (toBeCompiled != null) {
                     needToWait = Substratum.needToWaitInstall();
-                    if (needToWait) {
-                        Substratum.getInstance().registerFinishReceiver();
-                    }
                 }
             }
         }
@@ -1135,7 +1098,14 @@ public class ProfileFragment extends Fragment {
                     Map<String, ProfileItem> items =
                             ProfileManager.readProfileState(profileName, STATE_ENABLED);
 
-                    String prevTheme = "";
+                    Map<String, OverlayAssembler> assemblers = new HashMap<>();
+                    CompileSession session = CompileSession.create(profileFragment.context);
+                    // Install each overlay while the next one is being compiled
+                    CompileScheduler scheduler = new CompileScheduler(profileFragment.context, 1);
+                    toBeCompiled = CompileScheduler.sortByTarget(toBeCompiled, entry -> {
+                        ProfileItem item = items.get(entry.get(0));
+                        return (item != null) ? item.getTargetPackage() : entry.get(0);
+                    });
                     for (int i = 0; i < toBeCompiled.size(); i++) {
                         String compilePackage = toBeCompiled.get(i).get(0);
                         ProfileItem currentItem = items.get(compilePackage);
@@ -1149,111 +1119,18 @@ public class ProfileFragment extends Fragment {
                         publishProgress(format);
 
                         String theme = currentItem.getParentTheme();
-
-                        boolean encrypted = false;
-                        String encryptCheck =
-                                Packages.getOverlayMetadata(
-                                        profileFragment.context, theme, metadataEncryption);
-
-                        if ((encryptCheck != null) && encryptCheck.equals
-                                (metadataEncryptionValue) &&
-                                !theme.equals(prevTheme)) {
-                            prevTheme = theme;
-                            Substratum.log(TAG, "This overlay for " +
-                                    Packages.getPackageName(profileFragment.context, theme) +
-                                    " is encrypted, passing handshake to the theme package...");
-                            encrypted = true;
-
-                            Theming.getThemeKeys(profileFragment.context, theme);
-
-                            keyRetrieval = new KeyRetrieval();
-                            IntentFilter if1 = new IntentFilter(KEY_RETRIEVAL);
-                            localBroadcastManager = LocalBroadcastManager.getInstance(
-                                    profileFragment.context);
-                            localBroadcastManager.registerReceiver(keyRetrieval, if1);
-
-                            handler.postDelayed(runnable, 100L);
-                            int counter = 0;
-                            while ((securityIntent == null) && (counter < 5)) {
-                                try {
-                                    Thread.sleep(500L);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                                counter++;
-                            }
-                            if (counter > 5) {
-                                Log.e(TAG, "Could not receive handshake in time...");
-                                return null;
-                            }
-
-                            if (securityIntent != null) {
-                                try {
-                                    byte[] encryptionKey =
-                                            securityIntent.getByteArrayExtra(ENCRYPTION_KEY_EXTRA);
-                                    byte[] ivEncryptKey =
-                                            securityIntent.getByteArrayExtra(
-                                                    IV_ENCRYPTION_KEY_EXTRA);
-
-                                    cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-                                    cipher.init(
-                                            Cipher.DECRYPT_MODE,
-                                            new SecretKeySpec(encryptionKey, SECRET_KEY_SPEC),
-                                            new IvParameterSpec(ivEncryptKey)
-                                    );
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                    return null;
-                                }
-                            }
+                        if (!assemblers.containsKey(theme)) {
+                            assemblers.put(theme, createAssembler(
+                                    profileFragment.context, session, theme));
                         }
-
-                        Resources themeResources = null;
-                        try {
-                            themeResources = profileFragment.context.getPackageManager()
-                                    .getResourcesForApplication(theme);
-                        } catch (PackageManager.NameNotFoundException e) {
-                            e.printStackTrace();
+                        OverlayAssembler assembler = assemblers.get(theme);
+                        if (assembler == null) {
+                            scheduler.awaitCompletion();
+                            session.close();
+                            return null;
                         }
-                        assert themeResources != null;
-                        AssetManager themeAssetManager = themeResources.getAssets();
 
                         String target = currentItem.getTargetPackage();
-                        String type1a = currentItem.getType1a();
-                        String type1b = currentItem.getType1b();
-                        String type1c = currentItem.getType1c();
-                        String type2 = currentItem.getType2();
-                        String type3 = currentItem.getType3();
-                        String type4 = currentItem.getType4();
-
-                        String type1aDir = "overlays/" + target + "/type1a_" + type1a +
-                                (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
-                        String type1bDir = "overlays/" + target + "/type1b_" + type1b +
-                                (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
-                        String type1cDir = "overlays/" + target + "/type1c_" + type1c +
-                                (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
-
-                        String additionalVariant = (!type2.isEmpty() ? type2 : null);
-                        String baseVariant = (!type3.isEmpty() ? type3 : null);
-
-                        // Pre-notions
-                        String suffix;
-                        boolean useType3CommonDir = false;
-                        if (type3.length() > 0) {
-                            try {
-                                useType3CommonDir = themeAssetManager.list(
-                                        "overlays/" + target + "/type3-common").length > 0;
-                            } catch (IOException e) {
-                                //
-                            }
-                            if (useType3CommonDir) {
-                                suffix = "/type3-common";
-                            } else {
-                                suffix = "/type3_" + type3;
-                            }
-                        } else {
-                            suffix = "/res";
-                        }
                         String workingDirectory =
                                 profileFragment.context.getCacheDir().getAbsolutePath() +
                                         SUBSTRATUM_BUILDER_CACHE.substring(0,
@@ -1266,72 +1143,23 @@ public class ProfileFragment extends Fragment {
                         FileOperations.createNewFolder(
                                 profileFragment.context, created.getAbsolutePath());
 
-                        // Handle the resource folder
-                        String listDir = "overlays/" + target + suffix;
-                        FileOperations.copyFileOrDir(
-                                themeAssetManager,
-                                listDir,
-                                workingDirectory + suffix,
-                                listDir,
-                                cipher);
-
-                        if (useType3CommonDir) {
-                            String type3Dir = "overlays/" + target + "/type3_" + type3;
-                            FileOperations.copyFileOrDir(
-                                    themeAssetManager,
-                                    type3Dir,
-                                    workingDirectory + suffix,
-                                    type3Dir,
-                                    cipher
-                            );
-                        }
-
-                        // Handle the type1s
-                        if (!type1a.isEmpty()) {
-                            FileOperations.copyFileOrDir(
-                                    themeAssetManager,
-                                    type1aDir,
-                                    workingDirectory + suffix + "/values/type1a.xml",
-                                    type1aDir,
-                                    cipher);
-                        }
-                        if (!type1b.isEmpty()) {
-                            FileOperations.copyFileOrDir(
-                                    themeAssetManager,
-                                    type1bDir,
-                                    workingDirectory + suffix + "/values/type1b.xml",
-                                    type1bDir,
-                                    cipher);
-                        }
-                        if (!type1c.isEmpty()) {
-                            FileOperations.copyFileOrDir(
-                                    themeAssetManager,
-                                    type1cDir,
-                                    workingDirectory + suffix + "/values/type1c.xml",
-                                    type1cDir,
-                                    cipher);
+                        SubstratumBuilder sb;
+                        try {
+                            sb = assembler.build(
+                                    workingDirectory,
+                                    target,
+                                    currentItem.getType3(),
+                                    currentItem.getType1a(),
+                                    currentItem.getType1b(),
+                                    currentItem.getType1c(),
+                                    currentItem.getType2(),
+                                    currentItem.getType4(),
+                                    compilePackage);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            Substratum.log(TAG, "Failed to compile profile...");
+                            continue;
                         }
-
-                        SubstratumBuilder sb = new SubstratumBuilder(profileFragment.context);
-                        sb.beginAction(
-                                target,
-                                Packages.getPackageName(profileFragment.context, theme),
-                                compilePackage,
-                                additionalVariant,
-                                baseVariant,
-                                Packages.getAppVersion(profileFragment.context,
-                                        currentItem.getParentTheme()),
-                                theme,
-                                suffix,
-                                type1a,
-                                type1b,
-                                type1c,
-                                type2,
-                                type3,
-                                type4,
-                                compilePackage,
-                                false
-                        );
                         if (sb.hasErroredOut) {
                             // TODO: Handle failed compilation
                             Substratum.log(TAG, "Failed to compile profile...");
@@ -1340,22 +1168,16 @@ public class ProfileFragment extends Fragment {
                                 profileFragment.lateInstall.add(sb.noInstall);
                                 toBeRun.add(compilePackage);
                             } else {
-                                if (needToWait) {
-                                    // Thread wait
-                                    Substratum.startWaitingInstall();
-                                    do {
-                                        try {
-                                            Thread.sleep(SPECIAL_SNOWFLAKE_DELAY);
-                                        } catch (InterruptedException e) {
-                                            Thread.currentThread().interrupt();
-                                        }
-                                    } while (Substratum.isWaitingInstall());
+                                if (!sb.pendingInstall.isEmpty()) {
+                                    scheduler.install(target, sb.pendingInstall, needToWait);
                                 }
                                 // Add current package to enable queue
                                 toBeRun.add(compilePackage);
                             }
                         }
                     }
+                    scheduler.awaitCompletion();
+                    session.close();
                 }
 
                 publishProgress(profileFragment.getString(R.string.profile_compile_processing));
@@ -1379,6 +1201,47 @@ public class ProfileFragment extends Fragment {
             }
         }
 
+        /**
+         * Prepare the building of the overlays of a theme, asking an encrypted theme for its keys
+         *
+         * @param context Context
+         * @param session Package snapshot shared by the restore
+         * @param theme   Theme package
+         * @return Assembler of the theme, or null if the theme can not be built from
+         */
+        private static OverlayAssembler createAssembler(Context context,
+                                                        CompileSession session,
+                                                        String theme) {
+            AssetManager themeAssetManager;
+            try {
+                themeAssetManager = context.getPackageManager()
+                        .getResourcesForApplication(theme).getAssets();
+            } catch (PackageManager.NameNotFoundException e) {
+                e.printStackTrace();
+                return null;
+            }
+            ThemeDecryptor decryptor = null;
+            if (metadataEncryptionValue.equals(
+                    Packages.getOverlayMetadata(context, theme, metadataEncryption))) {
+                Substratum.log(TAG, "This overlay for " +
+                        Packages.getPackageName(context, theme) +
+                        " is encrypted, passing handshake to the theme package...");
+                decryptor = ThemeDecryptor.requestKeys(context, theme, KEY_TIMEOUT);
+                if (decryptor == null) {
+                    Log.e(TAG, "Could not receive handshake in time...");
+                    return null;
+                }
+            }
+            return new OverlayAssembler(
+                    context,
+                    session,
+                    themeAssetManager,
+                    decryptor,
+                    theme,
+                    Packages.getPackageName(context, theme),
+                    Packages.getAppVersion(context, theme));
+        }
+
         void continueProcess() {
             ProfileFragment profileFragment = ref.get();
             if (profileFragment.isAdded()) {
@@ -1404,24 +1267,15 @@ public class ProfileFragment extends Fragment {
                     FileOperations.mountSystemRO();
                 }
 
-                // Late install
-                for (String o : profileFragment.lateInstall) {
-                    ThemeManager.installOverlay(profileFragment.context, o);
-                    if (Substratum.needToWaitInstall()) {
-                        // Wait until the overlays to fully install so on compile enable
-                        // mode it can be enabled after.
-                        Substratum.startWaitingInstall();
-                        do {
-                            try {
-                                Thread.sleep(SPECIAL_SNOWFLAKE_DELAY);
-                            } catch (InterruptedException e) {
-                                // Still waiting
-                            }
-                        } while (Substratum.isWaitingInstall());
+                // Late install, as one batch that returns once every overlay is installed
+                Map<String, Boolean> results = ThemeManager.installOverlay(
+                        profileFragment.context, profileFragment.lateInstall);
+                for (Map.Entry<String, Boolean> result : results.entrySet()) {
+                    if (!result.getValue()) {
+                        Log.e(TAG, "Late install of \"" + result.getKey() + "\" has failed.");
                     }
                 }
 
-                Substratum.getInstance().unregisterFinishReceiver();
                 ArrayList<String> toBeDisabled =
                         new ArrayList<>(ThemeManager.listOverlays(
                                 profileFragment.context, ThemeManager.STATE_ENABLED));
@@ -1485,12 +1339,5 @@ public class ProfileFragment extends Fragment {
                 }
             }
         }
-
-        class KeyRetrieval extends BroadcastReceiver {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                securityIntent = intent;
-            }
-        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.services.packages;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.os.AsyncTask;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.Packages;
+import projekt.substratum.common.platform.ThemeManager;
+import projekt.substratum.util.compilers.CompileJournal;
+import projekt.substratum.util.compilers.CompileScheduler;
+import projekt.substratum.util.compilers.CompileSession;
+import projekt.substratum.util.compilers.OverlayAssembler;
+import projekt.substratum.util.compilers.SubstratumBuilder;
+import projekt.substratum.util.compilers.ThemeDecryptor;
+
+import static projekt.substratum.common.References.metadataEncryption;
+import static projekt.substratum.common.References.metadataEncryptionValue;
+
+/**
+ * Picks up the overlay batches that were cut short by the process dying or the device rebooting.
+ * <p>
+ * The {@link CompileJournal} of each batch tells which overlays have yet to be built. Overlays that
+ * have been installed since the batch started are skipped, the others are built and installed the
+ * same way the overlay manager would have, and enabled afterwards if that was what the batch was
+ * meant to do.
+ */
+public class CompileResumeService extends JobService {
+
+    private static final int JOB_ID = 1024;
+    private static final String TAG = "CompileResume";
+    private static final long KEY_TIMEOUT = 2500L;
+    private JobParameters jobParameters;
+
+    /**
+     * Schedule the resumption of the interrupted batch, if there is one
+     *
+     * @param context Context
+     */
+    public static void schedule(Context context) {
+        if (CompileJournal.readInterrupted(context).isEmpty()) return;
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CompileResumeService.class))
+                .setMinimumLatency(5000L)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler != null) {
+            Substratum.log(TAG, "Interrupted compile batches will be resumed...");
+            jobScheduler.schedule(jobInfo);
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        jobParameters = params;
+        new ResumeBatch(this).execute();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return true;
+    }
+
+    private static class ResumeBatch extends AsyncTask<Void, Void, Void> {
+        private final WeakReference<CompileResumeService> ref;
+
+        ResumeBatch(CompileResumeService service) {
+            super();
+            ref = new WeakReference<>(service);
+        }
+
+        /**
+         * Check whether an overlay has been installed after its batch was started
+         *
+         * @param context        Context
+         * @param overlayPackage Overlay package
+         * @param since          Time the batch was started at
+         * @return True, if the overlay does not need to be built again
+         */
+        private static boolean isInstalledSince(Context context,
+                                                String overlayPackage,
+                                                long since) {
+            try {
+                return context.getPackageManager().getPackageInfo(overlayPackage, 0)
+                        .lastUpdateTime >= since;
+            } catch (PackageManager.NameNotFoundException ignored) {
+                return false;
+            }
+        }
+
+        /**
+         * Build the overlays of an interrupted batch that have yet to be built
+         *
+         * @param context Context
+         * @param batch   Batch read from its journal
+         */
+        private static void resume(Context context, CompileJournal.Batch batch) {
+            CompileJournal journal = CompileJournal.resume(context, batch);
+            if (journal == null) return;
+
+            String theme = batch.getThemePackage();
+            AssetManager themeAssetManager;
+            try {
+                themeAssetManager = context.getPackageManager()
+                        .getResourcesForApplication(theme).getAssets();
+            } catch (PackageManager.NameNotFoundException e) {
+                Substratum.log(TAG, "The theme of the interrupted batch is gone, dropping it...");
+                journal.finish();
+                return;
+            }
+            ThemeDecryptor decryptor = null;
+            if (metadataEncryptionValue.equals(
+                    Packages.getOverlayMetadata(context, theme, metadataEncryption))) {
+                decryptor = ThemeDecryptor.requestKeys(context, theme, KEY_TIMEOUT);
+                if (decryptor == null) {
+                    // Try again the next time the app is started
+                    journal.suspend();
+                    return;
+                }
+            }
+
+            CompileScheduler scheduler = new CompileScheduler(context);
+            CompileSession session = CompileSession.create(context);
+            OverlayAssembler assembler = new OverlayAssembler(
+                    context,
+                    session,
+                    themeAssetManager,
+                    decryptor,
+                    theme,
+                    Packages.getPackageName(context, theme),
+                    Packages.getAppVersion(context, theme));
+            List<String> built = Collections.synchronizedList(new ArrayList<>());
+            boolean waitForInstall = Substratum.needToWaitInstall() || batch.shouldEnable();
+            int resumed = 0;
+            for (CompileJournal.Entry entry : batch.getEntries()) {
+                if ((entry.getStage() == CompileJournal.Stage.FAILED) ||
+                        (entry.getStage() == CompileJournal.Stage.INSTALLED)) {
+                    continue;
+                }
+                if (isInstalledSince(context, entry.getOverlayPackage(), batch.getStart())) {
+                    journal.advance(entry.getId(), CompileJournal.Stage.INSTALLED);
+                    built.add(entry.getOverlayPackage());
+                    continue;
+                }
+                resumed++;
+                scheduler.submit(workArea -> {
+                    SubstratumBuilder compileInstance = assembler.build(
+                            workArea,
+                            entry.getOverlayFolder(),
+                            entry.getVariant(),
+                            entry.getType1a(),
+                            entry.getType1b(),
+                            entry.getType1c(),
+                            entry.getType2(),
+                            entry.getType4(),
+                            null);
+                    if (compileInstance.hasErroredOut) {
+                        journal.advance(entry.getId(), CompileJournal.Stage.FAILED);
+                        return;
+                    }
+                    journal.advance(entry.getId(), CompileJournal.Stage.COMPILED);
+                    String apk = !compileInstance.pendingInstall.isEmpty() ?
+                            compileInstance.pendingInstall : compileInstance.noInstall;
+                    if (!apk.isEmpty()) {
+                        // Only overlays the package manager is known to hold can be enabled
+                        scheduler.install(entry.getOverlayFolder(), apk, waitForInstall, () -> {
+                            journal.advance(entry.getId(), CompileJournal.Stage.INSTALLED);
+                            built.add(entry.getOverlayPackage());
+                        });
+                    }
+                });
+            }
+            scheduler.awaitCompletion();
+            session.close();
+            if (batch.shouldEnable() && !built.isEmpty()) {
+                ThemeManager.enableOverlay(context, new ArrayList<>(built));
+            }
+            journal.finish();
+            Substratum.log(TAG, "Resumed " + resumed + " overlays of an interrupted batch");
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            CompileResumeService service = ref.get();
+            if (service == null) return null;
+            Context context = service.getApplicationContext();
+            for (CompileJournal.Batch batch : CompileJournal.readInterrupted(context)) {
+                resume(context, batch);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            CompileResumeService service = ref.get();
+            if (service != null) {
+                service.jobFinished(service.jobParameters, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.services.packages;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.OverlayMetadata;
+import projekt.substratum.util.compilers.CompileSession;
+
+import static projekt.substratum.common.Internal.OVERLAYS_DIR;
+import static projekt.substratum.common.References.metadataOverlayDigest;
+import static projekt.substratum.common.References.metadataOverlaySource;
+
+/**
+ * Picks the installed overlays that a theme update has actually changed.
+ * <p>
+ * Every overlay records the theme folder it was built from, along with a digest of that folder.
+ * After the theme has been updated, the digest of the same folder is created again from the new
+ * APK and compared with the recorded one, along with the overlay version the theme ships for the
+ * target. Only overlays whose inputs differ, or that were built before digests were recorded, have
+ * to be rebuilt.
+ */
+final class OverlayUpdatePlanner {
+
+    private static final String TAG = "OverlayUpdater";
+
+    private OverlayUpdatePlanner() {
+    }
+
+    /**
+     * Filter the overlays of a theme down to the ones that are out of date
+     *
+     * @param context           Context
+     * @param session           Snapshot taken after the theme has been updated
+     * @param themePackage      Theme package
+     * @param installedOverlays Overlays of the theme that are installed
+     * @return Overlays that have to be rebuilt
+     */
+    static List<String> plan(Context context,
+                             CompileSession session,
+                             String themePackage,
+                             List<String> installedOverlays) {
+        List<String> outdated = new ArrayList<>();
+        for (String overlay : installedOverlays) {
+            OverlayMetadata metadata = OverlayMetadata.get(context, overlay);
+            if ((metadata == null) || !isUpToDate(session, themePackage, metadata)) {
+                outdated.add(overlay);
+            } else {
+                Substratum.log(TAG, "Inputs of " + overlay + " have not changed, skipping...");
+            }
+        }
+        Substratum.log(TAG, outdated.size() + " of " + installedOverlays.size() +
+                " overlays have to be rebuilt for " + themePackage);
+        return outdated;
+    }
+
+    private static boolean isUpToDate(CompileSession session,
+                                      String themePackage,
+                                      OverlayMetadata metadata) {
+        String recorded = metadata.getString(metadataOverlayDigest);
+        // Overlays such as the SystemUI headers are built from a folder of their own, which is
+        // not named after the target
+        String source = metadata.getString(metadataOverlaySource);
+        String target = metadata.getTarget();
+        if ((recorded == null) || (source == null) || (target == null) ||
+                !themePackage.equals(metadata.getParent())) {
+            return false;
+        }
+        if (metadata.getVersion() !=
+                session.getOverlayVersion(themePackage, target)) {
+            return false;
+        }
+        return recorded.equals(session.getAssetExtractor(themePackage)
+                .digest(OVERLAYS_DIR + '/' + source));
+    }
+}
@@ -21,51 +21,41 @@ import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.os.AsyncTask;
-import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import projekt.substratum.R;
 import projekt.substratum.Substratum;
+import projekt.substratum.common.OverlayMetadata;
 import projekt.substratum.common.Packages;
 import projekt.substratum.common.References;
 import projekt.substratum.common.Systems;
-import projekt.substratum.common.Theming;
-import projekt.substratum.common.commands.FileOperations;
 import projekt.substratum.common.platform.ThemeManager;
+import projekt.substratum.util.compilers.CompileDiagnostics;
+import projekt.substratum.util.compilers.CompileScheduler;
+import projekt.substratum.util.compilers.CompileSession;
 import projekt.substratum.util.compilers.SubstratumBuilder;
+import projekt.substratum.util.compilers.ThemeAssetExtractor;
+import projekt.substratum.util.compilers.ThemeDecryptor;
 
-import static projekt.substratum.common.Internal.CIPHER_ALGORITHM;
 import static projekt.substratum.common.Internal.ENCRYPTED_FILE_EXTENSION;
-import static projekt.substratum.common.Internal.ENCRYPTION_KEY_EXTRA;
-import static projekt.substratum.common.Internal.IV_ENCRYPTION_KEY_EXTRA;
 import static projekt.substratum.common.Internal.OVERLAYS_DIR;
-import static projekt.substratum.common.Internal.SECRET_KEY_SPEC;
 import static projekt.substratum.common.References.DEFAULT_NOTIFICATION_CHANNEL_ID;
-import static projekt.substratum.common.References.KEY_RETRIEVAL;
 import static projekt.substratum.common.References.PACKAGE_ADDED;
-import static projekt.substratum.common.References.SUBSTRATUM_BUILDER_CACHE;
 import static projekt.substratum.common.References.metadataEncryption;
 import static projekt.substratum.common.References.metadataEncryptionValue;
 import static projekt.substratum.common.References.metadataOverlayDevice;
 import static projekt.substratum.common.References.metadataOverlayParent;
-import static projekt.substratum.common.References.metadataOverlayTarget;
-import static projekt.substratum.common.References.metadataOverlayType1a;
-import static projekt.substratum.common.References.metadataOverlayType1b;
-import static projekt.substratum.common.References.metadataOverlayType1c;
-import static projekt.substratum.common.References.metadataOverlayType2;
-import static projekt.substratum.common.References.metadataOverlayType3;
-import static projekt.substratum.common.References.metadataOverlayType4;
 
 public class OverlayUpdater extends BroadcastReceiver {
 
@@ -74,6 +64,9 @@ public class OverlayUpdater extends BroadcastReceiver {
     private static final String THEME_UPGRADE = "ThemeUpgrade";
     private static final Integer APP_UPGRADE_NOTIFICATION_ID = 24768941;
     private static final Integer THEME_UPGRADE_NOTIFICATION_ID = 13573743;
+    private static final long KEY_TIMEOUT = 2500L;
+    private static final long NOTIFICATION_INTERVAL = 1000L;
+    private static final int UPDATE_DIAGNOSTICS = 128;
     private static final SharedPreferences prefs = Substratum.getPreferences();
 
     @Override
@@ -130,35 +123,14 @@ public class OverlayUpdater extends BroadcastReceiver {
         @SuppressLint("StaticFieldLeak")
         private final Context context;
         private final String packageName;
-        private final StringBuilder errorLogs = new StringBuilder();
+        private final CompileDiagnostics diagnostics = new CompileDiagnostics(UPDATE_DIAGNOSTICS);
         private final int id;
-        private final Handler handler = new Handler();
         private NotificationManager notificationManager;
         private NotificationCompat.Builder builder;
         private List<String> installedOverlays;
         private List<String> erroredPackages;
-        private LocalBroadcastManager localBroadcastManager;
-        private KeyRetrieval keyRetrieval;
-        private Intent securityIntent;
-        private final Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                Substratum.log(TAG, "Waiting for encryption key handshake approval...");
-                if (securityIntent != null) {
-                    Substratum.log(TAG, "Encryption key handshake approved!");
-                    handler.removeCallbacks(runnable);
-                } else {
-                    Substratum.log(TAG, "Encryption key still null...");
-                    try {
-                        Thread.sleep(500L);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    handler.postDelayed(this, 100L);
-                }
-            }
-        };
-        private Cipher cipher;
+        private volatile String lastOverlay;
+        private long lastNotification;
         private String upgradeMode;
 
         OverlayUpdate(Context context, String packageName, String mode, final
@@ -184,7 +156,7 @@ public class OverlayUpdater extends BroadcastReceiver {
             }
             if ((upgradeMode != null) && upgradeMode != null && !upgradeMode
                     .isEmpty() && !installedOverlays.isEmpty()) {
-                erroredPackages = new ArrayList<>();
+                erroredPackages = Collections.synchronizedList(new ArrayList<>());
                 notificationManager = (NotificationManager) context.getSystemService(
                         Context.NOTIFICATION_SERVICE);
                 builder = new NotificationCompat.Builder(context,
@@ -202,10 +174,40 @@ public class OverlayUpdater extends BroadcastReceiver {
                         .setPriority(notificationPriority)
                         .setOngoing(true);
                 notificationManager.notify(id, builder.build());
+            }
+        }
 
-                localBroadcastManager = LocalBroadcastManager.getInstance(context);
-
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            int done = values[0];
+            int total = values[1];
+            // Overlays finish side by side, so only post the latest one every now and then
+            long now = SystemClock.elapsedRealtime();
+            if (((now - lastNotification) < NOTIFICATION_INTERVAL) && (done < total)) return;
+            lastNotification = now;
+            String overlay = lastOverlay;
+            if (overlay == null) return;
+
+            builder.setProgress(100, (int) (((double) done / (double) total) * 100.0), false);
+            switch (upgradeMode) {
+                case APP_UPGRADE:
+                    builder.setContentText(
+                            Packages.getPackageName(context, packageName) + " " +
+                                    "(" +
+                                    Packages.getPackageName(
+                                            context,
+                                            Packages.getOverlayParent(context, overlay)
+                                    ) + ')');
+                    break;
+                case THEME_UPGRADE:
+                    String target = Packages.getOverlayTarget(context, overlay);
+                    builder.setContentText(Packages.getPackageName(context, target));
+                    builder.setLargeIcon(
+                            Packages.getBitmapFromVector(
+                                    Packages.getAppIcon(context, target)));
+                    break;
             }
+            notificationManager.notify(id, builder.build());
         }
 
         @Override
@@ -238,7 +240,7 @@ public class OverlayUpdater extends BroadcastReceiver {
                             context.getString(R.string.notification_done_upgrade_title_failed),
                             stringBuilder.toString()));
                     Intent intent = new Intent("Updater.LOGS");
-                    intent.putExtra("error_logs", errorLogs.toString());
+                    intent.putExtra("error_logs", diagnostics.toString());
                     PendingIntent pintent = PendingIntent.getActivity(context, 0,
                             intent, PendingIntent.FLAG_ONE_SHOT);
                     builder.setContentIntent(pintent);
@@ -271,283 +273,194 @@ public class OverlayUpdater extends BroadcastReceiver {
             if (!installedOverlays.isEmpty()) {
                 Substratum.log(TAG, '\'' + packageName +
                         "' was just updated with overlays present, updating...");
-                for (int i = 0; i < installedOverlays.size(); i++) {
-                    Substratum.log(TAG, "Current overlay found in stash: " + installedOverlays.get(i));
-
-                    builder.setProgress(100, (int) (((double) (i + 1) /
-                            (double) installedOverlays.size()) * 100.0), false);
-
-                    switch (upgradeMode) {
-                        case APP_UPGRADE:
-                            builder.setContentText(
-                                    Packages.getPackageName(context, packageName) + " " +
-                                            "(" +
-                                            Packages.getPackageName(
-                                                    context,
-                                                    Packages.getOverlayParent(
-                                                            context,
-                                                            installedOverlays.get(i))
-                                            ) + ')');
-                            break;
-                        case THEME_UPGRADE:
-                            builder.setContentText(
-                                    Packages.getPackageName(context,
-                                            Packages.getOverlayTarget(
-                                                    context,
-                                                    installedOverlays.get(i))));
-                            builder.setLargeIcon(
-                                    Packages.getBitmapFromVector(
-                                            Packages.getAppIcon(
-                                                    context,
-                                                    Packages.getOverlayTarget(
-                                                            context,
-                                                            installedOverlays.get(i)))));
-                            break;
-                    }
-                    notificationManager.notify(id, builder.build());
-
+                CompileSession session = CompileSession.create(context);
+
+                // A theme update only has to rebuild the overlays whose assets it has changed,
+                // while an app update keeps rebuilding every overlay for the app
+                List<String> outdated = upgradeMode.equals(THEME_UPGRADE) ?
+                        OverlayUpdatePlanner.plan(context, session, packageName,
+                                installedOverlays) :
+                        installedOverlays;
+
+                CompileScheduler scheduler = new CompileScheduler(context);
+                Map<String, ThemeDecryptor> decryptors = new HashMap<>();
+                AtomicInteger done = new AtomicInteger();
+                for (String overlay : outdated) {
+                    Substratum.log(TAG, "Current overlay found in stash: " + overlay);
                     String theme = Packages.getOverlayMetadata(context,
-                            installedOverlays.get(i), metadataOverlayParent);
+                            overlay, metadataOverlayParent);
 
-                    boolean encrypted = false;
+                    ThemeDecryptor decryptor = null;
                     String encryptCheck =
                             Packages.getOverlayMetadata(context, theme, metadataEncryption);
-
                     if ((encryptCheck != null) && encryptCheck.equals(metadataEncryptionValue)) {
-                        Substratum.log(TAG, "This overlay for " +
-                                Packages.getPackageName(context, theme) +
-                                " is encrypted, passing handshake to the theme package...");
-                        encrypted = true;
-
-                        Theming.getThemeKeys(context, theme);
-
-                        keyRetrieval = new KeyRetrieval();
-                        localBroadcastManager.registerReceiver(keyRetrieval,
-                                new IntentFilter(KEY_RETRIEVAL));
-
-
-                        handler.postDelayed(runnable, 100L);
-                        int counter = 0;
-                        while ((securityIntent == null) && (counter < 5)) {
-                            try {
-                                Thread.sleep(500L);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            counter++;
-                        }
-                        if (counter > 5) {
-                            Log.e(TAG, "Could not receive handshake in time...");
-                            return null;
-                        }
-
-                        if (securityIntent != null) {
-                            try {
-                                byte[] encryptionKey =
-                                        securityIntent.getByteArrayExtra(ENCRYPTION_KEY_EXTRA);
-                                byte[] ivEncryptKey =
-                                        securityIntent.getByteArrayExtra(IV_ENCRYPTION_KEY_EXTRA);
-
-                                cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-                                cipher.init(
-                                        Cipher.DECRYPT_MODE,
-                                        new SecretKeySpec(encryptionKey, SECRET_KEY_SPEC),
-                                        new IvParameterSpec(ivEncryptKey)
-                                );
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                return null;
-                            }
+                        if (!decryptors.containsKey(theme)) {
+                            Substratum.log(TAG, "This overlay for " +
+                                    Packages.getPackageName(context, theme) +
+                                    " is encrypted, passing handshake to the theme package...");
+                            decryptors.put(theme,
+                                    ThemeDecryptor.requestKeys(context, theme, KEY_TIMEOUT));
                         }
-                    }
-
-                    Resources themeResources = null;
-                    try {
-                        themeResources = context.getPackageManager()
-                                .getResourcesForApplication(theme);
-                    } catch (PackageManager.NameNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                    assert themeResources != null;
-                    AssetManager themeAssetManager = themeResources.getAssets();
-
-                    String target = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayTarget);
-                    String type1a = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayType1a);
-                    String type1b = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayType1b);
-                    String type1c = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayType1c);
-                    String type2 = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayType2);
-                    String type3 = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayType3);
-                    String type4 = Packages.getOverlayMetadata(
-                            context, installedOverlays.get(i), metadataOverlayType4);
-
-                    if ((type1a != null) && type1a.contains("overlays/")) return null;
-                    if ((type1b != null) && type1b.contains("overlays/")) return null;
-                    if ((type1c != null) && type1c.contains("overlays/")) return null;
-                    if ((type2 != null) && type2.contains("overlays/")) return null;
-                    if ((type3 != null) && type3.contains("overlays/")) return null;
-
-                    String type1aDir = "overlays/" + target + "/type1a_" + type1a +
-                            (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
-                    String type1bDir = "overlays/" + target + "/type1b_" + type1b +
-                            (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
-                    String type1cDir = "overlays/" + target + "/type1c_" + type1c +
-                            (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
-                    String type2Dir = "overlays/" + target + "/type2_" + type2;
-                    String type3Dir = "overlays/" + target + "/type3_" + type3;
-
-                    String additionalVariant = (((type2 != null) && !type2.isEmpty()) ?
-                            type2Dir.split("/")[2].substring(6) : null);
-                    String baseVariant = (((type3 != null) && !type3.isEmpty()) ?
-                            type3Dir.split("/")[2].substring(6) : null);
-
-                    // Prenotions
-                    String suffix = (((type3 != null) && !type3.isEmpty()) ?
-                            ('/' + type3Dir) : "/res");
-                    String workingDirectory = context.getCacheDir().getAbsolutePath() +
-                            SUBSTRATUM_BUILDER_CACHE.substring(0,
-                                    SUBSTRATUM_BUILDER_CACHE.length() - 1);
-                    File created = new File(workingDirectory);
-                    if (created.exists()) {
-                        FileOperations.delete(context, created.getAbsolutePath());
-                        FileOperations.createNewFolder(context, created.getAbsolutePath());
-                    } else {
-                        FileOperations.createNewFolder(context, created.getAbsolutePath());
-                    }
-
-                    // Handle the resource folder
-                    String listDir = OVERLAYS_DIR + '/' +
-                            (upgradeMode.equals(APP_UPGRADE) ?
-                                    packageName :
-                                    Packages.getOverlayTarget(context, this
-                                            .installedOverlays.get(i))
-                            ) + suffix;
-                    FileOperations.copyFileOrDir(
-                            themeAssetManager,
-                            listDir,
-                            workingDirectory + suffix,
-                            listDir,
-                            (encrypted ? cipher : null));
-                    if ((type2 != null) && !type2.isEmpty()) {
-                        FileOperations.copyFileOrDir(
-                                themeAssetManager,
-                                listDir,
-                                workingDirectory + "/type2_" + type2,
-                                listDir,
-                                (encrypted ? cipher : null));
-                    }
-
-                    // Handle the types
-                    if ((type1a != null) && !type1a.isEmpty()) {
-                        FileOperations.copyFileOrDir(
-                                themeAssetManager,
-                                type1aDir,
-                                workingDirectory + suffix + "/values/type1a.xml",
-                                type1aDir,
-                                (encrypted ? cipher : null));
-                    }
-                    if ((type1b != null) && !type1b.isEmpty()) {
-                        FileOperations.copyFileOrDir(
-                                themeAssetManager,
-                                type1bDir,
-                                workingDirectory + suffix + "/values/type1b.xml",
-                                type1bDir,
-                                (encrypted ? cipher : null));
-                    }
-                    if ((type1c != null) && !type1c.isEmpty()) {
-                        FileOperations.copyFileOrDir(
-                                themeAssetManager,
-                                type1cDir,
-                                workingDirectory + suffix + "/values/type1c.xml",
-                                type1cDir,
-                                (encrypted ? cipher : null));
-                    }
-
-                    if ((type4 != null) && !type4.isEmpty()) {
-                        String type4Dir = "overlays/" + target + "/type4_" + type4;
-                        FileOperations.copyFileOrDir(
-                                themeAssetManager,
-                                type4Dir,
-                                workingDirectory + "/assets",
-                                type1cDir,
-                                (encrypted ? cipher : null));
-                    }
-
-                    File workDir = new File(context.getCacheDir().getAbsolutePath() +
-                            SUBSTRATUM_BUILDER_CACHE);
-                    if (!workDir.exists() && !workDir.mkdirs())
-                        Log.e(TAG, "Could not make cache directory...");
-
-                    String packageName =
-                            (type1a != null && !type1a.isEmpty() ?
-                                    type1a.replaceAll("\\s+", "") : "") +
-                                    (type1b != null && !type1b.isEmpty() ?
-                                            type1b.replaceAll("\\s+", "") : "") +
-                                    (type1c != null && !type1c.isEmpty() ?
-                                            type1c.replaceAll("\\s+", "") : "") +
-                                    (type2 != null && !type2.isEmpty() ?
-                                            type2.replaceAll("\\s+", "") : "") +
-                                    (type3 != null && !type3.isEmpty() ?
-                                            type3.replaceAll("\\s+", "") : "") +
-                                    (type4 != null && !type4.isEmpty() ?
-                                            type4.replaceAll("\\s+", "") : "");
-
-                    SubstratumBuilder sb = new SubstratumBuilder(context);
-                    sb.beginAction(
-                            (upgradeMode.equals(APP_UPGRADE) ?
-                                    this.packageName :
-                                    Packages.getOverlayTarget(
-                                            context,
-                                            installedOverlays.get(i))),
-                            Packages.getPackageName(context, theme),
-                            packageName,
-                            additionalVariant,
-                            baseVariant,
-                            Packages.getAppVersion(context,
-                                    Packages.getOverlayParent(context, this
-                                            .installedOverlays.get(i))),
-                            theme,
-                            suffix,
-                            type1a,
-                            type1b,
-                            type1c,
-                            type2,
-                            type3,
-                            type4,
-                            installedOverlays.get(i),
-                            true
-                    );
-                    if (sb.hasErroredOut) {
-                        erroredPackages.add(installedOverlays.get(i));
-                        if (sb.getErrorLogs() != null) {
-                            if (errorLogs.length() == 0)
-                                errorLogs.append(sb.getErrorLogs());
-                            else
-                                errorLogs.append('\n').append(sb.getErrorLogs());
+                        decryptor = decryptors.get(theme);
+                        if (decryptor == null) {
+                            erroredPackages.add(overlay);
+                            publishProgress(done.incrementAndGet(), outdated.size());
+                            continue;
                         }
                     }
 
-                    if (encrypted) {
+                    ThemeDecryptor themeDecryptor = decryptor;
+                    scheduler.submit(workArea -> {
                         try {
-                            localBroadcastManager.unregisterReceiver(keyRetrieval);
-                        } catch (IllegalArgumentException ignored) {
+                            updateOverlay(session, scheduler, overlay, theme, themeDecryptor,
+                                    workArea);
+                        } finally {
+                            lastOverlay = overlay;
+                            publishProgress(done.incrementAndGet(), outdated.size());
                         }
-                    }
+                    });
                 }
+                scheduler.awaitCompletion();
+                session.close();
             }
             return null;
         }
 
-        class KeyRetrieval extends BroadcastReceiver {
+        /**
+         * Extract and rebuild a single installed overlay, handing the result to the install stage
+         *
+         * @param session   Package snapshot shared by the whole update
+         * @param scheduler Scheduler that installs the overlay once it has been compiled
+         * @param overlay   Installed overlay package
+         * @param theme     Theme the overlay was built from
+         * @param decryptor Decryptor of an encrypted theme, null otherwise
+         * @param workArea  Work area private to this overlay
+         */
+        private void updateOverlay(CompileSession session,
+                                   CompileScheduler scheduler,
+                                   String overlay,
+                                   String theme,
+                                   ThemeDecryptor decryptor,
+                                   String workArea) {
+            Resources themeResources;
+            try {
+                themeResources = context.getPackageManager().getResourcesForApplication(theme);
+            } catch (PackageManager.NameNotFoundException e) {
+                e.printStackTrace();
+                erroredPackages.add(overlay);
+                return;
+            }
+            AssetManager themeAssetManager = themeResources.getAssets();
+            ThemeAssetExtractor themeAssets = session.getAssetExtractor(theme);
+            boolean encrypted = decryptor != null;
+
+            OverlayMetadata overlayMetadata = OverlayMetadata.get(context, overlay);
+            if (overlayMetadata == null) {
+                erroredPackages.add(overlay);
+                return;
+            }
+            String target = overlayMetadata.getTarget();
+            String type1a = overlayMetadata.getType1a();
+            String type1b = overlayMetadata.getType1b();
+            String type1c = overlayMetadata.getType1c();
+            String type2 = overlayMetadata.getType2();
+            String type3 = overlayMetadata.getType3();
+            String type4 = overlayMetadata.getType4();
+
+            if (((type1a != null) && type1a.contains("overlays/")) ||
+                    ((type1b != null) && type1b.contains("overlays/")) ||
+                    ((type1c != null) && type1c.contains("overlays/")) ||
+                    ((type2 != null) && type2.contains("overlays/")) ||
+                    ((type3 != null) && type3.contains("overlays/"))) {
+                Log.e(TAG, "Skipping " + overlay + ", as it has been built by an old version...");
+                return;
+            }
+
+            String type1aDir = "overlays/" + target + "/type1a_" + type1a +
+                    (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
+            String type1bDir = "overlays/" + target + "/type1b_" + type1b +
+                    (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
+            String type1cDir = "overlays/" + target + "/type1c_" + type1c +
+                    (encrypted ? ".xml" + ENCRYPTED_FILE_EXTENSION : ".xml");
+            String type2Dir = "overlays/" + target + "/type2_" + type2;
+            String type3Dir = "overlays/" + target + "/type3_" + type3;
+
+            String additionalVariant = (((type2 != null) && !type2.isEmpty()) ?
+                    type2Dir.split("/")[2].substring(6) : null);
+            String baseVariant = (((type3 != null) && !type3.isEmpty()) ?
+                    type3Dir.split("/")[2].substring(6) : null);
+
+            // Prenotions
+            String suffix = (((type3 != null) && !type3.isEmpty()) ?
+                    ('/' + type3Dir) : "/res");
+            String overlayFolder = upgradeMode.equals(APP_UPGRADE) ? packageName : target;
+
+            // Handle the resource folder
+            String listDir = OVERLAYS_DIR + '/' + overlayFolder + suffix;
+            themeAssets.linkDir(themeAssetManager, listDir, workArea + suffix, decryptor);
+            if ((type2 != null) && !type2.isEmpty()) {
+                themeAssets.linkDir(themeAssetManager, type2Dir,
+                        workArea + "/type2_" + type2, decryptor);
+            }
+
+            // Handle the types
+            if ((type1a != null) && !type1a.isEmpty()) {
+                themeAssets.copyFileOrDir(themeAssetManager, type1aDir,
+                        workArea + suffix + "/values/type1a.xml", type1aDir, decryptor);
+            }
+            if ((type1b != null) && !type1b.isEmpty()) {
+                themeAssets.copyFileOrDir(themeAssetManager, type1bDir,
+                        workArea + suffix + "/values/type1b.xml", type1bDir, decryptor);
+            }
+            if ((type1c != null) && !type1c.isEmpty()) {
+                themeAssets.copyFileOrDir(themeAssetManager, type1cDir,
+                        workArea + suffix + "/values/type1c.xml", type1cDir, decryptor);
+            }
+            if ((type4 != null) && !type4.isEmpty()) {
+                String type4Dir = "overlays/" + target + "/type4_" + type4;
+                themeAssets.linkDir(themeAssetManager, type4Dir, workArea + "/assets",
+                        decryptor);
+            }
 
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                securityIntent = intent;
+            String variantName =
+                    (type1a != null && !type1a.isEmpty() ?
+                            type1a.replaceAll("\\s+", "") : "") +
+                            (type1b != null && !type1b.isEmpty() ?
+                                    type1b.replaceAll("\\s+", "") : "") +
+                            (type1c != null && !type1c.isEmpty() ?
+                                    type1c.replaceAll("\\s+", "") : "") +
+                            (type2 != null && !type2.isEmpty() ?
+                                    type2.replaceAll("\\s+", "") : "") +
+                            (type3 != null && !type3.isEmpty() ?
+                                    type3.replaceAll("\\s+", "") : "") +
+                            (type4 != null && !type4.isEmpty() ?
+                                    type4.replaceAll("\\s+", "") : "");
+
+            SubstratumBuilder sb = new SubstratumBuilder(context, workArea, session);
+            sb.setDeferInstall(true);
+            sb.beginAction(
+                    overlayFolder,
+                    Packages.getPackageName(context, theme),
+                    variantName,
+                    additionalVariant,
+                    baseVariant,
+                    Packages.getAppVersion(context, theme),
+                    theme,
+                    suffix,
+                    type1a,
+                    type1b,
+                    type1c,
+                    type2,
+                    type3,
+                    type4,
+                    overlay,
+                    true
+            );
+            if (sb.hasErroredOut) {
+                erroredPackages.add(overlay);
+                diagnostics.addAll(sb.getDiagnostics());
+            } else if (!sb.pendingInstall.isEmpty()) {
+                scheduler.install(overlayFolder, sb.pendingInstall, false);
             }
         }
     }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.services.packages;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ChangedPackages;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.Broadcasts;
+import projekt.substratum.common.OverlayMetadata;
+import projekt.substratum.common.Systems;
+import projekt.substratum.common.platform.OverlayStateRepository;
+
+/**
+ * Tells the open theme to refresh its overlay list when packages have been added, removed or
+ * changed.
+ * <p>
+ * Changes are picked up from the package broadcasts, and confirmed with the sequence number of
+ * {@link android.content.pm.PackageManager#getChangedPackages(int)}, so that a refresh is only
+ * sent when the package manager has really recorded a change. Samsung's overlay installer does
+ * not reliably broadcast its changes, so on Samsung devices the sequence number is also polled,
+ * starting at {@link #MIN_POLL_INTERVAL} and backing off up to {@link #MAX_POLL_INTERVAL} for as
+ * long as nothing changes.
+ */
+public class PackageChangeMonitor {
+
+    private static final String TAG = "OverlayRefresher";
+    private static final long MIN_POLL_INTERVAL = 1000L;
+    private static final long MAX_POLL_INTERVAL = 60000L;
+    private static PackageChangeMonitor monitor;
+    private final Context context;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final boolean poll;
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (checkForChanges()) pollInterval = MIN_POLL_INTERVAL;
+        }
+    };
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            pollInterval = checkForChanges() ?
+                    MIN_POLL_INTERVAL : Math.min(pollInterval * 2L, MAX_POLL_INTERVAL);
+            handler.postDelayed(this, pollInterval);
+        }
+    };
+    private int sequenceNumber;
+    private long pollInterval = MIN_POLL_INTERVAL;
+
+    private PackageChangeMonitor(Context context) {
+        super();
+        this.context = context.getApplicationContext();
+        thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        poll = Systems.isSamsungDevice(this.context) || Systems.isNewSamsungDevice();
+    }
+
+    /**
+     * Start monitoring the packages, unless they are monitored already
+     *
+     * @param context Context
+     */
+    public static synchronized void start(Context context) {
+        if (monitor != null) return;
+        Substratum.log(TAG,
+                "The overlay package refresher has been fully loaded.");
+        monitor = new PackageChangeMonitor(context);
+        monitor.handler.post(monitor::register);
+    }
+
+    /**
+     * Stop monitoring the packages
+     */
+    public static synchronized void stop() {
+        if (monitor == null) return;
+        Substratum.log(TAG,
+                "The overlay package refresher is now stopping!");
+        PackageChangeMonitor stopped = monitor;
+        monitor = null;
+        stopped.handler.post(stopped::unregister);
+    }
+
+    public static synchronized boolean isRunning() {
+        return monitor != null;
+    }
+
+    private void register() {
+        // Only changes from now on are of interest
+        ChangedPackages changedPackages = context.getPackageManager().getChangedPackages(0);
+        if (changedPackages != null) sequenceNumber = changedPackages.getSequenceNumber();
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(receiver, filter, null, handler);
+        if (poll) handler.postDelayed(pollTask, pollInterval);
+    }
+
+    private void unregister() {
+        handler.removeCallbacks(pollTask);
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException ignored) {
+            // Never registered
+        }
+        thread.quitSafely();
+    }
+
+    /**
+     * Ask the package manager for the packages that have changed since the last check, and send
+     * a refresh message if there are any
+     *
+     * @return True, if packages have changed
+     */
+    private boolean checkForChanges() {
+        ChangedPackages changedPackages =
+                context.getPackageManager().getChangedPackages(sequenceNumber);
+        if ((changedPackages == null) ||
+                (changedPackages.getSequenceNumber() == sequenceNumber)) {
+            return false;
+        }
+        sequenceNumber = changedPackages.getSequenceNumber();
+        // Changes that were not broadcast have not reached the caches either
+        for (String packageName : changedPackages.getPackageNames()) {
+            OverlayMetadata.invalidate(packageName);
+        }
+        OverlayStateRepository.invalidate();
+        Broadcasts.sendOverlayRefreshMessage(context);
+        return true;
+    }
+}
@@ -33,6 +33,8 @@ import projekt.substratum.tabs.BootAnimationsManager;
 import projekt.substratum.tabs.FontsManager;
 import projekt.substratum.tabs.SoundsManager;
 import projekt.substratum.tabs.WallpapersManager;
+import projekt.substratum.util.compilers.CompiledResourceCache;
+import projekt.substratum.util.compilers.DecryptedAssetCache;
 
 import static projekt.substratum.common.Internal.BOOT_ANIMATION_APPLIED;
 import static projekt.substratum.common.Internal.SHUTDOWN_ANIMATION_APPLIED;
@@ -92,6 +94,10 @@ public class ThemeUninstallDetector extends BroadcastReceiver {
                     // Uninstall all overlays for this package
                     ThemeManager.uninstallOverlay(context, allOverlays);
 
+                    // The resources compiled from this theme will never be linked again
+                    CompiledResourceCache.clear(context, packageName1);
+                    DecryptedAssetCache.clear(context, packageName1);
+
                     SharedPreferences.Editor editor = prefs.edit();
                     if (prefs.getString(SOUNDS_APPLIED, "").equals(packageName1)) {
                         SoundsManager.clearSounds(context);
@@ -90,7 +90,8 @@ import projekt.substratum.common.Systems;
 import projekt.substratum.common.commands.FileOperations;
 import projekt.substratum.common.platform.ThemeManager;
 import projekt.substratum.databinding.TabOverlaysBinding;
-import projekt.substratum.util.compilers.SubstratumBuilder;
+import projekt.substratum.util.compilers.CompileDiagnostics;
+import projekt.substratum.util.compilers.ThemeDecryptor;
 import projekt.substratum.util.helpers.Root;
 import projekt.substratum.util.views.Lunchbar;
 import projekt.substratum.util.views.SheetDialog;
@@ -165,8 +166,8 @@ public class Overlays extends Fragment {
     public ProgressBar progressBar;
     String themeVersion;
     Cipher themeCipher;
+    ThemeDecryptor themeDecryptor;
     boolean mixAndMatchMode = false;
-    SubstratumBuilder compileInstance;
     List<OverlaysItem> overlayItemList;
     List<String> currentInstanceOverlays;
     // Begin functional variables with no theme-related information
@@ -309,6 +310,7 @@ public class Overlays extends Fragment {
                             new SecretKeySpec(encryptionKey, SECRET_KEY_SPEC),
                             new IvParameterSpec(ivEncryptKey)
                     );
+                    themeDecryptor = ThemeDecryptor.create(encryptionKey, ivEncryptKey);
                     Substratum.log(SUBSTRATUM_BUILDER, "Loading substratum theme in encrypted assets mode.");
                     encrypted = true;
                 } catch (Exception e) {
@@ -503,8 +505,8 @@ public class Overlays extends Fragment {
         // Enable the instance to be retained for LogChar invoke after configuration change
         setRetainInstance(true);
         if (currentInstance != null &&
-                currentInstance.errorLogs != null &&
-                currentInstance.errorLogs.length() > 0) {
+                currentInstance.diagnostics != null &&
+                !currentInstance.diagnostics.isEmpty()) {
             invokeLogCharLunchBar(context);
         }
         return viewBinding.getRoot();
@@ -573,7 +575,7 @@ public class Overlays extends Fragment {
             new SendErrorReport(
                     context,
                     themePid,
-                    currentInstance.errorLogs.toString(),
+                    currentInstance.diagnostics.copy(),
                     currentInstance.failedPackages.toString(),
                     true
             ).execute();
@@ -588,8 +590,8 @@ public class Overlays extends Fragment {
      * @param context Self explanatory, bud.
      */
     private void invokeLogCharLunchBar(Context context) {
-        CharSequence errorLogCopy = new StringBuilder(currentInstance.errorLogs);
-        currentInstance.errorLogs = new StringBuilder();
+        CompileDiagnostics errorLogCopy = currentInstance.diagnostics.copy();
+        currentInstance.diagnostics.clear();
         currentShownLunchBar = Lunchbar.make(
                 getActivityView(),
                 context.getString(R.string.logcat_snackbar_text),
@@ -607,7 +609,7 @@ public class Overlays extends Fragment {
      * @param context Self explanatory, bud.
      * @param logs    The series of logs that needs to be thrown to the user
      */
-    private void invokeLogCharDialog(Context context, CharSequence logs) {
+    private void invokeLogCharDialog(Context context, CompileDiagnostics logs) {
         AlertDialog.Builder builder = new AlertDialog.Builder(context)
                 .setTitle(R.string.logcat_dialog_title)
                 .setMessage("\n" + logs)
@@ -630,7 +632,7 @@ public class Overlays extends Fragment {
                     new SendErrorReport(
                             context,
                             themePid,
-                            logs.toString(),
+                            logs,
                             currentInstance.failedPackages.toString(),
                             false).execute());
         }
@@ -904,7 +906,7 @@ public class Overlays extends Fragment {
     private static class SendErrorReport extends AsyncTask<Void, Void, File> {
         private final WeakReference<Context> ref;
         private final String themePid;
-        private final String errorLog;
+        private final CompileDiagnostics diagnostics;
         private final String themeName;
         private final String themeAuthor;
         private final String themeEmail;
@@ -913,16 +915,17 @@ public class Overlays extends Fragment {
         private final String failedPackages;
         private final boolean autosaveInstance;
         private ProgressDialog progressDialog;
+        private File diagnosticsExport;
 
         SendErrorReport(Context context,
                         String themePid,
-                        String errorLog,
+                        CompileDiagnostics diagnostics,
                         String failedPackages,
                         boolean autosaveInstance) {
             super();
             this.ref = new WeakReference<>(context);
             this.themePid = themePid;
-            this.errorLog = errorLog;
+            this.diagnostics = diagnostics;
             this.failedPackages = failedPackages;
             this.autosaveInstance = autosaveInstance;
             this.themeName = Packages.getPackageName(context, themePid);
@@ -973,7 +976,7 @@ public class Overlays extends Fragment {
                         String.valueOf(BuildConfig.VERSION_CODE),
                         themeVersion,
                         failedPackages,
-                        errorLog);
+                        diagnostics.toString());
 
                 File log = null;
                 if (autosaveInstance) {
@@ -981,14 +984,23 @@ public class Overlays extends Fragment {
                 } else {
                     SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HH:mm",
                             Locale.US);
-                    log = new File(EXTERNAL_STORAGE_CACHE +
-                            "/theme_error-" + dateFormat.format(new Date()) + ".txt");
+                    String date = dateFormat.format(new Date());
+                    log = new File(EXTERNAL_STORAGE_CACHE + "/theme_error-" + date + ".txt");
                     try (FileWriter fw = new FileWriter(log, false);
                          BufferedWriter out = new BufferedWriter(fw)) {
                         out.write(attachment);
                     } catch (IOException e) {
                         // Suppress exception
                     }
+                    // One record per line, for themers to search through
+                    File export = new File(EXTERNAL_STORAGE_CACHE +
+                            "/theme_error-" + date + ".tsv");
+                    try {
+                        diagnostics.export(export);
+                        diagnosticsExport = export;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
                 return log;
             }
@@ -1002,15 +1014,24 @@ public class Overlays extends Fragment {
                 if (!autosaveInstance && (result != null)) {
                     if (progressDialog != null) progressDialog.dismiss();
 
-                    Intent i = new Intent(Intent.ACTION_SEND);
+                    ArrayList<Uri> attachments = new ArrayList<>();
+                    attachments.add(FileProvider.getUriForFile(
+                            context,
+                            context.getPackageName() + ".provider",
+                            result));
+                    if (diagnosticsExport != null) {
+                        attachments.add(FileProvider.getUriForFile(
+                                context,
+                                context.getPackageName() + ".provider",
+                                diagnosticsExport));
+                    }
+                    Intent i = new Intent(Intent.ACTION_SEND_MULTIPLE);
                     i.setType(MAIL_TYPE);
                     i.putExtra(Intent.EXTRA_EMAIL, new String[]{themeEmail});
                     i.putExtra(Intent.EXTRA_SUBJECT, emailSubject);
                     i.putExtra(Intent.EXTRA_TEXT, emailBody);
-                    i.putExtra(Intent.EXTRA_STREAM, FileProvider.getUriForFile(
-                            ref.get(),
-                            ref.get().getPackageName() + ".provider",
-                            result));
+                    i.putParcelableArrayListExtra(Intent.EXTRA_STREAM, attachments);
+                    i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
                     try {
                         context.startActivity(Intent.createChooser(i,
                                 context.getString(R.string.logcat_email_activity)));
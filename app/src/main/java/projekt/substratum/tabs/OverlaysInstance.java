@@ -11,15 +11,18 @@ import java.util.ArrayList;
 import java.util.List;
 
 import projekt.substratum.adapters.tabs.overlays.OverlaysItem;
+import projekt.substratum.util.compilers.CompileDiagnostics;
 
 class OverlaysInstance {
 
     private static final OverlaysInstance ourInstance = new OverlaysInstance();
+    private static final int BATCH_DIAGNOSTICS = 256;
     boolean hasFailed;
     Integer failCount;
     StringBuilder failedPackages;
-    StringBuilder errorLogs;
+    CompileDiagnostics diagnostics;
     boolean missingType3;
+    boolean systemUIInstalled;
     List<String> finalRunner;
     List<String> lateInstall;
     ArrayList<String> finalCommand;
@@ -45,8 +48,9 @@ class OverlaysInstance {
         hasFailed = false;
         failCount = 0;
         failedPackages = new StringBuilder();
-        errorLogs = new StringBuilder();
+        diagnostics = new CompileDiagnostics(BATCH_DIAGNOSTICS);
         missingType3 = false;
+        systemUIInstalled = false;
         finalRunner = new ArrayList<>();
         lateInstall = new ArrayList<>();
         finalCommand = new ArrayList<>();
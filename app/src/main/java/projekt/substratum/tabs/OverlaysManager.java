@@ -38,6 +38,8 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import projekt.substratum.InformationActivity;
 import projekt.substratum.R;
@@ -51,6 +53,11 @@ import projekt.substratum.common.commands.ElevatedCommands;
 import projekt.substratum.common.commands.FileOperations;
 import projekt.substratum.common.commands.SamsungOverlayCacher;
 import projekt.substratum.common.platform.ThemeManager;
+import projekt.substratum.util.compilers.CompileDiagnostics;
+import projekt.substratum.util.compilers.CompileJournal;
+import projekt.substratum.util.compilers.CompileScheduler;
+import projekt.substratum.util.compilers.CompileSession;
+import projekt.substratum.util.compilers.OverlayAssembler;
 import projekt.substratum.util.compilers.SubstratumBuilder;
 import projekt.substratum.util.helpers.Root;
 import projekt.substratum.util.views.Lunchbar;
@@ -61,11 +68,7 @@ import static projekt.substratum.common.Internal.COMPILE_UPDATE;
 import static projekt.substratum.common.Internal.DISABLE_MODE;
 import static projekt.substratum.common.Internal.ENABLE_DISABLE;
 import static projekt.substratum.common.Internal.ENABLE_MODE;
-import static projekt.substratum.common.Internal.ENCRYPTED_FILE_EXTENSION;
-import static projekt.substratum.common.Internal.OVERLAYS_DIR;
 import static projekt.substratum.common.Internal.PACKAGE_INSTALL_URI;
-import static projekt.substratum.common.Internal.SPECIAL_SNOWFLAKE_DELAY;
-import static projekt.substratum.common.Internal.SPECIAL_SNOWFLAKE_DELAY_SS;
 import static projekt.substratum.common.Internal.THEME_NAME;
 import static projekt.substratum.common.Internal.THEME_PID;
 import static projekt.substratum.common.References.DEFAULT_NOTIFICATION_CHANNEL_ID;
@@ -85,7 +88,6 @@ import static projekt.substratum.common.Resources.SYSTEMUI_STATUSBARS;
 import static projekt.substratum.common.Resources.inNexusFilter;
 import static projekt.substratum.common.Systems.checkOMS;
 import static projekt.substratum.common.Systems.checkSubstratumService;
-import static projekt.substratum.common.Systems.checkThemeInterfacer;
 import static projekt.substratum.common.Systems.isNewSamsungDevice;
 import static projekt.substratum.common.Systems.isNewSamsungDeviceAndromeda;
 import static projekt.substratum.common.Systems.isSystemSecurityPatchNewer;
@@ -326,8 +328,8 @@ final class OverlaysManager {
 
         private final WeakReference<Overlays> ref;
         private final String state;
-        private String currentPackageName = "";
-        private String currentDialogOverlay;
+        private volatile String currentPackageName = "";
+        private volatile String currentDialogOverlay;
 
         CompileTask(Overlays overlays, String state) {
             super();
@@ -457,41 +459,18 @@ final class OverlaysManager {
                         if (isNewSamsungDevice() || isNewSamsungDeviceAndromeda(context)) {
                             SamsungOverlayCacher samsungOverlayCacher =
                                     new SamsungOverlayCacher(context);
+                            List<String> packageNames = new ArrayList<>();
                             for (int i = 0; i <
                                     overlays.currentInstance.checkedOverlays.size(); i++) {
-                                String packageName =
-                                        overlays.currentInstance.checkedOverlays.get(i)
-                                                .getFullOverlayParameters();
-                                samsungOverlayCacher.updateSamsungCache(packageName);
+                                packageNames.add(overlays.currentInstance.checkedOverlays.get(i)
+                                        .getFullOverlayParameters());
                             }
+                            samsungOverlayCacher.updateSamsungCache(packageNames);
                         }
 
                         new FinishUpdateTask(overlays, state).execute();
                         if (overlays.currentInstance.hasFailed) {
                             overlays.failedFunction(context);
-                        } else {
-                            // Restart SystemUI if an enabled SystemUI overlay is updated
-                            if (checkOMS(context)) {
-                                for (int i = 0; i <
-                                        overlays.currentInstance.checkedOverlays.size(); i++) {
-                                    String targetOverlay =
-                                            overlays.currentInstance.checkedOverlays.get(i)
-                                                    .getPackageName();
-                                    if (targetOverlay.equals(SYSTEMUI)) {
-                                        String packageName =
-                                                overlays.currentInstance.checkedOverlays.get(i)
-                                                        .getFullOverlayParameters();
-                                        if (ThemeManager.isOverlayEnabled(context, packageName)) {
-                                            if (ThemeManager.shouldRestartUI(context, packageName))
-                                                ThemeManager.restartSystemUI(context);
-                                            break;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        if (overlays.currentInstance.lateInstall.isEmpty()) {
-                            Substratum.getInstance().unregisterFinishReceiver();
                         }
                         break;
                 }
@@ -513,11 +492,24 @@ final class OverlaysManager {
                             }
                             ThemeManager.disableOverlay(context, overlaysToDisable);
                         }
-                        for (int i = 0; i < overlays.currentInstance.lateInstall.size(); i++) {
-                            ThemeManager.installOverlay(
-                                    overlays.getActivity(),
-                                    overlays.currentInstance.lateInstall.get(i));
-                        }
+                        // Installed as one batch, away from the main thread as it blocks until
+                        // the package manager knows about every overlay
+                        List<String> lateInstall =
+                                new ArrayList<>(overlays.currentInstance.lateInstall);
+                        HandlerThread thread = new HandlerThread("LateInstallThread",
+                                Thread.MAX_PRIORITY);
+                        thread.start();
+                        new Handler(thread.getLooper()).post(() -> {
+                            Map<String, Boolean> results =
+                                    ThemeManager.installOverlay(context, lateInstall);
+                            for (Map.Entry<String, Boolean> result : results.entrySet()) {
+                                if (!result.getValue()) {
+                                    Log.e(SUBSTRATUM_BUILDER, "Late install of \"" +
+                                            result.getKey() + "\" has failed.");
+                                }
+                            }
+                            thread.quitSafely();
+                        });
                     } else {
                         Intent intent = new Intent(Intent.ACTION_VIEW);
                         Uri uri = FileProvider.getUriForFile(
@@ -563,8 +555,6 @@ final class OverlaysManager {
             Overlays overlays = ref.get();
             if (overlays != null) {
                 Context context = overlays.getActivity();
-                String parsedVariant = sUrl[0].replaceAll("\\s+", "");
-                String unparsedVariant = sUrl[0];
                 if (overlays.mixAndMatchMode && !Systems.checkOMS(context)) {
                     String currentDirectory;
                     if (inNexusFilter()) {
@@ -579,41 +569,38 @@ final class OverlaysManager {
                     }
                 }
 
-                // Enable finish install listener
+                // Whether every install has to be confirmed before the next one may start
                 boolean needToWait =
                         !Systems.isNewSamsungDevice() &&
                                 Substratum.needToWaitInstall() &&
                                 Systems.checkOMS(context) &&
                                 !Systems.ATLEAST_PIE;
 
-                if (needToWait) {
-                    Substratum.getInstance().registerFinishReceiver();
-                }
-
                 overlays.currentInstance.totalAmount =
                         (double) overlays.currentInstance.checkedOverlays.size();
-                for (int i = 0; i < overlays.currentInstance.checkedOverlays.size(); i++) {
-                    String type1a = "";
-                    String type1b = "";
-                    String type1c = "";
-                    String type2 = "";
-                    String type3;
-                    String type4 = "";
-
-                    OverlaysItem checked = overlays.currentInstance.checkedOverlays.get(i);
-
-                    overlays.currentInstance.currentAmount = (double) (i + 1);
-                    String themeNameParsed =
-                            overlays.themeName.replaceAll("\\s+", "")
-                                    .replaceAll("[^a-zA-Z0-9]+", "");
-
-                    String currentOverlay = checked.getPackageName();
-                    currentDialogOverlay =
-                            '\'' + Packages.getPackageName(context, currentOverlay) + '\'';
-                    currentPackageName = currentOverlay;
 
+                // Overlays are built side by side while the finished ones are being installed,
+                // framework, SystemUI and Settings first so SystemUI restarts once at the end
+                List<OverlaysItem> queue = overlays.currentInstance.checkedOverlays;
+                if (state.equals(COMPILE_UPDATE) || state.equals(COMPILE_ENABLE)) {
+                    queue = CompileScheduler.sortByTarget(queue, OverlaysItem::getPackageName);
+                }
+                CompileScheduler scheduler = new CompileScheduler(context);
+                CompileSession session = CompileSession.create(context);
+                OverlayAssembler assembler = new OverlayAssembler(
+                        context,
+                        session,
+                        overlays.themeAssetManager,
+                        overlays.encrypted ? overlays.themeDecryptor : null,
+                        overlays.themePid,
+                        overlays.themeName,
+                        overlays.themeVersion);
+                // Written down so the batch can be resumed if the process does not survive it
+                CompileJournal journal = CompileJournal.begin(context, overlays.themePid,
+                        state.equals(COMPILE_ENABLE));
+                AtomicInteger started = new AtomicInteger();
+                for (OverlaysItem checked : queue) {
                     if (state.equals(COMPILE_UPDATE) || state.equals(COMPILE_ENABLE)) {
-                        publishProgress((int) overlays.currentInstance.currentAmount);
                         if (state.equals(COMPILE_ENABLE)) {
                             if (overlays.currentInstance.finalRunner == null) {
                                 overlays.currentInstance.finalRunner = new ArrayList<>();
@@ -624,420 +611,28 @@ final class OverlaysManager {
                                 overlays.currentInstance.finalRunner.add(packageName);
                             }
                         }
-                        try {
-                            String packageTitle = "";
-                            if (projekt.substratum.common.Resources.allowedSystemUIOverlay
-                                    (currentOverlay) ||
-                                    projekt.substratum.common.Resources.allowedFrameworkOverlay
-                                            (currentOverlay) ||
-                                    projekt.substratum.common.Resources.allowedSettingsOverlay
-                                            (currentOverlay)) {
-                                switch (currentOverlay) {
-                                    case SYSTEMUI_HEADERS:
-                                        packageTitle = context.getString(R.string.systemui_headers);
-                                        break;
-                                    case SYSTEMUI_NAVBARS:
-                                        packageTitle = context.getString(R.string
-                                                .systemui_navigation);
-                                        break;
-                                    case SYSTEMUI_STATUSBARS:
-                                        packageTitle = context.getString(R.string
-                                                .systemui_statusbar);
-                                        break;
-                                    case SYSTEMUI_QSTILES:
-                                        packageTitle = context.getString(R.string
-                                                .systemui_qs_tiles);
-                                        break;
-                                    case SAMSUNG_FRAMEWORK:
-                                        packageTitle = context.getString(
-                                                R.string.samsung_framework);
-                                        break;
-                                    case LG_FRAMEWORK:
-                                        packageTitle = context.getString(R.string.lg_framework);
-                                        break;
-                                    case SETTINGS_ICONS:
-                                        packageTitle = context.getString(R.string.settings_icons);
-                                        break;
-                                }
-                            } else {
-                                ApplicationInfo applicationInfo = null;
-                                try {
-                                    applicationInfo = context.getPackageManager()
-                                            .getApplicationInfo(currentOverlay, 0);
-                                } catch (PackageManager.NameNotFoundException e) {
-                                    e.printStackTrace();
-                                }
-                                packageTitle = context.getPackageManager()
-                                        .getApplicationLabel(applicationInfo).toString();
-                            }
-
-                            // Initialize working notification
-                            if (overlays.checkActiveNotifications()) {
-                                overlays.builder.setProgress(100, (int) (((double) (i + 1) /
-                                        (double) overlays.currentInstance.checkedOverlays.size())
-                                        * 100.0), false);
-                                overlays.builder.setContentText('"' + packageTitle + '"');
-                                overlays.notifyManager.notify(References.NOTIFICATION_ID_COMPILER,
-                                        overlays.builder.build());
-                            }
-
-                            String unparsedSuffix;
-                            boolean useType3CommonDir = false;
-                            if (!sUrl[0].isEmpty()) {
-                                useType3CommonDir = overlays.themeAssetManager
-                                        .list(OVERLAYS_DIR + '/' + currentOverlay +
-                                                "/type3-common").length > 0;
-                                if (useType3CommonDir) {
-                                    unparsedSuffix = "/type3-common";
-                                } else {
-                                    unparsedSuffix = "/type3_" + unparsedVariant;
-                                }
-                            } else {
-                                unparsedSuffix = "/res";
-                            }
-
-                            String parsedSuffix = ((!sUrl[0].isEmpty()) ?
-                                    ("/type3_" + parsedVariant) : "/res");
-                            type3 = parsedVariant;
-
-                            String workingDirectory = context.getCacheDir().getAbsolutePath() +
-                                    References.SUBSTRATUM_BUILDER_CACHE.substring(0,
-                                            References.SUBSTRATUM_BUILDER_CACHE.length() - 1);
-
-                            File created = new File(workingDirectory);
-                            if (created.exists()) {
-                                FileOperations.delete(context, created.getAbsolutePath());
-                            }
-                            FileOperations.createNewFolder(context, created.getAbsolutePath());
-                            String versionFile = OVERLAYS_DIR + '/' + currentOverlay + "/version";
-                            String priorityFile = OVERLAYS_DIR + '/' + currentOverlay + "/priority";
-                            String listDir = OVERLAYS_DIR + '/' + currentOverlay + unparsedSuffix;
-
-                            FileOperations.copyFileOrDir(
-                                    overlays.themeAssetManager,
-                                    listDir,
-                                    workingDirectory + parsedSuffix,
-                                    listDir,
-                                    overlays.themeCipher
-                            );
-
-                            FileOperations.copyFileOrDir(
-                                    overlays.themeAssetManager,
-                                    versionFile,
-                                    workingDirectory + "/version",
-                                    versionFile,
-                                    overlays.themeCipher
-                            );
-
-                            if (!checkOMS(context)) {
-                                FileOperations.copyFileOrDir(
-                                        overlays.themeAssetManager,
-                                        priorityFile,
-                                        workingDirectory + "/priority",
-                                        priorityFile,
-                                        overlays.themeCipher
-                                );
-                            }
-
-                            if (useType3CommonDir) {
-                                String type3Dir = OVERLAYS_DIR + '/' +
-                                        currentOverlay +
-                                        "/type3_" + unparsedVariant;
-                                FileOperations.copyFileOrDir(
-                                        overlays.themeAssetManager,
-                                        type3Dir,
-                                        workingDirectory + parsedSuffix,
-                                        type3Dir,
-                                        overlays.themeCipher
-                                );
-                            }
-
-                            if (checked.isVariantChosen || !sUrl[0].isEmpty()) {
-                                // Type 1a
-                                if (checked.isVariantChosen1) {
-                                    type1a = checked.getSelectedVariantName();
-                                    Substratum.log(SUBSTRATUM_BUILDER, "You have selected variant file \"" +
-                                            checked.getSelectedVariantName() + '"');
-                                    Substratum.log(SUBSTRATUM_BUILDER, "Moving variant file to: " +
-                                            workingDirectory + parsedSuffix + "/values/type1a.xml");
-
-                                    String toCopy =
-                                            OVERLAYS_DIR + '/' + currentOverlay +
-                                                    "/type1a_" +
-                                                    checked.getSelectedVariantName() +
-                                                    (overlays.encrypted ? ".xml" +
-                                                            ENCRYPTED_FILE_EXTENSION : ".xml");
-
-                                    FileOperations.copyFileOrDir(
-                                            overlays.themeAssetManager,
-                                            toCopy,
-                                            workingDirectory + parsedSuffix + (
-                                                    overlays.encrypted ?
-                                                            "/values/type1a.xml" +
-                                                                    ENCRYPTED_FILE_EXTENSION :
-                                                            "/values/type1a.xml"),
-                                            toCopy,
-                                            overlays.themeCipher);
-                                }
-
-                                // Type 1b
-                                if (checked.isVariantChosen2) {
-                                    type1b = checked.getSelectedVariantName2();
-                                    Substratum.log(SUBSTRATUM_BUILDER, "You have selected variant file \"" +
-                                            checked.getSelectedVariantName2() + '"');
-                                    Substratum.log(SUBSTRATUM_BUILDER, "Moving variant file to: " +
-                                            workingDirectory + parsedSuffix + "/values/type1b.xml");
-
-                                    String toCopy =
-                                            OVERLAYS_DIR + '/' + currentOverlay +
-                                                    "/type1b_" +
-                                                    checked.getSelectedVariantName2() +
-                                                    (overlays.encrypted ? ".xml" +
-                                                            ENCRYPTED_FILE_EXTENSION : ".xml");
-
-                                    FileOperations.copyFileOrDir(
-                                            overlays.themeAssetManager,
-                                            toCopy,
-                                            workingDirectory + parsedSuffix + (
-                                                    overlays.encrypted ?
-                                                            "/values/type1b.xml" +
-                                                                    ENCRYPTED_FILE_EXTENSION :
-                                                            "/values/type1b.xml"),
-                                            toCopy,
-                                            overlays.themeCipher);
-                                }
-                                // Type 1c
-                                if (checked.isVariantChosen3) {
-                                    type1c = checked.getSelectedVariantName3();
-                                    Substratum.log(SUBSTRATUM_BUILDER, "You have selected variant file \"" +
-                                            checked.getSelectedVariantName3() + '"');
-                                    Substratum.log(SUBSTRATUM_BUILDER, "Moving variant file to: " +
-                                            workingDirectory + parsedSuffix + "/values/type1c.xml");
-
-                                    String toCopy =
-                                            OVERLAYS_DIR + '/' + currentOverlay +
-                                                    "/type1c_" +
-                                                    checked.getSelectedVariantName3() +
-                                                    (overlays.encrypted ? ".xml" +
-                                                            ENCRYPTED_FILE_EXTENSION : ".xml");
-
-                                    FileOperations.copyFileOrDir(
-                                            overlays.themeAssetManager,
-                                            toCopy,
-                                            workingDirectory + parsedSuffix + (
-                                                    overlays.encrypted ?
-                                                            "/values/type1c.xml" +
-                                                                    ENCRYPTED_FILE_EXTENSION :
-                                                            "/values/type1c.xml"),
-                                            toCopy,
-                                            overlays.themeCipher);
-                                }
-
-                                String variantSection =
-                                        (checked.isVariantChosen1 ?
-                                                checked.getSelectedVariantName() : "") +
-                                                (overlays.currentInstance.checkedOverlays
-                                                        .get(i).isVariantChosen2 ?
-                                                        overlays.currentInstance.checkedOverlays
-                                                                .get(i)
-                                                                .getSelectedVariantName2() : "") +
-                                                (overlays.currentInstance.checkedOverlays
-                                                        .get(i).isVariantChosen3 ?
-                                                        overlays.currentInstance.checkedOverlays
-                                                                .get(i)
-                                                                .getSelectedVariantName3() : "") +
-                                                (overlays.currentInstance.checkedOverlays
-                                                        .get(i).isVariantChosen4 ?
-                                                        overlays.currentInstance.checkedOverlays
-                                                                .get(i)
-                                                                .getSelectedVariantName4() : "") +
-                                                (overlays.currentInstance.checkedOverlays
-                                                        .get(i).isVariantChosen5 ?
-                                                        overlays.currentInstance.checkedOverlays
-                                                                .get(i)
-                                                                .getSelectedVariantName5() : "")
-                                                        .replaceAll("\\s+", "").replaceAll
-                                                        ("[^a-zA-Z0-9]+", "");
-
-                                if (checked.isVariantChosen5) {
-                                    // Copy over the type4 assets
-                                    type4 = checked.getSelectedVariantName5();
-                                    String type4folder = "/type4_" + type4;
-                                    String type4folderOutput = "/assets";
-                                    String toCopy2 = OVERLAYS_DIR + '/' +
-                                            currentOverlay +
-                                            type4folder;
-                                    FileOperations.copyFileOrDir(
-                                            overlays.themeAssetManager,
-                                            toCopy2,
-                                            workingDirectory + type4folderOutput,
-                                            toCopy2,
-                                            overlays.themeCipher);
-                                }
-                                if (checked.isVariantChosen4) {
-                                    // Copy over the type2 assets
-                                    type2 = checked.getSelectedVariantName4();
-                                    String type2folder = "/type2_" + type2;
-                                    String toCopy = OVERLAYS_DIR + '/' +
-                                            currentOverlay +
-                                            type2folder;
-                                    FileOperations.copyFileOrDir(
-                                            overlays.themeAssetManager,
-                                            toCopy,
-                                            workingDirectory + type2folder,
-                                            toCopy,
-                                            overlays.themeCipher);
-
-                                    // Let's get started
-                                    Substratum.log(SUBSTRATUM_BUILDER, "Currently processing package" +
-                                            " \"" + checked.getFullOverlayParameters() + "\"...");
-
-                                    overlays.compileInstance = new SubstratumBuilder(context);
-                                    overlays.compileInstance.beginAction(
-                                            currentOverlay,
-                                            overlays.themeName,
-                                            variantSection,
-                                            checked.getSelectedVariantName4(),
-                                            !sUrl[0].isEmpty() ? sUrl[0] : null,
-                                            overlays.themeVersion,
-                                            overlays.themePid,
-                                            parsedSuffix,
-                                            type1a,
-                                            type1b,
-                                            type1c,
-                                            type2,
-                                            type3,
-                                            type4,
-                                            null,
-                                            false
-                                    );
-                                } else {
-                                    Substratum.log(SUBSTRATUM_BUILDER, "Currently processing package" +
-                                            " \"" + checked.getFullOverlayParameters() + "\"...");
-                                    overlays.compileInstance = new SubstratumBuilder(context);
-                                    overlays.compileInstance.beginAction(
-                                            currentOverlay,
-                                            overlays.themeName,
-                                            variantSection,
-                                            null,
-                                            !sUrl[0].isEmpty() ? sUrl[0] : null,
-                                            overlays.themeVersion,
-                                            overlays.themePid,
-                                            parsedSuffix,
-                                            type1a,
-                                            type1b,
-                                            type1c,
-                                            type2,
-                                            type3,
-                                            type4,
-                                            null,
-                                            false
-                                    );
-                                }
-                                if (overlays.compileInstance.hasErroredOut) {
-                                    if (!overlays.compileInstance.getErrorLogs()
-                                            .contains("type3") ||
-                                            !overlays.compileInstance.getErrorLogs().contains(
-                                                    "does not exist")) {
-                                        overlays.currentInstance.failCount += 1;
-                                        if (overlays.currentInstance.errorLogs.length() == 0) {
-                                            overlays.currentInstance.errorLogs.append(
-                                                    overlays.compileInstance.getErrorLogs());
-                                        } else {
-                                            overlays.currentInstance.errorLogs.append('\n')
-                                                    .append(overlays.compileInstance
-                                                            .getErrorLogs());
-                                        }
-                                        overlays.currentInstance.failedPackages
-                                                .append(currentOverlay);
-                                        overlays.currentInstance.failedPackages.append(" (");
-                                        overlays.currentInstance.failedPackages.append(
-                                                Packages.getAppVersion(context,
-                                                        currentOverlay));
-                                        overlays.currentInstance.failedPackages.append(")\n");
-                                        overlays.currentInstance.hasFailed = true;
-                                    } else {
-                                        overlays.currentInstance.missingType3 = true;
-                                    }
-                                } else {
-                                    if (overlays.compileInstance.specialSnowflake ||
-                                            !overlays.compileInstance.noInstall.isEmpty()) {
-                                        overlays.currentInstance.lateInstall.add(
-                                                overlays.compileInstance.noInstall);
-                                    } else if (needToWait) {
-                                        // Thread wait
-                                        Substratum.startWaitingInstall();
-                                        do {
-                                            try {
-                                                Thread.sleep((long) SPECIAL_SNOWFLAKE_DELAY);
-                                            } catch (InterruptedException ignored) {
-                                                Thread.currentThread().interrupt();
-                                            }
-                                        } while (Substratum.isWaitingInstall());
-                                    }
-                                }
-                            } else {
-                                Substratum.log(SUBSTRATUM_BUILDER, "Currently processing package" +
-                                        " \"" + currentOverlay + '.' + themeNameParsed +
-                                        "\"...");
-                                overlays.compileInstance = new SubstratumBuilder(context);
-                                overlays.compileInstance.beginAction(
-                                        currentOverlay,
-                                        overlays.themeName,
-                                        null,
-                                        null,
-                                        null,
-                                        overlays.themeVersion,
-                                        overlays.themePid,
-                                        parsedSuffix,
-                                        type1a,
-                                        type1b,
-                                        type1c,
-                                        type2,
-                                        type3,
-                                        type4,
-                                        null,
-                                        false
-                                );
-
-                                if (overlays.compileInstance.hasErroredOut) {
-                                    overlays.currentInstance.failCount += 1;
-                                    if (overlays.currentInstance.errorLogs.length() == 0) {
-                                        overlays.currentInstance.errorLogs.append(
-                                                overlays.compileInstance.getErrorLogs());
-                                    } else {
-                                        overlays.currentInstance.errorLogs.append('\n')
-                                                .append(overlays.compileInstance.getErrorLogs());
-                                    }
-                                    overlays.currentInstance.failedPackages
-                                            .append(currentOverlay);
-                                    overlays.currentInstance.failedPackages.append(" (");
-                                    overlays.currentInstance.failedPackages.append(
-                                            Packages.getAppVersion(context, currentOverlay));
-                                    overlays.currentInstance.failedPackages.append(")\n");
-                                    overlays.currentInstance.hasFailed = true;
-                                } else {
-                                    if (overlays.compileInstance.specialSnowflake ||
-                                            !overlays.compileInstance.noInstall.isEmpty()) {
-                                        overlays.currentInstance.lateInstall
-                                                .add(overlays.compileInstance.noInstall);
-                                    } else if (needToWait) {
-                                        // Thread wait
-                                        Substratum.startWaitingInstall();
-                                        do {
-                                            try {
-                                                Thread.sleep((long) SPECIAL_SNOWFLAKE_DELAY);
-                                            } catch (InterruptedException ignored) {
-                                                Thread.currentThread().interrupt();
-                                            }
-                                        } while (Substratum.isWaitingInstall());
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            Log.e(SUBSTRATUM_BUILDER, "Main function has unexpectedly stopped!");
-                        }
+                        int journalEntry = journal.plan(
+                                checked.getPackageName(),
+                                checked.getFullOverlayParameters(),
+                                sUrl[0],
+                                checked.isVariantChosen1 ? checked.getSelectedVariantName() : "",
+                                checked.isVariantChosen2 ? checked.getSelectedVariantName2() : "",
+                                checked.isVariantChosen3 ? checked.getSelectedVariantName3() : "",
+                                checked.isVariantChosen4 ? checked.getSelectedVariantName4() : "",
+                                checked.isVariantChosen5 ? checked.getSelectedVariantName5() : "");
+                        scheduler.submit(workingDirectory ->
+                                compileOverlay(
+                                        overlays,
+                                        context,
+                                        checked,
+                                        sUrl[0],
+                                        assembler,
+                                        scheduler,
+                                        journal,
+                                        journalEntry,
+                                        needToWait,
+                                        started.incrementAndGet(),
+                                        workingDirectory));
                     } else if (!state.equals(COMPILE_UPDATE)) {
                         String packageName = checked.getFullOverlayParameters();
                         if (Packages.isPackageInstalled(context, packageName)) {
@@ -1045,9 +640,182 @@ final class OverlaysManager {
                         }
                     }
                 }
+                scheduler.awaitCompletion();
+                overlays.currentInstance.systemUIInstalled = scheduler.hasInstalledSystemUI();
+                session.close();
+                journal.finish();
             }
             return null;
         }
+
+        /**
+         * Extract and compile a single overlay inside the work area given by the compile engine
+         *
+         * @param overlays         Overlays fragment
+         * @param context          Context
+         * @param checked          Overlay that was checked by the user
+         * @param variant          Selected base variant, empty if none
+         * @param assembler        Lays out and builds the overlays of the theme
+         * @param scheduler        Scheduler that installs the overlay once it has been compiled
+         * @param journal          Journal of the batch
+         * @param journalEntry     Identifier of this overlay within the journal
+         * @param needToWait       Whether the install of this overlay has to be waited upon
+         * @param current          Position of this overlay in the queue
+         * @param workingDirectory Work area private to this overlay
+         */
+        private void compileOverlay(Overlays overlays,
+                                    Context context,
+                                    OverlaysItem checked,
+                                    String variant,
+                                    OverlayAssembler assembler,
+                                    CompileScheduler scheduler,
+                                    CompileJournal journal,
+                                    int journalEntry,
+                                    boolean needToWait,
+                                    int current,
+                                    String workingDirectory) {
+            String currentOverlay = checked.getPackageName();
+            synchronized (overlays.currentInstance) {
+                overlays.currentInstance.currentAmount = (double) current;
+                currentDialogOverlay =
+                        '\'' + Packages.getPackageName(context, currentOverlay) + '\'';
+                currentPackageName = currentOverlay;
+            }
+            publishProgress(current);
+            try {
+                String packageTitle = "";
+                if (projekt.substratum.common.Resources.allowedSystemUIOverlay
+                        (currentOverlay) ||
+                        projekt.substratum.common.Resources.allowedFrameworkOverlay
+                                (currentOverlay) ||
+                        projekt.substratum.common.Resources.allowedSettingsOverlay
+                                (currentOverlay)) {
+                    switch (currentOverlay) {
+                        case SYSTEMUI_HEADERS:
+                            packageTitle = context.getString(R.string.systemui_headers);
+                            break;
+                        case SYSTEMUI_NAVBARS:
+                            packageTitle = context.getString(R.string
+                                    .systemui_navigation);
+                            break;
+                        case SYSTEMUI_STATUSBARS:
+                            packageTitle = context.getString(R.string
+                                    .systemui_statusbar);
+                            break;
+                        case SYSTEMUI_QSTILES:
+                            packageTitle = context.getString(R.string
+                                    .systemui_qs_tiles);
+                            break;
+                        case SAMSUNG_FRAMEWORK:
+                            packageTitle = context.getString(
+                                    R.string.samsung_framework);
+                            break;
+                        case LG_FRAMEWORK:
+                            packageTitle = context.getString(R.string.lg_framework);
+                            break;
+                        case SETTINGS_ICONS:
+                            packageTitle = context.getString(R.string.settings_icons);
+                            break;
+                    }
+                } else {
+                    ApplicationInfo applicationInfo = null;
+                    try {
+                        applicationInfo = context.getPackageManager()
+                                .getApplicationInfo(currentOverlay, 0);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        e.printStackTrace();
+                    }
+                    packageTitle = context.getPackageManager()
+                            .getApplicationLabel(applicationInfo).toString();
+                }
+
+                // Initialize working notification
+                if (overlays.checkActiveNotifications()) {
+                    synchronized (overlays.builder) {
+                        overlays.builder.setProgress(100, (int) (((double) current /
+                                overlays.currentInstance.totalAmount) * 100.0), false);
+                        overlays.builder.setContentText('"' + packageTitle + '"');
+                        overlays.notifyManager.notify(References.NOTIFICATION_ID_COMPILER,
+                                overlays.builder.build());
+                    }
+                }
+
+                SubstratumBuilder compileInstance = assembler.build(
+                        workingDirectory,
+                        currentOverlay,
+                        variant,
+                        checked.isVariantChosen1 ? checked.getSelectedVariantName() : "",
+                        checked.isVariantChosen2 ? checked.getSelectedVariantName2() : "",
+                        checked.isVariantChosen3 ? checked.getSelectedVariantName3() : "",
+                        checked.isVariantChosen4 ? checked.getSelectedVariantName4() : "",
+                        checked.isVariantChosen5 ? checked.getSelectedVariantName5() : "",
+                        null);
+                journal.advance(journalEntry, compileInstance.hasErroredOut ?
+                        CompileJournal.Stage.FAILED : CompileJournal.Stage.COMPILED);
+                concludeOverlay(overlays, context, compileInstance, scheduler,
+                        currentOverlay, needToWait, checked.isVariantChosen || !variant.isEmpty(),
+                        () -> journal.advance(journalEntry, CompileJournal.Stage.INSTALLED));
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(SUBSTRATUM_BUILDER, "Main function has unexpectedly stopped!");
+                journal.advance(journalEntry, CompileJournal.Stage.FAILED);
+            }
+        }
+
+        /**
+         * Record the outcome of a finished compilation into the shared instance
+         *
+         * @param overlays        Overlays fragment
+         * @param context         Context
+         * @param compileInstance Builder that compiled the overlay
+         * @param scheduler       Scheduler that installs the compiled overlay
+         * @param currentOverlay  Target package of the overlay
+         * @param needToWait      Whether the install of this overlay has to be waited upon
+         * @param allowType3      Whether a missing type3 variant should be ignored
+         * @param onInstalled     Run once the overlay is known to have been installed
+         */
+        private static void concludeOverlay(Overlays overlays,
+                                            Context context,
+                                            SubstratumBuilder compileInstance,
+                                            CompileScheduler scheduler,
+                                            String currentOverlay,
+                                            boolean needToWait,
+                                            boolean allowType3,
+                                            Runnable onInstalled) {
+            if (compileInstance.hasErroredOut) {
+                synchronized (overlays.currentInstance) {
+                    String compileErrors = compileInstance.getDiagnostics()
+                            .format(CompileDiagnostics.Stage.COMPILE);
+                    if (allowType3 &&
+                            compileErrors.contains("type3") &&
+                            compileErrors.contains("does not exist")) {
+                        overlays.currentInstance.missingType3 = true;
+                        return;
+                    }
+                    overlays.currentInstance.failCount += 1;
+                    overlays.currentInstance.diagnostics.addAll(
+                            compileInstance.getDiagnostics());
+                    overlays.currentInstance.failedPackages
+                            .append(currentOverlay);
+                    overlays.currentInstance.failedPackages.append(" (");
+                    overlays.currentInstance.failedPackages.append(
+                            Packages.getAppVersion(context, currentOverlay));
+                    overlays.currentInstance.failedPackages.append(")\n");
+                    overlays.currentInstance.hasFailed = true;
+                }
+            } else {
+                if (compileInstance.specialSnowflake ||
+                        !compileInstance.noInstall.isEmpty()) {
+                    synchronized (overlays.currentInstance) {
+                        overlays.currentInstance.lateInstall.add(compileInstance.noInstall);
+                    }
+                } else if (!compileInstance.pendingInstall.isEmpty()) {
+                    // Install on the scheduler, while the next overlay is being compiled
+                    scheduler.install(currentOverlay, compileInstance.pendingInstall, needToWait,
+                            onInstalled);
+                }
+            }
+        }
     }
 
     /**
@@ -1432,39 +1200,47 @@ final class OverlaysManager {
                             Thread.MAX_PRIORITY);
                     thread.start();
                     new Handler(thread.getLooper()).post(() -> {
+                        // Installed as one batch, which only returns once the package manager
+                        // knows about every overlay, so they can be enabled right after
+                        Map<String, Boolean> results = ThemeManager.installOverlay(
+                                context, overlays.currentInstance.lateInstall);
                         ArrayList<String> packages = new ArrayList<>();
-                        for (String o : overlays.currentInstance.lateInstall) {
-                            ThemeManager.installOverlay(context, o);
+                        for (Map.Entry<String, Boolean> result : results.entrySet()) {
+                            String o = result.getKey();
                             String packageName =
                                     o.substring(o.lastIndexOf('/') + 1, o.lastIndexOf('-'));
-                            packages.add(packageName);
-                            if (!Systems.isNewSamsungDevice() &&
-                                    checkThemeInterfacer(context) ||
-                                    Systems.isAndromedaDevice(context)) {
-                                // Wait until the overlays to fully install so on compile enable
-                                // mode it can be enabled after.
-                                Substratum.startWaitingInstall();
-                                do {
-                                    try {
-                                        Thread.sleep((long) SPECIAL_SNOWFLAKE_DELAY);
-                                    } catch (InterruptedException ignored) {
-                                        // Still waiting
-                                    }
-                                } while (Substratum.isWaitingInstall());
+                            if (result.getValue()) {
+                                packages.add(packageName);
+                            } else {
+                                Log.e(SUBSTRATUM_BUILDER,
+                                        "Late install of \"" + packageName + "\" has failed.");
                             }
                         }
                         if (state.equals(COMPILE_ENABLE)) {
-                            try {
-                                Thread.sleep((long) (SPECIAL_SNOWFLAKE_DELAY_SS));
-                                ThemeManager.enableOverlay(context, packages);
-                            } catch (InterruptedException ignored) {
-                                // Still waiting
-                            }
+                            ThemeManager.enableOverlay(context, packages);
                         }
-                        Substratum.getInstance().unregisterFinishReceiver();
                         thread.quitSafely();
                     });
                 }
+
+                // SystemUI overlays were installed first, so one restart once everything has
+                // been enabled picks all of them up
+                if (!overlays.currentInstance.hasFailed &&
+                        overlays.currentInstance.systemUIInstalled &&
+                        checkOMS(context)) {
+                    for (OverlaysItem overlay : overlays.currentInstance.checkedOverlays) {
+                        if (!SYSTEMUI.equals(
+                                CompileSession.getTargetPackage(overlay.getPackageName()))) {
+                            continue;
+                        }
+                        String packageName = overlay.getFullOverlayParameters();
+                        if (ThemeManager.isOverlayEnabled(context, packageName)) {
+                            if (ThemeManager.shouldRestartUI(context, packageName))
+                                ThemeManager.restartSystemUI(context);
+                            break;
+                        }
+                    }
+                }
             }
             return null;
         }
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.res.Resources;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a generated overlay manifest straight into Android's binary XML format, so the manifest
+ * does not have to be parsed and re-encoded by aapt for every overlay.
+ * <p>
+ * Attribute values are typed the same way aapt would type them, which matters for the meta-data
+ * entries: a numeric {@code android:value} must stay an integer for {@code Bundle.getInt()}.
+ */
+public class BinaryManifestEncoder {
+
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+    private static final String ANDROID_PREFIX = "android";
+    private static final String NAMESPACE_DECLARATION = "xmlns:";
+
+    // Chunk types and header sizes, as defined in ResourceTypes.h
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+    private static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int STRING_POOL_HEADER_SIZE = 28;
+    private static final int XML_NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+
+    // Value types of Res_value
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_FLOAT = 0x04;
+    private static final int TYPE_INT_DEC = 0x10;
+    private static final int TYPE_INT_HEX = 0x11;
+    private static final int TYPE_INT_BOOLEAN = 0x12;
+    private static final int TYPE_INT_COLOR_ARGB8 = 0x1c;
+    private static final int TYPE_INT_COLOR_RGB8 = 0x1d;
+    private static final int TYPE_INT_COLOR_ARGB4 = 0x1e;
+    private static final int TYPE_INT_COLOR_RGB4 = 0x1f;
+
+    // Attributes of the overlay manifest that are not plain strings
+    private static final List<String> BOOLEAN_ATTRIBUTES = Arrays.asList("isStatic", "hasCode");
+    private static final List<String> INTEGER_ATTRIBUTES = Arrays.asList("priority", "versionCode");
+    private static final String META_DATA_VALUE = "value";
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final List<Integer> resourceIds = new ArrayList<>();
+    private String namespacePrefix;
+
+    private BinaryManifestEncoder() {
+        super();
+    }
+
+    /**
+     * Encode a manifest
+     *
+     * @param document Manifest created by the compiler commands
+     * @return Binary XML, or null if an attribute could not be resolved
+     */
+    public static byte[] encode(Document document) {
+        try {
+            return new BinaryManifestEncoder().write(document.getDocumentElement());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private byte[] write(Element root) {
+        // The resource map is indexed by string index, so the attributes that need a resource id
+        // have to take the first slots of the string pool
+        collectAttributeNames(root);
+
+        Chunk body = new Chunk();
+        boolean hasNamespace = root.hasAttribute(NAMESPACE_DECLARATION + ANDROID_PREFIX);
+        if (hasNamespace) {
+            namespacePrefix = ANDROID_PREFIX;
+            writeNamespace(body, RES_XML_START_NAMESPACE_TYPE);
+        }
+        writeElement(body, root);
+        if (hasNamespace) {
+            writeNamespace(body, RES_XML_END_NAMESPACE_TYPE);
+        }
+
+        Chunk stringPool = createStringPool();
+        Chunk resourceMap = new Chunk();
+        resourceMap.writeShort(RES_XML_RESOURCE_MAP_TYPE);
+        resourceMap.writeShort(8);
+        resourceMap.writeInt(8 + resourceIds.size() * 4);
+        for (int resourceId : resourceIds) {
+            resourceMap.writeInt(resourceId);
+        }
+
+        Chunk document = new Chunk();
+        document.writeShort(RES_XML_TYPE);
+        document.writeShort(8);
+        document.writeInt(8 + stringPool.size() + resourceMap.size() + body.size());
+        document.write(stringPool);
+        document.write(resourceMap);
+        document.write(body);
+        return document.toByteArray();
+    }
+
+    private void collectAttributeNames(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String name = attributes.item(i).getNodeName();
+            if (name.startsWith(ANDROID_PREFIX + ':')) {
+                String localName = name.substring(ANDROID_PREFIX.length() + 1);
+                if (!stringIndexes.containsKey(localName)) {
+                    int resourceId = Resources.getSystem()
+                            .getIdentifier(localName, "attr", ANDROID_PREFIX);
+                    if (resourceId == 0) {
+                        throw new IllegalStateException(
+                                "Could not resolve attribute android:" + localName);
+                    }
+                    stringIndexes.put(localName, strings.size());
+                    strings.add(localName);
+                    resourceIds.add(resourceId);
+                }
+            }
+        }
+        for (Element child : getChildElements(element)) {
+            collectAttributeNames(child);
+        }
+    }
+
+    private void writeNamespace(Chunk body, int type) {
+        body.writeShort(type);
+        body.writeShort(XML_NODE_HEADER_SIZE);
+        body.writeInt(XML_NODE_HEADER_SIZE + 8);
+        body.writeInt(1);
+        body.writeInt(NO_ENTRY);
+        body.writeInt(getStringIndex(namespacePrefix));
+        body.writeInt(getStringIndex(ANDROID_NAMESPACE));
+    }
+
+    private void writeElement(Chunk body, Element element) {
+        List<Attribute> attributes = new ArrayList<>();
+        NamedNodeMap nodeMap = element.getAttributes();
+        for (int i = 0; i < nodeMap.getLength(); i++) {
+            Attr attr = (Attr) nodeMap.item(i);
+            if (!attr.getName().startsWith(NAMESPACE_DECLARATION)) {
+                attributes.add(new Attribute(attr.getName(), attr.getValue()));
+            }
+        }
+        // The framework walks attributes in resource id order, plain attributes go first
+        attributes.sort((a, b) -> Long.compare(a.getSortKey(), b.getSortKey()));
+
+        int name = getStringIndex(element.getTagName());
+        body.writeShort(RES_XML_START_ELEMENT_TYPE);
+        body.writeShort(XML_NODE_HEADER_SIZE);
+        body.writeInt(XML_NODE_HEADER_SIZE + 20 + attributes.size() * ATTRIBUTE_SIZE);
+        body.writeInt(1);
+        body.writeInt(NO_ENTRY);
+        body.writeInt(NO_ENTRY);
+        body.writeInt(name);
+        body.writeShort(20);
+        body.writeShort(ATTRIBUTE_SIZE);
+        body.writeShort(attributes.size());
+        body.writeShort(0);
+        body.writeShort(0);
+        body.writeShort(0);
+        for (Attribute attribute : attributes) {
+            attribute.write(body);
+        }
+
+        for (Element child : getChildElements(element)) {
+            writeElement(body, child);
+        }
+
+        body.writeShort(RES_XML_END_ELEMENT_TYPE);
+        body.writeShort(XML_NODE_HEADER_SIZE);
+        body.writeInt(XML_NODE_HEADER_SIZE + 8);
+        body.writeInt(1);
+        body.writeInt(NO_ENTRY);
+        body.writeInt(NO_ENTRY);
+        body.writeInt(name);
+    }
+
+    private Chunk createStringPool() {
+        Chunk data = new Chunk();
+        int[] offsets = new int[strings.size()];
+        for (int i = 0; i < strings.size(); i++) {
+            offsets[i] = data.size();
+            String string = strings.get(i);
+            data.writeShort(string.length());
+            for (int j = 0; j < string.length(); j++) {
+                data.writeShort(string.charAt(j));
+            }
+            data.writeShort(0);
+        }
+        while ((data.size() % 4) != 0) {
+            data.writeByte(0);
+        }
+
+        int stringsStart = STRING_POOL_HEADER_SIZE + strings.size() * 4;
+        Chunk pool = new Chunk();
+        pool.writeShort(RES_STRING_POOL_TYPE);
+        pool.writeShort(STRING_POOL_HEADER_SIZE);
+        pool.writeInt(stringsStart + data.size());
+        pool.writeInt(strings.size());
+        pool.writeInt(0);
+        pool.writeInt(0);
+        pool.writeInt(stringsStart);
+        pool.writeInt(0);
+        for (int offset : offsets) {
+            pool.writeInt(offset);
+        }
+        pool.write(data);
+        return pool;
+    }
+
+    private int getStringIndex(String string) {
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            stringIndexes.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    private static List<Element> getChildElements(Element element) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = element.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Little endian buffer that a chunk is assembled in
+     */
+    private static class Chunk extends ByteArrayOutputStream {
+        void writeByte(int value) {
+            write(value);
+        }
+
+        void writeShort(int value) {
+            write(value & 0xFF);
+            write((value >>> 8) & 0xFF);
+        }
+
+        void writeInt(int value) {
+            writeShort(value & 0xFFFF);
+            writeShort((value >>> 16) & 0xFFFF);
+        }
+
+        void write(Chunk chunk) {
+            write(chunk.buf, 0, chunk.count);
+        }
+    }
+
+    /**
+     * A single attribute along with the typed value aapt would have given it
+     */
+    private class Attribute {
+        private final boolean isAndroid;
+        private final String name;
+        private final String value;
+
+        Attribute(String qualifiedName, String value) {
+            super();
+            this.isAndroid = qualifiedName.startsWith(ANDROID_PREFIX + ':');
+            this.name = isAndroid ?
+                    qualifiedName.substring(ANDROID_PREFIX.length() + 1) : qualifiedName;
+            this.value = value;
+        }
+
+        long getSortKey() {
+            return isAndroid ? (resourceIds.get(stringIndexes.get(name)) & 0xFFFFFFFFL) : -1L;
+        }
+
+        void write(Chunk body) {
+            int type = TYPE_STRING;
+            int data = 0;
+            if (isAndroid && BOOLEAN_ATTRIBUTES.contains(name)) {
+                type = TYPE_INT_BOOLEAN;
+                data = Boolean.parseBoolean(value) ? NO_ENTRY : 0;
+            } else if (isAndroid && INTEGER_ATTRIBUTES.contains(name)) {
+                type = TYPE_INT_DEC;
+                data = Integer.parseInt(value);
+            } else if (isAndroid && META_DATA_VALUE.equals(name)) {
+                int[] typed = parseValue(value);
+                if (typed != null) {
+                    type = typed[0];
+                    data = typed[1];
+                }
+            }
+            body.writeInt(isAndroid ? getStringIndex(ANDROID_NAMESPACE) : NO_ENTRY);
+            body.writeInt(getStringIndex(name));
+            if (type == TYPE_STRING) {
+                data = getStringIndex(value);
+                body.writeInt(data);
+            } else {
+                body.writeInt(NO_ENTRY);
+            }
+            body.writeShort(8);
+            body.writeByte(0);
+            body.writeByte(type);
+            body.writeInt(data);
+        }
+
+        /**
+         * Type a value the way aapt types an attribute of format string|integer|boolean|color|float
+         *
+         * @param value Raw value
+         * @return Type and data, or null if the value should stay a string
+         */
+        private int[] parseValue(String value) {
+            String trimmed = value.trim();
+            if ("true".equals(trimmed) || "false".equals(trimmed)) {
+                return new int[]{TYPE_INT_BOOLEAN, "true".equals(trimmed) ? NO_ENTRY : 0};
+            }
+            if (trimmed.matches("#[0-9a-fA-F]{3,8}") && (trimmed.length() != 6) &&
+                    (trimmed.length() != 8)) {
+                int color = (int) Long.parseLong(trimmed.substring(1), 16);
+                switch (trimmed.length()) {
+                    case 4:
+                        return new int[]{TYPE_INT_COLOR_RGB4, expandColor(color, false)};
+                    case 5:
+                        return new int[]{TYPE_INT_COLOR_ARGB4, expandColor(color, true)};
+                    case 7:
+                        return new int[]{TYPE_INT_COLOR_RGB8, 0xFF000000 | color};
+                    default:
+                        return new int[]{TYPE_INT_COLOR_ARGB8, color};
+                }
+            }
+            try {
+                if (trimmed.matches("-?0[xX][0-9a-fA-F]{1,8}")) {
+                    boolean negative = trimmed.startsWith("-");
+                    int hex = (int) Long.parseLong(trimmed.substring(negative ? 3 : 2), 16);
+                    return new int[]{TYPE_INT_HEX, negative ? -hex : hex};
+                }
+                if (trimmed.matches("[-+]?[0-9]+")) {
+                    return new int[]{TYPE_INT_DEC, Integer.parseInt(trimmed)};
+                }
+                if (trimmed.matches("[-+]?([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?")) {
+                    return new int[]{TYPE_FLOAT, Float.floatToIntBits(Float.parseFloat(trimmed))};
+                }
+            } catch (NumberFormatException ignored) {
+                // Out of range numbers are kept as strings
+            }
+            return null;
+        }
+
+        private int expandColor(int color, boolean hasAlpha) {
+            int alpha = hasAlpha ? ((color >> 12) & 0xF) : 0xF;
+            int red = (color >> 8) & 0xF;
+            int green = (color >> 4) & 0xF;
+            int blue = color & 0xF;
+            return (alpha * 0x11 << 24) | (red * 0x11 << 16) | (green * 0x11 << 8) | (blue * 0x11);
+        }
+    }
+}
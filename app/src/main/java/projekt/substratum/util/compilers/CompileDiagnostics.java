@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded store of the failures reported while building overlays.
+ * <p>
+ * Each record keeps the overlay it belongs to, the stage of the build that failed, the exit code
+ * of the tool that was run, if any, and its message, such as the captured stderr of aapt. Records
+ * are kept in a ring buffer, so once the store is full the oldest records are dropped and a large
+ * failing batch does not grow the memory of the app. Messages are cut off at
+ * {@link #MAX_MESSAGE_LENGTH} for the same reason.
+ */
+public class CompileDiagnostics {
+
+    public static final int NO_EXIT_CODE = Integer.MIN_VALUE;
+    private static final int MAX_MESSAGE_LENGTH = 8192;
+    private static final String SEPARATOR = "\t";
+    private final Record[] records;
+    private int next;
+    private int size;
+    private int dropped;
+
+    /**
+     * @param capacity Amount of records to be kept
+     */
+    public CompileDiagnostics(int capacity) {
+        super();
+        records = new Record[capacity];
+    }
+
+    /**
+     * Record a failure
+     *
+     * @param overlay  Overlay that has failed
+     * @param stage    Stage of the build that has failed
+     * @param exitCode Exit code of the tool that has failed, or {@link #NO_EXIT_CODE}
+     * @param message  Failure message
+     */
+    public synchronized void add(String overlay, Stage stage, int exitCode, String message) {
+        if ((message == null) || message.isEmpty()) return;
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            message = message.substring(0, MAX_MESSAGE_LENGTH) + "...";
+        }
+        add(new Record(System.currentTimeMillis(), overlay, stage, exitCode, message));
+    }
+
+    /**
+     * Copy the records of another store into this one, for example those of a single build into
+     * the store of the whole batch
+     *
+     * @param diagnostics Store to be copied
+     */
+    public void addAll(CompileDiagnostics diagnostics) {
+        if ((diagnostics == null) || (diagnostics == this)) return;
+        List<Record> copied = diagnostics.getRecords();
+        synchronized (this) {
+            for (Record record : copied) {
+                add(record);
+            }
+        }
+    }
+
+    /**
+     * Copy this store, so that it can be handed off while this one is cleared
+     *
+     * @return Store holding the same records
+     */
+    public CompileDiagnostics copy() {
+        CompileDiagnostics copy = new CompileDiagnostics(records.length);
+        copy.addAll(this);
+        synchronized (this) {
+            copy.dropped += dropped;
+        }
+        return copy;
+    }
+
+    private void add(Record record) {
+        if (size == records.length) {
+            dropped++;
+        } else {
+            size++;
+        }
+        records[next] = record;
+        next = (next + 1) % records.length;
+    }
+
+    /**
+     * Get every record that is still kept, oldest first
+     *
+     * @return Records
+     */
+    public List<Record> getRecords() {
+        return getRecords(null);
+    }
+
+    /**
+     * Get the records of one stage, oldest first
+     *
+     * @param stage Stage to filter on, or null for every stage
+     * @return Records
+     */
+    public synchronized List<Record> getRecords(Stage stage) {
+        List<Record> result = new ArrayList<>(size);
+        int first = (next - size + records.length) % records.length;
+        for (int i = 0; i < size; i++) {
+            Record record = records[(first + i) % records.length];
+            if ((stage == null) || (record.stage == stage)) result.add(record);
+        }
+        return result;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Forget every record
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < records.length; i++) {
+            records[i] = null;
+        }
+        next = 0;
+        size = 0;
+        dropped = 0;
+    }
+
+    /**
+     * Write the records to a file, one tab separated record per line, which is easier to search
+     * through than the text shown by LogChar
+     *
+     * @param file Destination
+     * @throws IOException If the file could not be written
+     */
+    public void export(File file) throws IOException {
+        List<Record> exported = getRecords();
+        int droppedRecords;
+        synchronized (this) {
+            droppedRecords = dropped;
+        }
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, false), StandardCharsets.UTF_8))) {
+            writer.write("time\toverlay\tstage\texit\tmessage\n");
+            for (Record record : exported) {
+                writer.write(String.valueOf(record.time));
+                writer.write(SEPARATOR);
+                writer.write(escape(record.overlay));
+                writer.write(SEPARATOR);
+                writer.write(record.stage.name());
+                writer.write(SEPARATOR);
+                writer.write((record.exitCode != NO_EXIT_CODE) ?
+                        String.valueOf(record.exitCode) : "");
+                writer.write(SEPARATOR);
+                writer.write(escape(record.message));
+                writer.write('\n');
+            }
+            if (droppedRecords > 0) {
+                writer.write("# " + droppedRecords + " older records have been dropped\n");
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    /**
+     * Text shown by LogChar, one line per message
+     *
+     * @return Formatted records
+     */
+    @Override
+    public String toString() {
+        return format(null);
+    }
+
+    /**
+     * Text shown by LogChar for the records of one stage
+     *
+     * @param stage Stage to filter on, or null for every stage
+     * @return Formatted records
+     */
+    public String format(Stage stage) {
+        StringBuilder text = new StringBuilder();
+        for (Record record : getRecords(stage)) {
+            for (String line : record.message.split("\n")) {
+                if (text.length() > 0) text.append('\n');
+                text.append("» [").append(record.overlay).append("]: ").append(line);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Stages of an overlay build
+     */
+    public enum Stage {
+        PREPARE,
+        COMPILE,
+        PACKAGE,
+        SIGN,
+        INSTALL
+    }
+
+    /**
+     * A single failure
+     */
+    public static final class Record {
+        private final long time;
+        private final String overlay;
+        private final Stage stage;
+        private final int exitCode;
+        private final String message;
+
+        Record(long time, String overlay, Stage stage, int exitCode, String message) {
+            super();
+            this.time = time;
+            this.overlay = overlay;
+            this.stage = stage;
+            this.exitCode = exitCode;
+            this.message = message;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getOverlay() {
+            return overlay;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
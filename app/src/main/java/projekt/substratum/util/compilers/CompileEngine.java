@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.commands.FileOperations;
+
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER_JOB_CACHE;
+
+/**
+ * Runs overlay compilations on a bounded pool of worker threads.
+ * <p>
+ * Every job is handed its own work area, so the resources that are extracted for one overlay, its
+ * generated manifest and its unsigned APK are never seen by another job running at the same time.
+ */
+public class CompileEngine {
+
+    private static final AtomicInteger JOB_COUNTER = new AtomicInteger();
+    private final Context context;
+    private final ExecutorService executor;
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    /**
+     * Create an engine that runs as many jobs as there are available cores
+     *
+     * @param context Context
+     */
+    public CompileEngine(Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an engine with a fixed amount of workers
+     *
+     * @param context     Context
+     * @param parallelism Amount of jobs that may run at the same time
+     */
+    public CompileEngine(Context context, int parallelism) {
+        super();
+        this.context = context;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Queue a job for compilation
+     *
+     * @param job Job to be run with its own work area
+     */
+    public void submit(Job job) {
+        pending.add(executor.submit(() -> {
+            String workArea = context.getCacheDir().getAbsolutePath() +
+                    SUBSTRATUM_BUILDER_JOB_CACHE + JOB_COUNTER.incrementAndGet();
+            File created = new File(workArea);
+            if (created.exists()) {
+                FileOperations.delete(context, workArea);
+            }
+            FileOperations.createNewFolder(context, workArea);
+            try {
+                job.compile(workArea);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(SUBSTRATUM_BUILDER, "Compile job has unexpectedly stopped!");
+            } finally {
+                if (created.exists()) {
+                    FileOperations.delete(context, workArea);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Block until every queued job has finished, then release the workers
+     */
+    public void awaitCompletion() {
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        pending.clear();
+        executor.shutdown();
+        Substratum.log(SUBSTRATUM_BUILDER, "All compile jobs have finished.");
+    }
+
+    /**
+     * A single overlay compilation
+     */
+    public interface Job {
+        /**
+         * Extract and build the overlay
+         *
+         * @param workArea Directory private to this job
+         * @throws Exception Any failure that should end this job only
+         */
+        void compile(String workArea) throws Exception;
+    }
+}
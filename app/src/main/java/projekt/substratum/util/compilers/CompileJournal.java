@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.References.COMPILE_JOURNALS;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Durable record of the overlay batch that is being compiled.
+ * <p>
+ * Every overlay of a batch is written down before it is queued, and every stage it reaches is
+ * appended once it has been reached. Each line is synced to storage right away, so when the process
+ * dies or the device reboots in the middle of a batch, the journal still tells which overlays have
+ * yet to be built and the batch can be resumed from there. Every batch has its own journal, named
+ * after the time it was started, which is removed once its batch has completed.
+ */
+public class CompileJournal {
+
+    private static final String SEPARATOR = "\t";
+    private static final String BATCH = "B";
+    private static final String PLANNED = "P";
+    private static final String STAGE = "S";
+    private static final String EXTENSION = ".journal";
+    // Journals of this process, by file, whether they have been started or resumed
+    private static final Map<File, CompileJournal> open = new HashMap<>();
+    private final File file;
+    private final Batch batch;
+
+    private CompileJournal(File file, Batch batch) {
+        super();
+        this.file = file;
+        this.batch = batch;
+    }
+
+    /**
+     * Start the journal of a new batch. Every batch has its own journal, so the journals of
+     * other batches, including one that is being resumed, are left alone.
+     *
+     * @param context      Context
+     * @param themePackage Theme the overlays are built from
+     * @param enable       Whether the overlays are to be enabled once they have been installed
+     * @return Journal of the batch
+     */
+    public static synchronized CompileJournal begin(Context context,
+                                                    String themePackage,
+                                                    boolean enable) {
+        File directory = getDirectory(context);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(SUBSTRATUM_BUILDER, "Could not create the compile journal directory...");
+        }
+        long start = System.currentTimeMillis();
+        // Batches started within the same millisecond still get a journal of their own
+        while (getFile(context, start).exists() || open.containsKey(getFile(context, start))) {
+            start++;
+        }
+        Batch batch = new Batch(start, themePackage, enable);
+        CompileJournal journal = new CompileJournal(getFile(context, start), batch);
+        open.put(journal.file, journal);
+        journal.append(BATCH, String.valueOf(batch.start), themePackage, String.valueOf(enable));
+        return journal;
+    }
+
+    /**
+     * Pick up the journal of an interrupted batch, so that its stages are recorded again
+     *
+     * @param context Context
+     * @param batch   Batch read from the journal
+     * @return Journal of the batch, or null if it is already open or has completed in the meantime
+     */
+    public static synchronized CompileJournal resume(Context context, Batch batch) {
+        File file = getFile(context, batch.start);
+        if (open.containsKey(file) || !file.isFile()) return null;
+        CompileJournal journal = new CompileJournal(file, batch);
+        open.put(file, journal);
+        return journal;
+    }
+
+    /**
+     * Read the batches that have been left unfinished
+     *
+     * @param context Context
+     * @return Batches, oldest first, leaving out those that are still being run by this process
+     */
+    public static synchronized List<Batch> readInterrupted(Context context) {
+        List<Batch> batches = new ArrayList<>();
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) return batches;
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION) || open.containsKey(file)) continue;
+            Batch batch = read(file);
+            if (batch != null) {
+                batches.add(batch);
+            } else if (!file.delete()) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not remove a damaged compile journal...");
+            }
+        }
+        batches.sort((first, second) -> Long.compare(first.start, second.start));
+        return batches;
+    }
+
+    private static Batch read(File file) {
+        Batch batch = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                try {
+                    if (BATCH.equals(fields[0]) && (fields.length == 4)) {
+                        batch = new Batch(Long.parseLong(fields[1]), fields[2],
+                                Boolean.parseBoolean(fields[3]));
+                    } else if ((batch != null) && PLANNED.equals(fields[0]) &&
+                            (fields.length == 10)) {
+                        int id = Integer.parseInt(fields[1]);
+                        batch.entries.put(id, new Entry(id, Arrays.copyOfRange(fields, 2, 10)));
+                    } else if ((batch != null) && STAGE.equals(fields[0]) &&
+                            (fields.length == 3)) {
+                        Entry entry = batch.entries.get(Integer.parseInt(fields[1]));
+                        if (entry != null) entry.stage = Stage.valueOf(fields[2]);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // The line was cut off when the process died, it is still planned then
+                    Substratum.log(SUBSTRATUM_BUILDER, "Skipping a damaged journal line...");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return batch;
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getFilesDir().getAbsolutePath() + COMPILE_JOURNALS);
+    }
+
+    private static File getFile(Context context, long start) {
+        return new File(getDirectory(context), start + EXTENSION);
+    }
+
+    /**
+     * Record an overlay that is about to be queued
+     *
+     * @param overlayFolder  Overlay folder of the theme
+     * @param overlayPackage Package name the overlay will be installed as
+     * @param variant        Selected base variant, empty if none
+     * @param type1a         Selected type1a variant, empty if none
+     * @param type1b         Selected type1b variant, empty if none
+     * @param type1c         Selected type1c variant, empty if none
+     * @param type2          Selected type2 variant, empty if none
+     * @param type4          Selected type4 variant, empty if none
+     * @return Identifier of the overlay within the journal
+     */
+    public synchronized int plan(String overlayFolder,
+                                 String overlayPackage,
+                                 String variant,
+                                 String type1a,
+                                 String type1b,
+                                 String type1c,
+                                 String type2,
+                                 String type4) {
+        int id = batch.entries.size();
+        Entry entry = new Entry(id, new String[]{overlayFolder, overlayPackage, variant,
+                type1a, type1b, type1c, type2, type4});
+        batch.entries.put(id, entry);
+        String[] fields = new String[10];
+        fields[0] = PLANNED;
+        fields[1] = String.valueOf(id);
+        System.arraycopy(entry.fields, 0, fields, 2, entry.fields.length);
+        append(fields);
+        return id;
+    }
+
+    /**
+     * Record the stage an overlay has reached
+     *
+     * @param id    Identifier of the overlay within the journal
+     * @param stage Stage that has been reached
+     */
+    public synchronized void advance(int id, Stage stage) {
+        Entry entry = batch.entries.get(id);
+        if (entry != null) entry.stage = stage;
+        append(STAGE, String.valueOf(id), stage.name());
+    }
+
+    /**
+     * Remove the journal, as its batch has completed
+     */
+    public void finish() {
+        synchronized (CompileJournal.class) {
+            if (open.get(file) == this) open.remove(file);
+            // Only ever this batch's own journal
+            if (file.exists() && !file.delete()) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not remove the compile journal...");
+            }
+        }
+    }
+
+    /**
+     * Let go of the journal without removing it, so that its batch is resumed later on
+     */
+    public void suspend() {
+        synchronized (CompileJournal.class) {
+            if (open.get(file) == this) open.remove(file);
+        }
+    }
+
+    private void append(String... fields) {
+        StringBuilder line = new StringBuilder();
+        for (String field : fields) {
+            if (line.length() > 0) line.append(SEPARATOR);
+            // Keep every record on a single line
+            line.append((field != null) ? field.replaceAll("[\t\n]", " ") : "");
+        }
+        line.append('\n');
+        try (FileOutputStream output = new FileOutputStream(file, true)) {
+            output.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            output.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(SUBSTRATUM_BUILDER, "Could not write to the compile journal...");
+        }
+    }
+
+    /**
+     * Stages an overlay goes through
+     */
+    public enum Stage {
+        PLANNED,
+        COMPILED,
+        INSTALLED,
+        FAILED
+    }
+
+    /**
+     * A batch of overlays for one theme
+     */
+    public static final class Batch {
+        private final long start;
+        private final String themePackage;
+        private final boolean enable;
+        private final Map<Integer, Entry> entries = new LinkedHashMap<>();
+
+        Batch(long start, String themePackage, boolean enable) {
+            super();
+            this.start = start;
+            this.themePackage = themePackage;
+            this.enable = enable;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public String getThemePackage() {
+            return themePackage;
+        }
+
+        public boolean shouldEnable() {
+            return enable;
+        }
+
+        public List<Entry> getEntries() {
+            return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+        }
+    }
+
+    /**
+     * An overlay of a batch
+     */
+    public static final class Entry {
+        private final int id;
+        private final String[] fields;
+        private Stage stage = Stage.PLANNED;
+
+        Entry(int id, String[] fields) {
+            super();
+            this.id = id;
+            this.fields = fields;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getOverlayFolder() {
+            return fields[0];
+        }
+
+        public String getOverlayPackage() {
+            return fields[1];
+        }
+
+        public String getVariant() {
+            return fields[2];
+        }
+
+        public String getType1a() {
+            return fields[3];
+        }
+
+        public String getType1b() {
+            return fields[4];
+        }
+
+        public String getType1c() {
+            return fields[5];
+        }
+
+        public String getType2() {
+            return fields[6];
+        }
+
+        public String getType4() {
+            return fields[7];
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.platform.OperationCompletion;
+import projekt.substratum.common.platform.ThemeManager;
+
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+import static projekt.substratum.common.Resources.FRAMEWORK;
+import static projekt.substratum.common.Resources.SETTINGS;
+import static projekt.substratum.common.Resources.SYSTEMUI;
+
+/**
+ * Pipelines the compilation of overlays with their installation.
+ * <p>
+ * Overlays are compiled on the {@link CompileEngine}, and every overlay that finished compiling is
+ * handed to a single install worker, so the package manager is busy with one overlay while the
+ * next ones are still being built. Installs stay strictly serial, as some backends can only
+ * handle one package at a time.
+ * <p>
+ * Framework, SystemUI and Settings overlays are meant to be submitted first, so that the slow
+ * installs that need a SystemUI restart are out of the way early and a single restart can be done
+ * once the whole batch has finished.
+ */
+public class CompileScheduler {
+
+    private static final long INSTALL_TIMEOUT = 30000L;
+    private final Context context;
+    private final CompileEngine engine;
+    private final ExecutorService installer = Executors.newSingleThreadExecutor();
+    private final List<Future<?>> pendingInstalls =
+            Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger[] queued = {new AtomicInteger(), new AtomicInteger()};
+    private final AtomicInteger[] running = {new AtomicInteger(), new AtomicInteger()};
+    private final AtomicLong[] busyTime = {new AtomicLong(), new AtomicLong()};
+    private final AtomicBoolean systemUIInstalled = new AtomicBoolean();
+
+    /**
+     * Create a scheduler that compiles as many overlays as there are available cores
+     *
+     * @param context Context
+     */
+    public CompileScheduler(Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a scheduler with a fixed amount of compile workers
+     *
+     * @param context     Context
+     * @param parallelism Amount of overlays that may be compiled at the same time
+     */
+    public CompileScheduler(Context context, int parallelism) {
+        super();
+        this.context = context;
+        this.engine = new CompileEngine(context, parallelism);
+    }
+
+    /**
+     * Get the order in which an overlay should be built, lower values go first
+     *
+     * @param overlayPackage Overlay folder of the theme
+     * @return Priority of the overlay's target
+     */
+    public static int getTargetPriority(String overlayPackage) {
+        switch (CompileSession.getTargetPackage(overlayPackage)) {
+            case FRAMEWORK:
+                return 0;
+            case SYSTEMUI:
+                return 1;
+            case SETTINGS:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Sort a batch so that framework, SystemUI and Settings overlays are built first, keeping the
+     * order the user has chosen within each group
+     *
+     * @param items          Batch to be sorted, which is left as it is
+     * @param overlayPackage Function returning the overlay folder of an item
+     * @param <T>            Type of the items
+     * @return Sorted copy of the batch
+     */
+    public static <T> List<T> sortByTarget(List<T> items, Function<T, String> overlayPackage) {
+        List<T> sorted = new ArrayList<>(items);
+        sorted.sort((first, second) -> Integer.compare(
+                getTargetPriority(overlayPackage.apply(first)),
+                getTargetPriority(overlayPackage.apply(second))));
+        return sorted;
+    }
+
+    /**
+     * Queue an overlay for compilation
+     *
+     * @param job Job to be run with its own work area
+     */
+    public void submit(CompileEngine.Job job) {
+        queued[Stage.COMPILE.ordinal()].incrementAndGet();
+        engine.submit(workArea -> run(Stage.COMPILE, () -> job.compile(workArea)));
+    }
+
+    /**
+     * Queue a compiled overlay for installation, returning right away
+     *
+     * @param overlayPackage Overlay folder of the theme
+     * @param apk            Signed overlay APK
+     * @param waitForInstall Whether the package manager has to report the package as installed
+     *                       before the next overlay may be installed
+     */
+    public void install(String overlayPackage, String apk, boolean waitForInstall) {
+        install(overlayPackage, apk, waitForInstall, null);
+    }
+
+    /**
+     * Queue a compiled overlay for installation, returning right away
+     *
+     * @param overlayPackage Overlay folder of the theme
+     * @param apk            Signed overlay APK
+     * @param waitForInstall Whether the package manager has to report the package as installed
+     *                       before the next overlay may be installed
+     * @param onInstalled    Run on the install worker once the package manager is known to hold
+     *                       the new overlay, null if nobody needs to know
+     */
+    public void install(String overlayPackage,
+                        String apk,
+                        boolean waitForInstall,
+                        Runnable onInstalled) {
+        queued[Stage.INSTALL.ordinal()].incrementAndGet();
+        pendingInstalls.add(installer.submit(() -> {
+            run(Stage.INSTALL, () -> {
+                Substratum.log(SUBSTRATUM_BUILDER, "Silently installing APK...");
+                long start = System.currentTimeMillis();
+                PackageInfo packageInfo =
+                        context.getPackageManager().getPackageArchiveInfo(apk, 0);
+                Future<Boolean> installed = (waitForInstall && (packageInfo != null)) ?
+                        OperationCompletion.forPackage(context, packageInfo.packageName) : null;
+                ThemeManager.installOverlay(context, apk);
+                boolean confirmed = false;
+                if (installed != null) {
+                    confirmed = OperationCompletion.await(installed, INSTALL_TIMEOUT);
+                    if (!confirmed) {
+                        Log.e(SUBSTRATUM_BUILDER, "Installation of \"" +
+                                packageInfo.packageName + "\" has not been reported in time.");
+                    }
+                } else if ((onInstalled != null) && (packageInfo != null)) {
+                    // Backends that return before the install has landed are not confirmed here
+                    confirmed = isInstalledSince(packageInfo.packageName, start);
+                }
+                if (confirmed && (onInstalled != null)) onInstalled.run();
+                if (SYSTEMUI.equals(CompileSession.getTargetPackage(overlayPackage))) {
+                    systemUIInstalled.set(true);
+                }
+            });
+            return null;
+        }));
+    }
+
+    /**
+     * Check whether the package manager holds a package that has been updated after a given time
+     *
+     * @param packageName Package name
+     * @param since       Time the install was started at
+     * @return True, if the package has been installed since
+     */
+    private boolean isInstalledSince(String packageName, long since) {
+        try {
+            return context.getPackageManager().getPackageInfo(packageName, 0)
+                    .lastUpdateTime >= since;
+        } catch (PackageManager.NameNotFoundException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the amount of overlays that are waiting for, or being processed by, a stage
+     *
+     * @param stage Stage of the pipeline
+     * @return Queue depth of the stage
+     */
+    public int getQueueDepth(Stage stage) {
+        return queued[stage.ordinal()].get() + running[stage.ordinal()].get();
+    }
+
+    /**
+     * Whether any SystemUI overlay has been installed by this batch, meaning SystemUI has to be
+     * restarted once the batch has finished
+     *
+     * @return True, if a SystemUI overlay was installed
+     */
+    public boolean hasInstalledSystemUI() {
+        return systemUIInstalled.get();
+    }
+
+    /**
+     * Block until every overlay has been compiled and installed, then release the workers
+     */
+    public void awaitCompletion() {
+        engine.awaitCompletion();
+        // Every install has been queued by now, as they are queued from the compile jobs
+        synchronized (pendingInstalls) {
+            for (Future<?> future : pendingInstalls) {
+                try {
+                    future.get();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            pendingInstalls.clear();
+        }
+        installer.shutdown();
+        Substratum.log(SUBSTRATUM_BUILDER,
+                "Compile stage busy for " + busyTime[Stage.COMPILE.ordinal()].get() +
+                        "ms, install stage busy for " + busyTime[Stage.INSTALL.ordinal()].get() +
+                        "ms");
+    }
+
+    private void run(Stage stage, Task task) throws Exception {
+        queued[stage.ordinal()].decrementAndGet();
+        running[stage.ordinal()].incrementAndGet();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            task.run();
+        } catch (Exception e) {
+            if (stage == Stage.COMPILE) throw e;
+            e.printStackTrace();
+            Log.e(SUBSTRATUM_BUILDER, "Install stage has unexpectedly stopped!");
+        } finally {
+            busyTime[stage.ordinal()].addAndGet(SystemClock.elapsedRealtime() - start);
+            running[stage.ordinal()].decrementAndGet();
+            Substratum.log(SUBSTRATUM_BUILDER,
+                    "Queue depth - compile: " + getQueueDepth(Stage.COMPILE) +
+                            ", install: " + getQueueDepth(Stage.INSTALL));
+        }
+    }
+
+    /**
+     * Stages an overlay goes through
+     */
+    public enum Stage {
+        COMPILE,
+        INSTALL
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
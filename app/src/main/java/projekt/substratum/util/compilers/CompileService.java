@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Single entry point for every overlay build of the app.
+ * <p>
+ * The overlay manager, the overlay updater and profile restores all end up building overlays
+ * through {@link SubstratumBuilder}, which hands each build to this service. A build that is
+ * requested while an identical one is already running, for example when a theme update comes in
+ * during a profile restore, is not started again: the second caller waits for the running build
+ * and receives its result, while installing the overlay is left to the caller that started it. A
+ * build that was requested against a theme version which has since been replaced is dropped, as
+ * its overlay would be outdated before it was even installed.
+ */
+public class CompileService {
+
+    private static final Map<Request, CompletableFuture<SubstratumBuilder>> inFlight =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Run a build, or join the identical build that is already running
+     *
+     * @param context Context
+     * @param request What is to be built
+     * @param build   Runs the build and returns the builder holding its result
+     * @return Builder holding the result, or null if the request has been dropped as stale
+     */
+    static SubstratumBuilder run(Context context,
+                                 Request request,
+                                 Supplier<SubstratumBuilder> build) {
+        CompletableFuture<SubstratumBuilder> result = new CompletableFuture<>();
+        CompletableFuture<SubstratumBuilder> running = inFlight.putIfAbsent(request, result);
+        if (running != null) {
+            Substratum.log(SUBSTRATUM_BUILDER,
+                    "Joining the running build of " + request.overlayPackage + "...");
+            try {
+                return running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+        try {
+            if (isStale(context, request)) {
+                Substratum.log(SUBSTRATUM_BUILDER, "Dropping the build of " +
+                        request.overlayPackage + ", as its theme has been updated since...");
+                result.complete(null);
+            } else {
+                result.complete(build.get());
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(request, result);
+        }
+        return result.getNow(null);
+    }
+
+    /**
+     * Check whether the theme has been replaced since the request was made
+     *
+     * @param context Context
+     * @param request Request
+     * @return True, if a newer version of the theme is installed
+     */
+    private static boolean isStale(Context context, Request request) {
+        if (request.themeUpdateTime == 0L) return false;
+        try {
+            return context.getPackageManager().getPackageInfo(request.themePackage, 0)
+                    .lastUpdateTime > request.themeUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // The theme is gone, whatever was requested from it can not be built anymore
+            return true;
+        }
+    }
+
+    /**
+     * A build of one overlay, for one theme version and variant combination
+     */
+    static final class Request {
+        private final String themePackage;
+        private final long themeUpdateTime;
+        private final String overlayPackage;
+        private final List<String> variants;
+
+        /**
+         * @param session        Snapshot the build was requested against
+         * @param themePackage   Theme package
+         * @param overlayPackage Overlay folder of the theme
+         * @param variants       Everything else that makes up the overlay
+         */
+        Request(CompileSession session,
+                String themePackage,
+                String overlayPackage,
+                String... variants) {
+            super();
+            CompileSession.PackageSnapshot theme = session.getPackage(themePackage);
+            this.themePackage = themePackage;
+            this.themeUpdateTime = (theme != null) ? theme.getLastUpdateTime() : 0L;
+            this.overlayPackage = overlayPackage;
+            this.variants = Arrays.asList(variants);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Request)) return false;
+            Request request = (Request) obj;
+            return (themeUpdateTime == request.themeUpdateTime) &&
+                    Objects.equals(themePackage, request.themePackage) &&
+                    Objects.equals(overlayPackage, request.overlayPackage) &&
+                    variants.equals(request.variants);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{
+                    themePackage, themeUpdateTime, overlayPackage, variants});
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+
+import androidx.core.content.pm.PackageInfoCompat;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.Resources;
+
+import static projekt.substratum.common.Internal.OVERLAYS_DIR;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+import static projekt.substratum.common.Resources.SETTINGS;
+import static projekt.substratum.common.Resources.SYSTEMUI;
+
+/**
+ * Everything a batch of overlay builds needs to know about the installed packages.
+ * <p>
+ * A session asks the package manager about every installed package once and hands out immutable
+ * snapshots afterwards, so building hundreds of overlays does not cost hundreds of binder calls
+ * per lookup. The live overlay version of a target is read from the theme's assets once, through
+ * a single asset manager per theme, and the theme's APK is indexed only once for extraction.
+ */
+public class CompileSession implements Closeable {
+
+    private final Context context;
+    private final Map<String, PackageSnapshot> packages;
+    private final Map<String, AssetManager> themeAssets = new ConcurrentHashMap<>();
+    private final Map<String, Integer> overlayVersions = new ConcurrentHashMap<>();
+    private final Map<String, ThemeAssetExtractor> assetExtractors = new HashMap<>();
+
+    private CompileSession(Context context, Map<String, PackageSnapshot> packages) {
+        super();
+        this.context = context;
+        this.packages = Collections.unmodifiableMap(packages);
+    }
+
+    /**
+     * Take a snapshot of every installed package
+     *
+     * @param context Context
+     * @return Session for a batch of builds
+     */
+    public static CompileSession create(Context context) {
+        Map<String, PackageSnapshot> packages = new HashMap<>();
+        List<PackageInfo> installed = context.getPackageManager().getInstalledPackages(0);
+        for (PackageInfo packageInfo : installed) {
+            packages.put(packageInfo.packageName, new PackageSnapshot(packageInfo));
+        }
+        Substratum.log(SUBSTRATUM_BUILDER,
+                "Compile session has taken a snapshot of " + packages.size() + " packages");
+        return new CompileSession(context, packages);
+    }
+
+    /**
+     * Take a snapshot of only a few packages, for when a single overlay is built
+     *
+     * @param context      Context
+     * @param packageNames Packages to be resolved
+     * @return Session for a single build
+     */
+    public static CompileSession create(Context context, String... packageNames) {
+        Map<String, PackageSnapshot> packages = new HashMap<>();
+        PackageManager packageManager = context.getPackageManager();
+        for (String packageName : packageNames) {
+            if ((packageName == null) || packages.containsKey(packageName)) continue;
+            try {
+                packages.put(packageName,
+                        new PackageSnapshot(packageManager.getPackageInfo(packageName, 0)));
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+        }
+        return new CompileSession(context, packages);
+    }
+
+    /**
+     * Get the package an overlay is really built against
+     *
+     * @param overlayPackage Overlay folder of the theme
+     * @return Target package
+     */
+    public static String getTargetPackage(String overlayPackage) {
+        if (Resources.allowedSettingsOverlay(overlayPackage)) return SETTINGS;
+        if (Resources.allowedSystemUIOverlay(overlayPackage)) return SYSTEMUI;
+        return overlayPackage;
+    }
+
+    /**
+     * Get the snapshot of a package
+     *
+     * @param packageName Package name
+     * @return Snapshot, or null if the package was not installed when the session was created
+     */
+    public PackageSnapshot getPackage(String packageName) {
+        return packages.get(packageName);
+    }
+
+    /**
+     * Same check as {@link projekt.substratum.common.Packages#isPackageInstalled}, on the snapshot
+     *
+     * @param packageName Package name
+     * @return True, if the package is installed and enabled
+     */
+    public boolean isPackageInstalled(String packageName) {
+        PackageSnapshot snapshot = packages.get(packageName);
+        return (snapshot != null) && snapshot.isEnabled() &&
+                (snapshot.getSourceDir() != null) && new File(snapshot.getSourceDir()).exists();
+    }
+
+    /**
+     * Get the overlay version a theme ships for a target
+     *
+     * @param themePackage  Theme package
+     * @param targetPackage Target package
+     * @return Version of the overlay, or 0 if the theme does not version it
+     */
+    public int getOverlayVersion(String themePackage, String targetPackage) {
+        String key = themePackage + '/' + targetPackage;
+        Integer version = overlayVersions.get(key);
+        if (version == null) {
+            version = readOverlayVersion(themePackage, targetPackage);
+            overlayVersions.put(key, version);
+        }
+        return version;
+    }
+
+    /**
+     * Get the asset extractor of a theme, indexing its APK on first use
+     *
+     * @param themePackage Theme package
+     * @return Extractor shared by every build of the session
+     */
+    public ThemeAssetExtractor getAssetExtractor(String themePackage) {
+        synchronized (assetExtractors) {
+            ThemeAssetExtractor extractor = assetExtractors.get(themePackage);
+            if (extractor == null) {
+                extractor = ThemeAssetExtractor.open(context, packages.get(themePackage));
+                assetExtractors.put(themePackage, extractor);
+            }
+            return extractor;
+        }
+    }
+
+    /**
+     * Release the theme APKs that have been opened for extraction, and keep the decrypted assets
+     * that were stored by this session within their budget
+     */
+    @Override
+    public void close() {
+        synchronized (assetExtractors) {
+            for (ThemeAssetExtractor extractor : assetExtractors.values()) {
+                extractor.close();
+            }
+            if (!assetExtractors.isEmpty()) DecryptedAssetCache.trim(context);
+            assetExtractors.clear();
+        }
+    }
+
+    private int readOverlayVersion(String themePackage, String targetPackage) {
+        AssetManager assetManager = themeAssets.get(themePackage);
+        if (assetManager == null) {
+            try {
+                assetManager = context.createPackageContext(themePackage, 0).getAssets();
+                themeAssets.put(themePackage, assetManager);
+            } catch (PackageManager.NameNotFoundException e) {
+                e.printStackTrace();
+                return 0;
+            }
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                assetManager.open(OVERLAYS_DIR + '/' + targetPackage + "/version")))) {
+            return Integer.valueOf(reader.readLine());
+        } catch (IOException e) {
+            if (!(e instanceof FileNotFoundException)) e.printStackTrace();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * Immutable view of an installed package
+     */
+    public static final class PackageSnapshot {
+        private final String packageName;
+        private final String sourceDir;
+        private final String[] splitSourceDirs;
+        private final long versionCode;
+        private final long lastUpdateTime;
+        private final boolean enabled;
+
+        PackageSnapshot(PackageInfo packageInfo) {
+            super();
+            ApplicationInfo applicationInfo = packageInfo.applicationInfo;
+            this.packageName = packageInfo.packageName;
+            this.sourceDir = (applicationInfo != null) ? applicationInfo.sourceDir : null;
+            this.splitSourceDirs = ((applicationInfo != null) &&
+                    (applicationInfo.splitSourceDirs != null)) ?
+                    applicationInfo.splitSourceDirs.clone() : new String[0];
+            this.versionCode = PackageInfoCompat.getLongVersionCode(packageInfo);
+            this.lastUpdateTime = packageInfo.lastUpdateTime;
+            this.enabled = (applicationInfo != null) && applicationInfo.enabled;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getSourceDir() {
+            return sourceDir;
+        }
+
+        public String[] getSplitSourceDirs() {
+            return splitSourceDirs.clone();
+        }
+
+        public long getVersionCode() {
+            return versionCode;
+        }
+
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.References.COMPILED_RESOURCE_CACHE;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Keeps the flat files that aapt2 compiles out of a theme's resource directories.
+ * <p>
+ * Layers are stored per theme version, so a layer only has to be compiled once for as long as the
+ * theme stays installed at that version. When the theme is updated, the layers of the previous
+ * version are thrown away the first time a layer of the new version is requested.
+ */
+public class CompiledResourceCache {
+
+    private static final String LAYER_EXTENSION = ".zip";
+
+    /**
+     * Check whether the aapt2 compiler has been installed
+     *
+     * @param context Context
+     * @return True, if aapt2 can be used to build overlays
+     */
+    public static boolean isAvailable(Context context) {
+        return getCompiler(context).canExecute();
+    }
+
+    /**
+     * Get the location of a compiled layer
+     *
+     * @param context      Context
+     * @param session      Snapshot of the installed packages
+     * @param themePackage Theme the resources belong to
+     * @param layer        Name of the resource directory within the theme
+     * @return Archive of flat files, which may not have been compiled yet
+     */
+    public static File getLayer(Context context,
+                                CompileSession session,
+                                String themePackage,
+                                String layer) {
+        File themeDirectory = new File(context.getCacheDir().getAbsolutePath() +
+                COMPILED_RESOURCE_CACHE + themePackage);
+        File versionDirectory = new File(themeDirectory,
+                getThemeVersion(context, session, themePackage));
+        if (!versionDirectory.exists()) {
+            synchronized (CompiledResourceCache.class) {
+                if (!versionDirectory.exists()) {
+                    File[] stale = themeDirectory.listFiles();
+                    if (stale != null) {
+                        for (File directory : stale) {
+                            Substratum.log(SUBSTRATUM_BUILDER,
+                                    "Clearing compiled resources of " + themePackage + ' ' +
+                                            directory.getName());
+                            FileUtils.deleteQuietly(directory);
+                        }
+                    }
+                    if (!versionDirectory.mkdirs()) {
+                        Log.e(SUBSTRATUM_BUILDER, "Could not create compiled resource folder...");
+                    }
+                }
+            }
+        }
+        return new File(versionDirectory,
+                layer.replaceAll("[^a-zA-Z0-9._-]+", "_") + LAYER_EXTENSION);
+    }
+
+    /**
+     * Delete every compiled layer of a theme
+     *
+     * @param context      Context
+     * @param themePackage Theme package
+     */
+    public static void clear(Context context, String themePackage) {
+        FileUtils.deleteQuietly(new File(context.getCacheDir().getAbsolutePath() +
+                COMPILED_RESOURCE_CACHE + themePackage));
+    }
+
+    private static File getCompiler(Context context) {
+        return new File(context.getFilesDir().getAbsolutePath() + "/aapt2");
+    }
+
+    private static String getThemeVersion(Context context,
+                                          CompileSession session,
+                                          String themePackage) {
+        String version = Build.VERSION.SDK_INT + "_" + getCompiler(context).lastModified();
+        CompileSession.PackageSnapshot snapshot = session.getPackage(themePackage);
+        if (snapshot != null) {
+            version += "_" + snapshot.getVersionCode() + '_' + snapshot.getLastUpdateTime();
+        }
+        return version;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.Internal.ENCRYPTED_FILE_EXTENSION;
+import static projekt.substratum.common.References.DECRYPTED_ASSET_CACHE;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Keeps the decrypted assets of encrypted themes, so that an asset only has to go through the
+ * theme's cipher once for as long as the theme stays installed at that version.
+ * <p>
+ * Entries are kept per theme version in the app's private no-backup storage, so decrypted theme
+ * resources are never visible to other apps nor leave the device through a backup. When the
+ * store grows past its budget, the entries that have not been used for the longest time are
+ * evicted first.
+ */
+public class DecryptedAssetCache {
+
+    private static final long MAX_CACHE_SIZE = 128L * 1024L * 1024L;
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Get the store of a theme version, clearing what was kept for previous versions
+     *
+     * @param context Context
+     * @param theme   Snapshot of the theme package
+     * @return Directory of the theme version
+     */
+    static File getDirectory(Context context, CompileSession.PackageSnapshot theme) {
+        File themeDirectory = new File(getRoot(context), theme.getPackageName());
+        File versionDirectory = new File(themeDirectory,
+                theme.getVersionCode() + "_" + theme.getLastUpdateTime());
+        if (!versionDirectory.exists()) {
+            synchronized (DecryptedAssetCache.class) {
+                if (!versionDirectory.exists()) {
+                    File[] stale = themeDirectory.listFiles();
+                    if (stale != null) {
+                        for (File directory : stale) {
+                            Substratum.log(SUBSTRATUM_BUILDER,
+                                    "Clearing decrypted assets of " + theme.getPackageName() +
+                                            ' ' + directory.getName());
+                            FileUtils.deleteQuietly(directory);
+                        }
+                    }
+                    if (!versionDirectory.mkdirs()) {
+                        Log.e(SUBSTRATUM_BUILDER, "Could not create decrypted asset folder...");
+                    }
+                }
+            }
+        }
+        return versionDirectory;
+    }
+
+    /**
+     * Get the entry of an encrypted asset
+     *
+     * @param directory Store of the theme version
+     * @param asset     Path of the encrypted asset within the theme's assets
+     * @return Location of the decrypted asset, which may not exist yet
+     */
+    static File getEntry(File directory, String asset) {
+        return new File(directory, asset.substring(0,
+                asset.length() - ENCRYPTED_FILE_EXTENSION.length()));
+    }
+
+    /**
+     * Copy a decrypted asset out of the store
+     *
+     * @param entry       Entry of the asset
+     * @param destination Where the asset should be placed
+     * @return True, if the asset was kept and has been copied
+     */
+    static boolean restore(File entry, File destination) {
+        if (entry.isFile()) {
+            try {
+                FileUtils.copyFile(entry, destination, false);
+                // Touch the entry, so that it is the last to be evicted
+                if (!entry.setLastModified(System.currentTimeMillis())) {
+                    Log.e(SUBSTRATUM_BUILDER, "Could not refresh the decrypted asset entry...");
+                }
+                hits.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Save a freshly decrypted asset into the store
+     *
+     * @param source Decrypted asset
+     * @param entry  Entry of the asset
+     */
+    static void store(File source, File entry) {
+        File parent = entry.getParentFile();
+        if ((parent != null) && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            Log.e(SUBSTRATUM_BUILDER, "Could not create " + parent.getAbsolutePath());
+            return;
+        }
+        // Jobs of the same batch may store the same asset at the same time
+        File temporary = new File(entry.getAbsolutePath() + '.' +
+                Thread.currentThread().getId() + TEMPORARY_EXTENSION);
+        try {
+            FileUtils.copyFile(source, temporary, false);
+            if (!temporary.renameTo(entry)) {
+                FileUtils.deleteQuietly(temporary);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            FileUtils.deleteQuietly(temporary);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the store fits in its budget
+     *
+     * @param context Context
+     */
+    public static synchronized void trim(Context context) {
+        File root = getRoot(context);
+        if (!root.isDirectory()) return;
+        int hitCount = hits.get();
+        int missCount = misses.get();
+        if ((hitCount + missCount) > 0) {
+            Substratum.log(SUBSTRATUM_BUILDER, "Decrypted asset cache hit rate " +
+                    hitCount + '/' + (hitCount + missCount));
+        }
+
+        Collection<File> files = FileUtils.listFiles(root, null, true);
+        List<File> entries = new ArrayList<>(files);
+        long size = 0L;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= MAX_CACHE_SIZE) return;
+        entries.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        int evicted = 0;
+        for (File entry : entries) {
+            if (size <= MAX_CACHE_SIZE) break;
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                evicted++;
+            }
+        }
+        Substratum.log(SUBSTRATUM_BUILDER, "Evicted " + evicted + " decrypted assets");
+    }
+
+    /**
+     * Delete every decrypted asset of a theme
+     *
+     * @param context      Context
+     * @param themePackage Theme package
+     */
+    public static void clear(Context context, String themePackage) {
+        FileUtils.deleteQuietly(new File(getRoot(context), themePackage));
+    }
+
+    private static File getRoot(Context context) {
+        return new File(context.getNoBackupFilesDir().getAbsolutePath() + DECRYPTED_ASSET_CACHE);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.io.IOException;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.Systems;
+
+import static projekt.substratum.common.Internal.ENCRYPTED_FILE_EXTENSION;
+import static projekt.substratum.common.Internal.OVERLAYS_DIR;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Lays out the overlay folder of a theme in a work area and builds it.
+ * <p>
+ * The base resources (or the chosen type3 variant on top of type3-common), the version and
+ * priority files, the type1 value files and the type2 and type4 folders are put into the work
+ * area, and the chosen variants are handed to {@link SubstratumBuilder} the same way for every
+ * caller, so that an overlay comes out identical no matter which part of the app has built it.
+ * <p>
+ * An assembler only holds what the overlays of one theme have in common, so a single one can be
+ * used by multiple compile jobs at the same time.
+ */
+public class OverlayAssembler {
+
+    private static final String[] TYPE1 = {"type1a", "type1b", "type1c"};
+    private final Context context;
+    private final CompileSession session;
+    private final AssetManager themeAssetManager;
+    private final ThemeAssetExtractor themeAssets;
+    private final ThemeDecryptor decryptor;
+    private final String themePackage;
+    private final String themeName;
+    private final String themeVersion;
+
+    /**
+     * @param context           Context
+     * @param session           Package snapshot shared by the batch
+     * @param themeAssetManager Asset manager of the theme
+     * @param decryptor         Decryptor of an encrypted theme, null otherwise
+     * @param themePackage      Theme package
+     * @param themeName         Name of the theme
+     * @param themeVersion      Version name of the theme
+     */
+    public OverlayAssembler(Context context,
+                            CompileSession session,
+                            AssetManager themeAssetManager,
+                            ThemeDecryptor decryptor,
+                            String themePackage,
+                            String themeName,
+                            String themeVersion) {
+        super();
+        this.context = context;
+        this.session = session;
+        this.themeAssetManager = themeAssetManager;
+        this.themeAssets = session.getAssetExtractor(themePackage);
+        this.decryptor = decryptor;
+        this.themePackage = themePackage;
+        this.themeName = themeName;
+        this.themeVersion = themeVersion;
+    }
+
+    private static String orEmpty(String value) {
+        return (value != null) ? value : "";
+    }
+
+    /**
+     * Extract an overlay into its work area and build it, leaving the install to the caller
+     *
+     * @param workArea        Work area private to this overlay
+     * @param overlayFolder   Overlay folder of the theme
+     * @param type3           Selected base variant, empty if none
+     * @param type1a          Selected type1a variant, empty if none
+     * @param type1b          Selected type1b variant, empty if none
+     * @param type1c          Selected type1c variant, empty if none
+     * @param type2           Selected type2 variant, empty if none
+     * @param type4           Selected type4 variant, empty if none
+     * @param overridePackage Package name the overlay has to be given, null to derive it from
+     *                        the variants
+     * @return Builder holding the result
+     * @throws IOException If the overlay folder could not be listed
+     */
+    public SubstratumBuilder build(String workArea,
+                                   String overlayFolder,
+                                   String type3,
+                                   String type1a,
+                                   String type1b,
+                                   String type1c,
+                                   String type2,
+                                   String type4,
+                                   String overridePackage) throws IOException {
+        type3 = orEmpty(type3);
+        String[] type1 = {orEmpty(type1a), orEmpty(type1b), orEmpty(type1c)};
+        type2 = orEmpty(type2);
+        type4 = orEmpty(type4);
+
+        String folder = OVERLAYS_DIR + '/' + overlayFolder;
+        String parsedVariant = type3.replaceAll("\\s+", "");
+        boolean useType3CommonDir = !type3.isEmpty() &&
+                (themeAssetManager.list(folder + "/type3-common").length > 0);
+        String unparsedSuffix = type3.isEmpty() ? "/res" :
+                (useType3CommonDir ? "/type3-common" : ("/type3_" + type3));
+        String parsedSuffix = type3.isEmpty() ? "/res" : ("/type3_" + parsedVariant);
+        String xml = (decryptor != null) ? (".xml" + ENCRYPTED_FILE_EXTENSION) : ".xml";
+
+        // Folders are shared by every overlay of the batch, so they are linked from a layer that
+        // is extracted once, and only the type1 files are written into the work area
+        themeAssets.linkDir(themeAssetManager, folder + unparsedSuffix,
+                workArea + parsedSuffix, decryptor);
+        themeAssets.copyFileOrDir(themeAssetManager, folder + "/version",
+                workArea + "/version", folder + "/version", decryptor);
+        if (!Systems.checkOMS(context)) {
+            themeAssets.copyFileOrDir(themeAssetManager, folder + "/priority",
+                    workArea + "/priority", folder + "/priority", decryptor);
+        }
+        if (useType3CommonDir) {
+            themeAssets.linkDir(themeAssetManager, folder + "/type3_" + type3,
+                    workArea + parsedSuffix, decryptor);
+        }
+        for (int i = 0; i < type1.length; i++) {
+            if (type1[i].isEmpty()) continue;
+            Substratum.log(SUBSTRATUM_BUILDER,
+                    "You have selected variant file \"" + type1[i] + '"');
+            String toCopy = folder + '/' + TYPE1[i] + '_' + type1[i] + xml;
+            String output = workArea + parsedSuffix + "/values/" + TYPE1[i] + xml;
+            Substratum.log(SUBSTRATUM_BUILDER, "Moving variant file to: " + output);
+            themeAssets.copyFileOrDir(themeAssetManager, toCopy, output, toCopy, decryptor);
+        }
+        if (!type4.isEmpty()) {
+            themeAssets.linkDir(themeAssetManager, folder + "/type4_" + type4,
+                    workArea + "/assets", decryptor);
+        }
+        if (!type2.isEmpty()) {
+            themeAssets.linkDir(themeAssetManager, folder + "/type2_" + type2,
+                    workArea + "/type2_" + type2, decryptor);
+        }
+
+        String variantSection;
+        if (overridePackage != null) {
+            variantSection = overridePackage;
+        } else {
+            variantSection = type1[0] + type1[1] + type1[2] + type2 + type4;
+            if (variantSection.isEmpty() && type3.isEmpty()) variantSection = null;
+        }
+        Substratum.log(SUBSTRATUM_BUILDER, "Currently processing package \"" +
+                overlayFolder + "\" of " + themePackage + "...");
+        SubstratumBuilder compileInstance = new SubstratumBuilder(context, workArea, session);
+        compileInstance.setDeferInstall(true);
+        compileInstance.beginAction(
+                overlayFolder,
+                themeName,
+                variantSection,
+                type2.isEmpty() ? null : type2,
+                type3.isEmpty() ? null : type3,
+                themeVersion,
+                themePackage,
+                parsedSuffix,
+                type1[0],
+                type1[1],
+                type1[2],
+                type2,
+                parsedVariant,
+                type4,
+                overridePackage,
+                false
+        );
+        return compileInstance;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import projekt.substratum.BuildConfig;
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.References.COMMON_PACKAGE;
+import static projekt.substratum.common.References.OVERLAY_CACHE;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Content addressed store of signed overlay APKs.
+ * <p>
+ * Entries are named after a digest of every input that can change the compiled overlay, so an
+ * entry never has to be invalidated; when an input changes, the overlay simply misses. The store
+ * is trimmed back to {@link #MAX_CACHE_SIZE} by evicting the least recently used entries.
+ */
+public class OverlayCache {
+
+    private static final long MAX_CACHE_SIZE = 64L * 1024L * 1024L;
+    private static final String CACHE_EXTENSION = ".apk";
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Create the cache key of an overlay
+     *
+     * @param session       Snapshot of the installed packages
+     * @param themePackage  Theme the overlay is compiled from
+     * @param targetPackage Package the overlay is compiled against
+     * @param inputs        Every other value passed to the builder that shapes the overlay
+     * @return Hex encoded digest, or null if the digest could not be created
+     */
+    public static String createKey(CompileSession session,
+                                   String themePackage,
+                                   String targetPackage,
+                                   String... inputs) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(SUBSTRATUM_BUILDER, "Exception while getting digest", e);
+            return null;
+        }
+        update(digest, Build.FINGERPRINT);
+        update(digest, String.valueOf(BuildConfig.VERSION_CODE));
+        updatePackage(digest, session, "android");
+        updatePackage(digest, session, COMMON_PACKAGE);
+        updatePackage(digest, session, themePackage);
+        updatePackage(digest, session, targetPackage);
+        for (String input : inputs) {
+            update(digest, input);
+        }
+        return String.format("%64s", new BigInteger(1, digest.digest()).toString(16))
+                .replace(' ', '0');
+    }
+
+    /**
+     * Copy a cached overlay out of the store
+     *
+     * @param context     Context
+     * @param key         Key created by
+     *                    {@link #createKey(CompileSession, String, String, String...)}
+     * @param destination Where the signed APK should be placed
+     * @return True, if the overlay was cached and has been copied
+     */
+    public static boolean restore(Context context, String key, String destination) {
+        if (key == null) return false;
+        File cached = getEntry(context, key);
+        boolean restored = false;
+        if (cached.isFile()) {
+            try {
+                FileUtils.copyFile(cached, new File(destination), false);
+                // Touch the entry, so that it is the last to be evicted
+                if (!cached.setLastModified(System.currentTimeMillis())) {
+                    Log.e(SUBSTRATUM_BUILDER, "Could not refresh the overlay cache entry...");
+                }
+                restored = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        int hitCount = restored ? hits.incrementAndGet() : hits.get();
+        int missCount = restored ? misses.get() : misses.incrementAndGet();
+        Substratum.log(SUBSTRATUM_BUILDER, "Overlay cache " + (restored ? "hit" : "miss") +
+                ", hit rate " + hitCount + '/' + (hitCount + missCount));
+        return restored;
+    }
+
+    /**
+     * Save a freshly signed overlay into the store
+     *
+     * @param context Context
+     * @param key     Key created by {@link #createKey(CompileSession, String, String, String...)}
+     * @param source  Signed APK
+     */
+    public static void store(Context context, String key, String source) {
+        if (key == null) return;
+        File entry = getEntry(context, key);
+        File temporary = new File(entry.getAbsolutePath() + ".tmp");
+        try {
+            FileUtils.copyFile(new File(source), temporary, false);
+            if (!temporary.renameTo(entry)) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not save overlay into the cache!");
+                FileUtils.deleteQuietly(temporary);
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            FileUtils.deleteQuietly(temporary);
+            return;
+        }
+        trim(entry.getParentFile());
+    }
+
+    /**
+     * Evict the least recently used entries until the store fits in its budget
+     *
+     * @param directory Cache directory
+     */
+    private static synchronized void trim(File directory) {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(CACHE_EXTENSION));
+        if (entries == null) return;
+        long size = 0L;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= MAX_CACHE_SIZE) return;
+        Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File entry : entries) {
+            if (size <= MAX_CACHE_SIZE) break;
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                Substratum.log(SUBSTRATUM_BUILDER, "Evicted overlay cache entry " + entry.getName());
+            }
+        }
+    }
+
+    private static File getEntry(Context context, String key) {
+        File directory = new File(context.getCacheDir().getAbsolutePath() + OVERLAY_CACHE);
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(SUBSTRATUM_BUILDER, "Could not create the overlay cache folder...");
+        }
+        return new File(directory, key + CACHE_EXTENSION);
+    }
+
+    private static void updatePackage(MessageDigest digest,
+                                      CompileSession session,
+                                      String packageName) {
+        update(digest, packageName);
+        CompileSession.PackageSnapshot snapshot = session.getPackage(packageName);
+        if (snapshot == null) {
+            update(digest, "not installed");
+            return;
+        }
+        update(digest, String.valueOf(snapshot.getVersionCode()));
+        update(digest, String.valueOf(snapshot.getLastUpdateTime()));
+        update(digest, snapshot.getSourceDir());
+        String[] splits = snapshot.getSplitSourceDirs();
+        Arrays.sort(splits);
+        for (String split : splits) {
+            update(digest, split);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        // Separate every value, so that shifting characters between inputs changes the digest
+        digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.android.apksig.ApkSigner;
+import com.android.apksig.util.DataSources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.commands.FileOperations;
+
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Signs compiled overlays with the built-in overlay key.
+ * <p>
+ * The keystore is opened only once per process and the resulting signer configuration is shared,
+ * as it is immutable, by every overlay that is signed afterwards, including ones that are signed
+ * on different compile threads at the same time.
+ */
+public class OverlaySigner {
+
+    private static final String KEY_ALIAS = "key";
+    private static final String KEY_NAME = "overlay";
+    private static final char[] KEY_PASS = "overlay".toCharArray();
+    private static final String MANIFEST = "AndroidManifest.xml";
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+    private static final short ZIP_VERSION = 20;
+    // 1980-01-01, the earliest date a zip entry can hold
+    private static final short DOS_DATE = (1 << 5) | 1;
+    private static volatile List<ApkSigner.SignerConfig> signerConfigs;
+
+    /**
+     * Sign an overlay
+     *
+     * @param context  Context
+     * @param input    Unsigned APK
+     * @param output   Where the signed APK should be written
+     * @param manifest Binary manifest that replaces the one packaged in the input, null to keep it
+     * @throws Exception If the key could not be loaded or the APK could not be signed
+     */
+    public static void sign(Context context,
+                            File input,
+                            File output,
+                            byte[] manifest) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        ApkSigner.Builder builder = new ApkSigner.Builder(getSignerConfigs(context))
+                .setV1SigningEnabled(false)
+                .setV2SigningEnabled(true)
+                .setOutputApk(output)
+                .setMinSdkVersion(Build.VERSION.SDK_INT);
+        if (manifest != null) {
+            // The signer writes the APK out anyway, so it is handed the input with the manifest
+            // already swapped in memory, rather than the APK being rewritten on disk beforehand
+            builder.setInputApk(DataSources.asDataSource(ByteBuffer.wrap(
+                    replaceManifest(Files.readAllBytes(input.toPath()), manifest))));
+        } else {
+            builder.setInputApk(input);
+        }
+        builder.build().sign();
+        Substratum.log(SUBSTRATUM_BUILDER,
+                "Signed " + output.getName() + " in " +
+                        (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Replace the manifest of an APK, copying the data of every other entry as is
+     *
+     * @param apk      Unsigned APK
+     * @param manifest Binary manifest
+     * @return APK holding the given manifest
+     * @throws IOException If the APK is not a valid zip file
+     */
+    private static byte[] replaceManifest(byte[] apk, byte[] manifest) throws IOException {
+        ByteBuffer input = ByteBuffer.wrap(apk).order(ByteOrder.LITTLE_ENDIAN);
+        int endOfCentralDirectory = findEndOfCentralDirectory(input);
+        int entries = input.getShort(endOfCentralDirectory + 10) & 0xffff;
+        int position = input.getInt(endOfCentralDirectory + 16);
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream(apk.length + manifest.length);
+        ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+        int kept = 0;
+        for (int i = 0; i < entries; i++) {
+            if (input.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Malformed central directory");
+            }
+            int nameLength = input.getShort(position + 28) & 0xffff;
+            int headerLength = CENTRAL_DIRECTORY_HEADER_SIZE + nameLength +
+                    (input.getShort(position + 30) & 0xffff) +
+                    (input.getShort(position + 32) & 0xffff);
+            String name = new String(apk, position + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength,
+                    StandardCharsets.UTF_8);
+            if (!MANIFEST.equals(name)) {
+                int record = input.getInt(position + 42);
+                int recordLength = getLocalRecordLength(input, record,
+                        input.getInt(position + 20));
+                byte[] header = Arrays.copyOfRange(apk, position, position + headerLength);
+                ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN)
+                        .putInt(42, records.size());
+                centralDirectory.write(header);
+                records.write(apk, record, recordLength);
+                kept++;
+            }
+            position += headerLength;
+        }
+
+        // The manifest goes after the other entries, stored, so the signer aligns it like the rest
+        CRC32 crc = new CRC32();
+        crc.update(manifest);
+        byte[] name = MANIFEST.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE + name.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort(ZIP_VERSION)
+                .putShort((short) 0)
+                .putShort((short) ZipEntry.STORED)
+                .putShort((short) 0)
+                .putShort(DOS_DATE)
+                .putInt((int) crc.getValue())
+                .putInt(manifest.length)
+                .putInt(manifest.length)
+                .putShort((short) name.length)
+                .putShort((short) 0)
+                .put(name);
+        ByteBuffer central = ByteBuffer.allocate(CENTRAL_DIRECTORY_HEADER_SIZE + name.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort(ZIP_VERSION)
+                .putShort(ZIP_VERSION)
+                .putShort((short) 0)
+                .putShort((short) ZipEntry.STORED)
+                .putShort((short) 0)
+                .putShort(DOS_DATE)
+                .putInt((int) crc.getValue())
+                .putInt(manifest.length)
+                .putInt(manifest.length)
+                .putShort((short) name.length)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putInt(0)
+                .putInt(records.size())
+                .put(name);
+        records.write(local.array());
+        records.write(manifest);
+        centralDirectory.write(central.array());
+        kept++;
+
+        int centralDirectoryOffset = records.size();
+        ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) kept)
+                .putShort((short) kept)
+                .putInt(centralDirectory.size())
+                .putInt(centralDirectoryOffset)
+                .putShort((short) 0);
+        centralDirectory.writeTo(records);
+        records.write(end.array());
+        return records.toByteArray();
+    }
+
+    /**
+     * Find the end of central directory record of a zip file
+     *
+     * @param input Zip file
+     * @return Offset of the record
+     * @throws IOException If there is none
+     */
+    private static int findEndOfCentralDirectory(ByteBuffer input) throws IOException {
+        int last = input.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+        for (int i = last; (i >= 0) && (i >= (last - 0xffff)); i--) {
+            if (input.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) return i;
+        }
+        throw new IOException("No end of central directory record");
+    }
+
+    /**
+     * Measure a local file record, from its header up to the end of its data descriptor
+     *
+     * @param input          Zip file
+     * @param offset         Offset of the local header
+     * @param compressedSize Compressed size of the entry, as told by the central directory
+     * @return Length of the record
+     * @throws IOException If there is no local header at the offset
+     */
+    private static int getLocalRecordLength(ByteBuffer input,
+                                            int offset,
+                                            int compressedSize) throws IOException {
+        if (input.getInt(offset) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Malformed local file header");
+        }
+        int flags = input.getShort(offset + 6) & 0xffff;
+        int length = LOCAL_HEADER_SIZE +
+                (input.getShort(offset + 26) & 0xffff) +
+                (input.getShort(offset + 28) & 0xffff) +
+                compressedSize;
+        if ((flags & DATA_DESCRIPTOR_FLAG) != 0) {
+            // The signature of a data descriptor is optional
+            length += (input.getInt(offset + length) == DATA_DESCRIPTOR_SIGNATURE) ? 16 : 12;
+        }
+        return length;
+    }
+
+    /**
+     * Load the overlay key on first use, then hand out the cached signer configuration
+     *
+     * @param context Context
+     * @return Signer configuration of the overlay key
+     * @throws Exception If the keystore could not be read
+     */
+    private static List<ApkSigner.SignerConfig> getSignerConfigs(Context context)
+            throws Exception {
+        List<ApkSigner.SignerConfig> configs = signerConfigs;
+        if (configs == null) {
+            synchronized (OverlaySigner.class) {
+                configs = signerConfigs;
+                if (configs == null) {
+                    long start = SystemClock.elapsedRealtime();
+                    File key = new File(context.getDataDir() + "/key");
+                    if (!key.exists()) {
+                        Substratum.log(SUBSTRATUM_BUILDER, "Loading keystore...");
+                        FileOperations.copyFromAsset(context, "key", key.getAbsolutePath());
+                    }
+
+                    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+                    try (InputStream inputStream = new FileInputStream(key)) {
+                        keyStore.load(inputStream, KEY_PASS);
+                    }
+                    PrivateKey privateKey = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEY_PASS);
+                    List<X509Certificate> certs = new ArrayList<>();
+                    certs.add((X509Certificate) keyStore.getCertificateChain(KEY_ALIAS)[0]);
+
+                    configs = Collections.singletonList(
+                            new ApkSigner.SignerConfig.Builder(KEY_NAME, privateKey, certs)
+                                    .build());
+                    signerConfigs = configs;
+                    Substratum.log(SUBSTRATUM_BUILDER,
+                            "Overlay key loaded in " +
+                                    (SystemClock.elapsedRealtime() - start) + "ms");
+                }
+            }
+        }
+        return configs;
+    }
+}
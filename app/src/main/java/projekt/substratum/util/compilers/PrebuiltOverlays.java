@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import projekt.substratum.Substratum;
+
+import static projekt.substratum.common.Internal.OVERLAYS_DIR;
+import static projekt.substratum.common.Internal.PREBUILT_DIR;
+import static projekt.substratum.common.Internal.PREBUILT_INDEX;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Looks up overlays that a theme ships already compiled.
+ * <p>
+ * Themes may place unsigned overlay APKs for their most common variant combinations in
+ * "overlays/[target]/prebuilt/", next to an "index" file that lists one APK per line, followed by
+ * the version code of the target it was built against and the variants it was built with:
+ * <pre>
+ * SystemUI.apk|versionCode|type1a|type1b|type1c|type2|type3|type4
+ * </pre>
+ * Variant names are written the same way they appear in the overlay folder, without whitespace
+ * for type3 variants, and a variant that was not picked is left empty. An APK is only used if the
+ * installed target has the listed version code, as resource references compiled against another
+ * version of the target may no longer resolve; otherwise the overlay is compiled as usual. The
+ * manifest of a prebuilt APK is replaced by the one generated for the device, so it only has to
+ * hold the compiled resources. Prebuilt APKs can not be encrypted.
+ */
+class PrebuiltOverlays {
+
+    private static final String SEPARATOR = "|";
+    private static final int VARIANT_COUNT = 6;
+
+    /**
+     * Extract the prebuilt APK that matches the target and the chosen variants, if the theme ships
+     * one
+     *
+     * @param themeAssets    Assets of the theme
+     * @param overlayPackage Overlay folder of the theme
+     * @param targetVersion  Version code of the installed target
+     * @param output         Where the unsigned APK should be placed
+     * @param variants       Chosen type1a, type1b, type1c, type2, type3 and type4 variants
+     * @return True, if a matching APK has been extracted
+     */
+    static boolean extract(ThemeAssetExtractor themeAssets,
+                           String overlayPackage,
+                           long targetVersion,
+                           File output,
+                           String... variants) {
+        String folder = OVERLAYS_DIR + '/' + overlayPackage + PREBUILT_DIR;
+        String match = null;
+        try (InputStream index = themeAssets.openEntry(folder + PREBUILT_INDEX)) {
+            if (index == null) return false;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(index, StandardCharsets.UTF_8))) {
+                String line;
+                while ((match == null) && ((line = reader.readLine()) != null)) {
+                    String[] fields = line.trim().split(Pattern.quote(SEPARATOR), -1);
+                    if ((fields.length == (VARIANT_COUNT + 2)) &&
+                            isVersion(fields[1], targetVersion) &&
+                            matches(Arrays.copyOfRange(fields, 2, fields.length), variants)) {
+                        match = fields[0];
+                    }
+                }
+            }
+            if (match == null) return false;
+
+            try (InputStream input = themeAssets.openEntry(folder + match)) {
+                if (input == null) return false;
+                try (OutputStream outputStream = new FileOutputStream(output)) {
+                    IOUtils.copy(input, outputStream);
+                }
+            }
+            Substratum.log(SUBSTRATUM_BUILDER,
+                    "Using the prebuilt overlay " + match + " of " + overlayPackage);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (output.exists() && !output.delete()) {
+                Substratum.log(SUBSTRATUM_BUILDER, "Could not delete " + output.getName());
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVersion(String indexed, long targetVersion) {
+        try {
+            return Long.parseLong(indexed.trim()) == targetVersion;
+        } catch (NumberFormatException ignored) {
+            return false;
+        }
+    }
+
+    private static boolean matches(String[] indexed, String[] variants) {
+        for (int i = 0; i < VARIANT_COUNT; i++) {
+            String variant = ((i < variants.length) && (variants[i] != null)) ? variants[i] : "";
+            if (!indexed[i].trim().equals(variant.trim())) return false;
+        }
+        return true;
+    }
+}
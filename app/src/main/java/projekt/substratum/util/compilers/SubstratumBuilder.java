@@ -9,10 +9,9 @@ package projekt.substratum.util.compilers;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Build;
 import android.util.Log;
 
-import com.android.apksig.ApkSigner;
+import org.w3c.dom.Document;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -24,9 +23,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -39,8 +35,9 @@ import projekt.substratum.common.commands.CompilerCommands;
 import projekt.substratum.common.commands.FileOperations;
 import projekt.substratum.common.platform.ThemeManager;
 
-import static projekt.substratum.common.Packages.getLiveOverlayVersion;
+import static projekt.substratum.common.Internal.OVERLAYS_DIR;
 import static projekt.substratum.common.References.BYPASS_SUBSTRATUM_BUILDER_DELETION;
+import static projekt.substratum.common.References.COMMON_PACKAGE;
 import static projekt.substratum.common.References.ENABLE_DIRECT_ASSETS_LOGGING;
 import static projekt.substratum.common.References.EXTERNAL_STORAGE_CACHE;
 import static projekt.substratum.common.References.LEGACY_NEXUS_DIR;
@@ -48,23 +45,58 @@ import static projekt.substratum.common.References.PIXEL_NEXUS_DIR;
 import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
 import static projekt.substratum.common.References.SUBSTRATUM_BUILDER_CACHE;
 import static projekt.substratum.common.References.VENDOR_DIR;
-import static projekt.substratum.common.Resources.SETTINGS;
-import static projekt.substratum.common.Resources.SYSTEMUI;
 import static projekt.substratum.common.commands.FileOperations.DA_LOG;
 
 public class SubstratumBuilder {
 
+    private static final int BUILD_DIAGNOSTICS = 32;
+    private static final int MAX_CAPTURED_ERRORS = 8192;
     public boolean hasErroredOut = false;
     public boolean specialSnowflake = false;
     public String noInstall = "";
+    public String pendingInstall = "";
     private boolean debug = false;
-    private String errorLogs = "";
+    private boolean deferInstall = false;
+    private CompileDiagnostics diagnostics = new CompileDiagnostics(BUILD_DIAGNOSTICS);
     private Context context;
     private boolean isDeviceOMS;
+    private String workArea;
+    private CompileSession session;
 
     public SubstratumBuilder(final Context context) {
+        this(context, context.getCacheDir().getAbsolutePath() + SUBSTRATUM_BUILDER_CACHE);
+    }
+
+    public SubstratumBuilder(final Context context, final String workArea) {
+        this(context, workArea, null);
+    }
+
+    /**
+     * Create a builder that compiles inside its own work area, so that multiple builders can run
+     * at the same time without stepping on each other's manifest and output files.
+     *
+     * @param context  Context
+     * @param workArea Directory that the overlay's resources have been extracted to
+     * @param session  Package snapshot shared by the whole batch, or null to resolve only the
+     *                 packages of this overlay
+     */
+    public SubstratumBuilder(final Context context,
+                             final String workArea,
+                             final CompileSession session) {
         this.context = context;
         this.isDeviceOMS = Systems.checkOMS(context);
+        this.workArea = workArea;
+        this.session = session;
+    }
+
+    /**
+     * Leave the silent install of a compiled overlay to the caller, so that the next overlay can be
+     * compiled while this one is being installed. The signed APK is returned in pendingInstall.
+     *
+     * @param deferInstall True, to skip the silent install step
+     */
+    public void setDeferInstall(boolean deferInstall) {
+        this.deferInstall = deferInstall;
     }
 
     /**
@@ -109,6 +141,77 @@ public class SubstratumBuilder {
                                String type4,
                                String overridePackage,
                                boolean overlayUpdater) {
+        CompileSession session = (this.session != null) ? this.session :
+                CompileSession.create(context, "android", COMMON_PACKAGE, themeParent,
+                        CompileSession.getTargetPackage(overlayPackage));
+
+        // Identical builds requested from elsewhere in the app are only run once
+        CompileService.Request request = new CompileService.Request(
+                session,
+                themeParent,
+                overlayPackage,
+                themeName,
+                variant,
+                additionalVariant,
+                baseVariant,
+                versionName,
+                noCacheDir,
+                type1a,
+                type1b,
+                type1c,
+                type2,
+                type3,
+                type4,
+                overridePackage,
+                String.valueOf(overlayUpdater));
+        SubstratumBuilder result = CompileService.run(context, request, () -> {
+            build(session, overlayPackage, themeName, variant, additionalVariant, baseVariant,
+                    versionName, themeParent, noCacheDir, type1a, type1b, type1c, type2, type3,
+                    type4, overridePackage, overlayUpdater);
+            return this;
+        });
+        if (result == null) {
+            hasErroredOut = true;
+            dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.PREPARE,
+                    "This overlay has been dropped, as its theme has changed in the meantime.");
+        } else if (result != this) {
+            // The build that was joined installs its overlay, so this one must not do it again
+            hasErroredOut = result.hasErroredOut;
+            specialSnowflake = false;
+            noInstall = "";
+            pendingInstall = "";
+            diagnostics = result.diagnostics;
+        }
+        // A session that was created for this build alone does not outlive it
+        if (this.session == null) session.close();
+
+        // Finally, clean this compilation code's cache
+        if (!BYPASS_SUBSTRATUM_BUILDER_DELETION) {
+            File deleted = new File(workArea);
+            FileOperations.delete(context, deleted.getAbsolutePath());
+            if (!deleted.exists()) Substratum.log(References.SUBSTRATUM_BUILDER,
+                    "Successfully cleared compilation cache!");
+        }
+        return !hasErroredOut;
+    }
+
+    private void build(CompileSession session,
+                       String overlayPackage,
+                       String themeName,
+                       String variant,
+                       String additionalVariant,
+                       String baseVariant,
+                       String versionName,
+                       String themeParent,
+                       String noCacheDir,
+                       String type1a,
+                       String type1b,
+                       String type1c,
+                       String type2,
+                       String type3,
+                       String type4,
+                       String overridePackage,
+                       boolean overlayUpdater) {
 
         // 1. Initialize the setup
         File checkCompileFolder = new File(EXTERNAL_STORAGE_CACHE);
@@ -118,8 +221,7 @@ public class SubstratumBuilder {
         hasErroredOut = false;
         debug = Substratum.getPreferences().getBoolean("theme_debug", false);
 
-        // 2. Set work area to asset chosen based on the parameter passed into this class
-        String workArea = context.getCacheDir().getAbsolutePath() + SUBSTRATUM_BUILDER_CACHE;
+        // 2. The work area has been chosen by whoever created this builder
 
         // 3. Parse the theme's name before adding it into the new manifest to prevent any issues
 
@@ -144,13 +246,7 @@ public class SubstratumBuilder {
         }
 
         // 4. Create the manifest file based on the new parsed names
-        String targetPackage = overlayPackage;
-        if (Resources.allowedSettingsOverlay(overlayPackage)) {
-            targetPackage = SETTINGS;
-        }
-        if (Resources.allowedSystemUIOverlay(overlayPackage)) {
-            targetPackage = SYSTEMUI;
-        }
+        String targetPackage = CompileSession.getTargetPackage(overlayPackage);
 
         SharedPreferences prefs = Substratum.getPreferences();
         int legacyPriority = prefs.getInt("legacy_overlay_priority", References.DEFAULT_PRIORITY);
@@ -166,7 +262,7 @@ public class SubstratumBuilder {
                         )))) {
                     legacyPriority = Integer.parseInt(reader.readLine());
                 } catch (IOException ignored) {
-                    dumpErrorLogs(overlayPackage,
+                    dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.PREPARE,
                             "There was an error parsing priority file!");
                     legacyPriority =
                             prefs.getInt("legacy_overlay_priority", References.DEFAULT_PRIORITY);
@@ -177,20 +273,55 @@ public class SubstratumBuilder {
         }
 
         String overlayVersionCode =
-                String.valueOf(getLiveOverlayVersion(context, themeParent, targetPackage));
+                String.valueOf(session.getOverlayVersion(themeParent, targetPackage));
         if (!overlayVersionCode.equals("0"))
             Substratum.log(References.SUBSTRATUM_BUILDER,
                     "The version for this overlay is " + overlayVersionCode);
 
-        if (!hasErroredOut) {
+        // Recorded in the overlay, so that theme updates only rebuild the overlays they touch
+        String inputDigest = session.getAssetExtractor(themeParent)
+                .digest(OVERLAYS_DIR + '/' + overlayPackage);
+
+        String overlayName = (variant == null) ?
+                (overlayPackage + '.' + parse2ThemeName) :
+                (overlayPackage + '.' + parse2ThemeName + parse2VariantName + parse2BaseName);
+        String signedOverlayAPKPath = EXTERNAL_STORAGE_CACHE + overlayName + "-signed.apk";
+
+        // If this exact overlay has been built before, skip straight to the installation
+        String cacheKey = OverlayCache.createKey(
+                session,
+                themeParent,
+                targetPackage,
+                overlayPackage,
+                themeName,
+                variant,
+                additionalVariant,
+                baseVariant,
+                versionName,
+                noCacheDir,
+                type1a,
+                type1b,
+                type1c,
+                type2,
+                type3,
+                type4,
+                overridePackage,
+                overlayVersionCode,
+                String.valueOf(isDeviceOMS),
+                String.valueOf(legacyPriority));
+        boolean cacheHit = !hasErroredOut &&
+                OverlayCache.restore(context, cacheKey, signedOverlayAPKPath);
+
+        byte[] binaryManifest = null;
+        if (!hasErroredOut && !cacheHit) {
             File root = new File(workArea + "/AndroidManifest.xml");
             try (FileWriter fw = new FileWriter(root);
                  BufferedWriter bw = new BufferedWriter(fw);
                  PrintWriter pw = new PrintWriter(bw)) {
                 boolean created = root.createNewFile();
                 String manifest = "";
-                if (!created)
-                    manifest = CompilerCommands.createOverlayManifest(
+                if (!created) {
+                    Document document = CompilerCommands.createOverlayManifest(
                             context,
                             overlayPackage,
                             parse2ThemeName,
@@ -198,6 +329,7 @@ public class SubstratumBuilder {
                             parse2BaseName,
                             versionName,
                             overlayVersionCode,
+                            inputDigest,
                             targetPackage,
                             themeParent,
                             isDeviceOMS,
@@ -212,19 +344,58 @@ public class SubstratumBuilder {
                             ((overridePackage != null) &&
                                     !overridePackage.isEmpty()) ?
                                     overridePackage : "");
+                    // Encode the manifest here, so aapt only has to take care of the resources
+                    if (document != null) binaryManifest = BinaryManifestEncoder.encode(document);
+                    manifest = (binaryManifest != null) ?
+                            CompilerCommands.createStubManifest(document) :
+                            CompilerCommands.writeManifest(document);
+                }
                 pw.write(manifest);
             } catch (Exception e) {
-                dumpErrorLogs(overlayPackage, e.getMessage());
-                dumpErrorLogs(overlayPackage,
+                dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.PREPARE,
+                        e.getMessage());
+                dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.PREPARE,
                         "There was an exception creating a new Manifest file!");
                 hasErroredOut = true;
-                dumpErrorLogs(overlayPackage,
+                dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.PREPARE,
                         "Installation of \"" + overlayPackage + "\" has failed.");
             }
         }
 
         // 5. Compile the new theme apk based on new manifest, framework-res.apk and extracted asset
-        if (!hasErroredOut) {
+        // unless the theme ships the resources of the chosen variants already compiled, in which
+        // case only the generated manifest has to be put into it
+        boolean linked = false;
+        CompileSession.PackageSnapshot target = session.getPackage(targetPackage);
+        if (!hasErroredOut && !cacheHit && (binaryManifest != null) && (target != null)) {
+            linked = PrebuiltOverlays.extract(
+                    session.getAssetExtractor(themeParent),
+                    overlayPackage,
+                    target.getVersionCode(),
+                    new File(workArea + '/' + overlayPackage + '.' + parse2ThemeName +
+                            "-unsigned.apk"),
+                    type1a,
+                    type1b,
+                    type1c,
+                    type2,
+                    type3,
+                    type4);
+        }
+        if (!linked && !hasErroredOut && !cacheHit && CompiledResourceCache.isAvailable(context)) {
+            linked = runAAPT2ShellCommands(
+                    session,
+                    workArea,
+                    targetPackage,
+                    parse2ThemeName,
+                    overlayPackage,
+                    themeParent,
+                    additionalVariant,
+                    type4,
+                    noCacheDir);
+            if (!linked) Log.e(References.SUBSTRATUM_BUILDER,
+                    "aapt2 could not build this overlay, now falling back to aapt...");
+        }
+        if (!hasErroredOut && !cacheHit && !linked) {
             String commands = CompilerCommands.createAAPTShellCommands(
                     workArea,
                     targetPackage,
@@ -234,6 +405,7 @@ public class SubstratumBuilder {
                     additionalVariant,
                     type4,
                     context,
+                    session,
                     noCacheDir);
 
             if (ENABLE_DIRECT_ASSETS_LOGGING)
@@ -249,102 +421,39 @@ public class SubstratumBuilder {
                     type4,
                     false,
                     context,
+                    session,
                     noCacheDir);
         }
 
-        // 6. Zipalign the apk
-        if (!hasErroredOut) {
-            String source = workArea + '/' + overlayPackage + '.' + parse2ThemeName +
-                    "-unsigned.apk";
-            String destination = workArea + '/' + overlayPackage + '.' + parse2ThemeName +
-                    "-unsigned-aligned.apk";
-            String commands = CompilerCommands.createZipAlignShellCommands(context, source,
-                    destination);
-
-            Process nativeApp = null;
-            try {
-                nativeApp = Runtime.getRuntime().exec(commands);
-
-                // We need this Process to be waited for before moving on to the next function.
-                Substratum.log(References.SUBSTRATUM_BUILDER, "Aligning APK now...");
-                nativeApp.waitFor();
-                File alignedAPK = new File(destination);
-                if (alignedAPK.isFile()) {
-                    Substratum.log(References.SUBSTRATUM_BUILDER, "Zipalign successful!");
-                } else {
-                    dumpErrorLogs(overlayPackage,
-                            "Zipalign has failed!");
-                    hasErroredOut = true;
-                    dumpErrorLogs(overlayPackage,
-                            "Zipalign of \"" + overlayPackage + "\" has failed.");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                dumpErrorLogs(overlayPackage,
-                        "Unfortunately, there was an exception trying to zipalign a new APK");
-                hasErroredOut = true;
-                dumpErrorLogs(overlayPackage,
-                        "Installation of \"" + overlayPackage + "\" has failed.");
-            } finally {
-                if (nativeApp != null) {
-                    nativeApp.destroy();
-                }
-            }
-        }
-
-        // 7. Sign the apk
-        String overlayName = (variant == null) ?
-                (overlayPackage + '.' + parse2ThemeName) :
-                (overlayPackage + '.' + parse2ThemeName + parse2VariantName + parse2BaseName);
-        String signedOverlayAPKPath = EXTERNAL_STORAGE_CACHE + overlayName + "-signed.apk";
-        if (!hasErroredOut) {
+        // 6. Align and sign the apk in a single pass
+        if (!hasErroredOut && !cacheHit) {
             try {
                 // Delete the previous APK if it exists in the dashboard folder
                 FileOperations.delete(context, signedOverlayAPKPath);
 
-                // Sign with the built-in test key/certificate.
+                // Sign with the built-in test key/certificate. The signer copies every entry's
+                // data as is, and pads the local header of each stored entry to a 4 byte
+                // boundary, so the output is aligned without running zipalign first. The stub
+                // manifest that aapt has packaged is replaced with the encoded one on the way.
                 String source = workArea + '/' + overlayPackage + '.' + parse2ThemeName +
-                        "-unsigned-aligned.apk";
-
-                File key = new File(context.getDataDir() + "/key");
-                char[] keyPass = "overlay".toCharArray();
-
-                if (!key.exists()) {
-                    Substratum.log(SUBSTRATUM_BUILDER, "Loading keystore...");
-                    FileOperations.copyFromAsset(context, "key", key.getAbsolutePath());
-                }
+                        "-unsigned.apk";
 
-                KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keyStore.load(new FileInputStream(key), keyPass);
-                PrivateKey privateKey = (PrivateKey) keyStore.getKey("key", keyPass);
-                List<X509Certificate> certs = new ArrayList<>();
-                certs.add((X509Certificate) keyStore.getCertificateChain("key")[0]);
-
-                ApkSigner.SignerConfig signerConfig =
-                        new ApkSigner.SignerConfig.Builder("overlay", privateKey, certs).build();
-                List<ApkSigner.SignerConfig> signerConfigs = new ArrayList<>();
-                signerConfigs.add(signerConfig);
-                new ApkSigner.Builder(signerConfigs)
-                        .setV1SigningEnabled(false)
-                        .setV2SigningEnabled(true)
-                        .setInputApk(new File(source))
-                        .setOutputApk(new File(signedOverlayAPKPath))
-                        .setMinSdkVersion(Build.VERSION.SDK_INT)
-                        .build()
-                        .sign();
+                OverlaySigner.sign(context, new File(source), new File(signedOverlayAPKPath),
+                        binaryManifest);
 
                 Substratum.log(References.SUBSTRATUM_BUILDER, "APK successfully signed!");
+                OverlayCache.store(context, cacheKey, signedOverlayAPKPath);
             } catch (Throwable t) {
                 t.printStackTrace();
-                dumpErrorLogs(overlayPackage,
+                dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.SIGN,
                         "APK could not be signed. " + t.toString());
                 hasErroredOut = true;
-                dumpErrorLogs(overlayPackage,
+                dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.SIGN,
                         "Installation of \"" + overlayPackage + "\" has failed.");
             }
         }
 
-        // 8. Install the APK silently
+        // 7. Install the APK silently
         // Superuser needed as this requires elevated privileges to run these commands
         if (!hasErroredOut) {
             if (isDeviceOMS) {
@@ -363,16 +472,20 @@ public class SubstratumBuilder {
                                 (Systems.IS_OREO && !overlayUpdater);
                     }
 
-                    if (!specialSnowflake) {
+                    if (!specialSnowflake && deferInstall) {
+                        Substratum.log(References.SUBSTRATUM_BUILDER,
+                                "Returning compiled APK path for the install stage...");
+                        pendingInstall = signedOverlayAPKPath;
+                    } else if (!specialSnowflake) {
                         try {
                             ThemeManager.installOverlay(context, signedOverlayAPKPath);
                             Substratum.log(References.SUBSTRATUM_BUILDER, "Silently installing APK...");
                         } catch (Exception e) {
-                            dumpErrorLogs(overlayPackage,
+                            dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.INSTALL,
                                     "Overlay APK has failed to install! \" (Exception) " +
                                             "[Error: " + e.getMessage() + ']');
                             hasErroredOut = true;
-                            dumpErrorLogs(overlayPackage,
+                            dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.INSTALL,
                                     "Installation of \"" + overlayPackage + "\" has failed.");
                         }
                     } else {
@@ -432,26 +545,172 @@ public class SubstratumBuilder {
                 }
             }
         }
+    }
 
-        // Finally, clean this compilation code's cache
-        if (!BYPASS_SUBSTRATUM_BUILDER_DELETION) {
-            String workingDirectory =
-                    context.getCacheDir().getAbsolutePath() + SUBSTRATUM_BUILDER_CACHE;
-            File deleted = new File(workingDirectory);
-            FileOperations.delete(context, deleted.getAbsolutePath());
-            if (!deleted.exists()) Substratum.log(References.SUBSTRATUM_BUILDER,
-                    "Successfully cleared compilation cache!");
+    /**
+     * Returns the failures recorded during compilation
+     *
+     * @return Returns the failures recorded during compilation
+     */
+    public CompileDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Build the overlay with aapt2. The theme's resource directories are compiled to flat files
+     * only once per theme version, so that most builds only have to link.
+     *
+     * @param session           Snapshot of the installed packages
+     * @param workArea          Working area
+     * @param targetPkg         Target package to build against
+     * @param themeName         Parsed theme name
+     * @param overlayPackage    Overlay package
+     * @param themeParent       Theme the resources belong to
+     * @param additionalVariant Additional variant (type2)
+     * @param assetReplacement  Asset replacement (type4)
+     * @param noCacheDir        Directory the base resources were extracted to
+     * @return True, if the unsigned APK has been created
+     */
+    private boolean runAAPT2ShellCommands(CompileSession session,
+                                          String workArea,
+                                          String targetPkg,
+                                          String themeName,
+                                          String overlayPackage,
+                                          String themeParent,
+                                          String additionalVariant,
+                                          String assetReplacement,
+                                          String noCacheDir) {
+        String resources = workArea + noCacheDir;
+        String type1Resources = workArea + "/type1";
+        List<File[]> moved = new ArrayList<>();
+        boolean linked = false;
+        try {
+            // The type1 values files change from one build to another, so they must not end up in
+            // the cached base layer
+            File[] valuesDirs = new File(resources).listFiles(
+                    (dir, name) -> name.startsWith("values"));
+            if (valuesDirs != null) {
+                for (File valuesDir : valuesDirs) {
+                    File[] type1Files = valuesDir.listFiles(
+                            (dir, name) -> name.matches("type1[abc]\\.xml"));
+                    if (type1Files == null) continue;
+                    for (File type1File : type1Files) {
+                        File destination = new File(
+                                type1Resources + '/' + valuesDir.getName(), type1File.getName());
+                        if (!destination.getParentFile().exists() &&
+                                !destination.getParentFile().mkdirs()) {
+                            return false;
+                        }
+                        if (!type1File.renameTo(destination)) return false;
+                        moved.add(new File[]{type1File, destination});
+                    }
+                }
+            }
+
+            File baseLayer = CompiledResourceCache.getLayer(
+                    context, session, themeParent, overlayPackage + noCacheDir);
+            if (!compileLayer(resources, baseLayer)) return false;
+
+            List<String> overlayLayers = new ArrayList<>();
+            if (!moved.isEmpty()) {
+                File type1Layer = new File(workArea + "/type1.zip");
+                if (!compileLayer(type1Resources, type1Layer)) return false;
+                overlayLayers.add(type1Layer.getAbsolutePath());
+            }
+            if ((additionalVariant != null) && !additionalVariant.isEmpty()) {
+                File type2Layer = CompiledResourceCache.getLayer(
+                        context, session, themeParent, overlayPackage + "/type2_" + additionalVariant);
+                if (!compileLayer(workArea + "/type2_" + additionalVariant, type2Layer)) {
+                    return false;
+                }
+                overlayLayers.add(type2Layer.getAbsolutePath());
+            }
+
+            String commands = CompilerCommands.createAAPT2LinkCommands(
+                    workArea,
+                    targetPkg,
+                    overlayPackage,
+                    themeName,
+                    baseLayer.getAbsolutePath(),
+                    overlayLayers,
+                    assetReplacement,
+                    context,
+                    session);
+            if (ENABLE_DIRECT_ASSETS_LOGGING)
+                Substratum.log(DA_LOG, "Running commands: " + commands);
+            Substratum.log(References.SUBSTRATUM_BUILDER, "Linking overlay APK now...");
+            linked = runAAPT2Command(commands) &&
+                    new File(workArea + '/' + overlayPackage + '.' + themeName +
+                            "-unsigned.apk").isFile();
+            if (linked)
+                Substratum.log(References.SUBSTRATUM_BUILDER, "Overlay APK creation has completed!");
+            return linked;
+        } finally {
+            if (!linked) {
+                // Put everything back where aapt expects it
+                for (File[] move : moved) {
+                    if (!move[1].renameTo(move[0]))
+                        Log.e(References.SUBSTRATUM_BUILDER,
+                                "Could not restore " + move[0].getAbsolutePath());
+                }
+            }
         }
-        return !hasErroredOut;
     }
 
     /**
-     * Returns a string of error logs during compilation
+     * Compile a resource directory with aapt2, unless it has been compiled before
+     *
+     * @param resourceDir Resource directory
+     * @param layer       Archive the flat files should be written to
+     * @return True, if the layer is ready to be linked
+     */
+    private boolean compileLayer(String resourceDir, File layer) {
+        if (layer.isFile()) {
+            Substratum.log(References.SUBSTRATUM_BUILDER,
+                    "Reusing compiled resources " + layer.getName());
+            return true;
+        }
+        // Another worker may be compiling the same layer, so only publish complete archives
+        File temporary = new File(layer.getAbsolutePath() + '.' + Thread.currentThread().getId());
+        String commands = CompilerCommands.createAAPT2CompileCommands(
+                context, resourceDir, temporary.getAbsolutePath());
+        if (ENABLE_DIRECT_ASSETS_LOGGING)
+            Substratum.log(DA_LOG, "Running commands: " + commands);
+        if (runAAPT2Command(commands) && temporary.isFile() &&
+                (temporary.renameTo(layer) || layer.isFile())) {
+            return true;
+        }
+        if (temporary.exists() && !temporary.delete())
+            Log.e(References.SUBSTRATUM_BUILDER, "Could not delete " + temporary.getName());
+        return false;
+    }
+
+    /**
+     * Run a single aapt2 command to completion
      *
-     * @return Returns a string of error logs during compilation
+     * @param commands Commands to be run
+     * @return True, if aapt2 exited cleanly
      */
-    public String getErrorLogs() {
-        return errorLogs;
+    private boolean runAAPT2Command(String commands) {
+        Process nativeApp = null;
+        try {
+            nativeApp = Runtime.getRuntime().exec(commands);
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(nativeApp.getErrorStream()))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    Log.e(References.SUBSTRATUM_BUILDER, line);
+                }
+            }
+            return nativeApp.waitFor() == 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (nativeApp != null) {
+                nativeApp.destroy();
+            }
+        }
+        return false;
     }
 
     private boolean runAAPTShellCommands(String commands,
@@ -463,6 +722,7 @@ public class SubstratumBuilder {
                                          String assetReplacement,
                                          boolean legacySwitch,
                                          Context context,
+                                         CompileSession session,
                                          String noCacheDir) {
         Process nativeApp = null;
         try {
@@ -474,6 +734,7 @@ public class SubstratumBuilder {
                 stdin.write("exit\n".getBytes());
 
                 boolean errored = false;
+                StringBuilder errors = new StringBuilder();
                 try (BufferedReader br = new BufferedReader(new InputStreamReader(stderr))) {
                     String line;
                     while ((line = br.readLine()) != null) {
@@ -483,21 +744,27 @@ public class SubstratumBuilder {
                                             "style, now falling back to legacy compiler...");
                             String newCommands = CompilerCommands.createAAPTShellCommands(workArea, targetPkg,
                                     overlayPackage, themeName, true, additionalVariant,
-                                    assetReplacement, context, noCacheDir);
+                                    assetReplacement, context, session, noCacheDir);
                             return runAAPTShellCommands(
                                     newCommands, workArea, targetPkg, themeName,
                                     overlayPackage, additionalVariant, assetReplacement,
-                                    true, context, noCacheDir);
+                                    true, context, session, noCacheDir);
                         } else {
-                            dumpErrorLogs(overlayPackage,
-                                    line);
+                            Log.e(References.SUBSTRATUM_BUILDER, line);
+                            if (errors.length() < MAX_CAPTURED_ERRORS) {
+                                if (errors.length() > 0) errors.append('\n');
+                                errors.append(line);
+                            }
                             errored = true;
                         }
                     }
                 }
                 if (errored) {
+                    // Keep the whole stderr of aapt together with its exit code
+                    dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.COMPILE,
+                            nativeApp.waitFor(), errors.toString());
                     hasErroredOut = true;
-                    dumpErrorLogs(overlayPackage,
+                    dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.COMPILE,
                             "Installation of \"" + overlayPackage + "\" has failed.");
                 } else {
                     // We need this Process to be waited for before moving on to the next function.
@@ -509,10 +776,10 @@ public class SubstratumBuilder {
                         Substratum.log(References.SUBSTRATUM_BUILDER, "Overlay APK creation has completed!");
                         return true;
                     } else {
-                        dumpErrorLogs(overlayPackage,
+                        dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.COMPILE,
                                 "Overlay APK creation has failed!");
                         hasErroredOut = true;
-                        dumpErrorLogs(overlayPackage,
+                        dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.COMPILE,
                                 "Installation of \"" + overlayPackage + "\" has failed.");
                     }
                 }
@@ -528,10 +795,10 @@ public class SubstratumBuilder {
             }
         } catch (Exception e) {
             e.printStackTrace();
-            dumpErrorLogs(overlayPackage,
+            dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.COMPILE,
                     "Unfortunately, there was an exception trying to create a new APK");
             hasErroredOut = true;
-            dumpErrorLogs(overlayPackage,
+            dumpErrorLogs(overlayPackage, CompileDiagnostics.Stage.COMPILE,
                     "Installation of \"" + overlayPackage + "\" has failed.");
         } finally {
             if (nativeApp != null) {
@@ -545,16 +812,28 @@ public class SubstratumBuilder {
      * Save a series of error logs to be callable
      *
      * @param overlay Overlay that has failed to compile
+     * @param stage   Stage of the build that has failed
      * @param message Failure message
      */
-    private void dumpErrorLogs(String overlay, String message) {
-        if (!message.isEmpty()) {
+    private void dumpErrorLogs(String overlay, CompileDiagnostics.Stage stage, String message) {
+        if ((message != null) && !message.isEmpty()) {
             Log.e(References.SUBSTRATUM_BUILDER, message);
-            if (errorLogs.isEmpty()) {
-                errorLogs = "» [" + overlay + "]: " + message;
-            } else {
-                errorLogs += '\n' + "» [" + overlay + "]: " + message;
-            }
+            dumpErrorLogs(overlay, stage, CompileDiagnostics.NO_EXIT_CODE, message);
         }
     }
+
+    /**
+     * Save the output of a tool that has failed
+     *
+     * @param overlay  Overlay that has failed to compile
+     * @param stage    Stage of the build that has failed
+     * @param exitCode Exit code of the tool
+     * @param message  Captured output of the tool
+     */
+    private void dumpErrorLogs(String overlay,
+                               CompileDiagnostics.Stage stage,
+                               int exitCode,
+                               String message) {
+        diagnostics.add(overlay, stage, exitCode, message);
+    }
 }
\ No newline at end of file
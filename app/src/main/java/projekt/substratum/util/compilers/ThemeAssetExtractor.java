@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.commands.FileOperations;
+
+import static projekt.substratum.common.Internal.ENCRYPTED_FILE_EXTENSION;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+import static projekt.substratum.common.References.THEME_LAYER_CACHE;
+
+/**
+ * Extracts overlay resources straight out of a theme's APK.
+ * <p>
+ * Walking a theme's overlay folders through {@link AssetManager#list(String)} costs a native call
+ * for every file and folder, and every file is opened on its own afterwards. This reads the
+ * central directory of the APK once, indexes the assets by path, and streams all the entries
+ * below a folder into the work area in one go. Entries that are stored rather than deflated are
+ * copied without going through an inflater, and encrypted entries are only decrypted once per
+ * theme version through the {@link DecryptedAssetCache}. Encrypted entries of a folder are
+ * decrypted in parallel by the {@link ThemeDecryptor}.
+ * <p>
+ * Folders that every overlay of a batch starts from can also be extracted once into a layer, and
+ * then be hard linked into each work area. Anything that is extracted on top of a linked file
+ * replaces the link, so the layer itself is never written through a work area.
+ * <p>
+ * An extractor is safe to be used by multiple compile jobs at the same time.
+ */
+public class ThemeAssetExtractor implements Closeable {
+
+    private static final String ASSETS = "assets/";
+    private static final int BUFFER_SIZE = 65536;
+    private static final AtomicInteger LAYER_COUNTER = new AtomicInteger();
+    private final ZipFile apk;
+    private final File decryptedAssets;
+    private final File layers;
+    private final NavigableMap<String, ZipEntry> entries = new TreeMap<>();
+    private final Map<String, CompletableFuture<File>> extractedLayers =
+            new ConcurrentHashMap<>();
+
+    private ThemeAssetExtractor(ZipFile apk, File decryptedAssets, File layers) {
+        super();
+        this.apk = apk;
+        this.decryptedAssets = decryptedAssets;
+        this.layers = layers;
+        if (apk != null) {
+            Enumeration<? extends ZipEntry> zipEntries = apk.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                if (!entry.isDirectory() && entry.getName().startsWith(ASSETS)) {
+                    entries.put(entry.getName().substring(ASSETS.length()), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Index the assets of a theme
+     *
+     * @param context Context
+     * @param theme   Snapshot of the theme package, or null if it is not installed
+     * @return Extractor, which falls back to the asset manager if the APK could not be read
+     */
+    public static ThemeAssetExtractor open(Context context,
+                                           CompileSession.PackageSnapshot theme) {
+        if ((theme == null) || (theme.getSourceDir() == null)) {
+            return new ThemeAssetExtractor(null, null, null);
+        }
+        long start = SystemClock.elapsedRealtime();
+        ZipFile apk = null;
+        try {
+            apk = new ZipFile(theme.getSourceDir());
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(SUBSTRATUM_BUILDER, "Could not open the theme's APK, using its assets...");
+        }
+        File layers = new File(context.getCacheDir().getAbsolutePath() + THEME_LAYER_CACHE +
+                theme.getPackageName() + '_' + LAYER_COUNTER.incrementAndGet());
+        FileUtils.deleteQuietly(layers);
+        ThemeAssetExtractor extractor = new ThemeAssetExtractor(apk,
+                DecryptedAssetCache.getDirectory(context, theme), layers);
+        Substratum.log(SUBSTRATUM_BUILDER,
+                "Indexed " + extractor.entries.size() + " theme assets in " +
+                        (SystemClock.elapsedRealtime() - start) + "ms");
+        return extractor;
+    }
+
+    /**
+     * Same as {@link FileOperations#copyFileOrDir}, reading the entries from the APK's index
+     *
+     * @param assetManager Asset manager of the theme, used when the APK does not have the assets
+     * @param listDir      Asset file or folder to be copied
+     * @param destination  Destination
+     * @param remember     Part of the asset path that is not to be recreated in the destination
+     * @param decryptor    Decryptor of an encrypted theme, null otherwise
+     */
+    public void copyFileOrDir(AssetManager assetManager,
+                              String listDir,
+                              String destination,
+                              String remember,
+                              ThemeDecryptor decryptor) {
+        ZipEntry file = entries.get(listDir);
+        // Every path below the folder, as '0' is the character that directly follows '/'
+        NavigableMap<String, ZipEntry> folder =
+                entries.subMap(listDir + '/', true, listDir + '0', false);
+        if ((file == null) && folder.isEmpty()) {
+            FileOperations.copyFileOrDir(assetManager, listDir, destination, remember,
+                    (decryptor != null) ? decryptor.getCipher() : null);
+            return;
+        }
+        if (!isSupportedVersion(listDir.substring(listDir.lastIndexOf('/') + 1))) return;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (file != null) {
+            extract(listDir, file, destination, remember, decryptor, buffer);
+            return;
+        }
+        File directory = new File(
+                (destination + '/' + listDir.substring(remember.length())).replaceAll("\\s+", ""));
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(SUBSTRATUM_BUILDER, "Could not create " + directory.getAbsolutePath());
+        }
+        List<Future<?>> decryptions = new ArrayList<>();
+        for (Map.Entry<String, ZipEntry> entry : folder.entrySet()) {
+            String filename = entry.getKey();
+            if (!isSupportedVersion(filename.substring(listDir.length()))) continue;
+            if ((decryptor != null) && filename.endsWith(ENCRYPTED_FILE_EXTENSION)) {
+                decryptions.add(decryptor.submit(() -> extract(filename, entry.getValue(),
+                        destination, remember, decryptor, null)));
+            } else {
+                extract(filename, entry.getValue(), destination, remember, decryptor, buffer);
+            }
+        }
+        if (decryptions.isEmpty()) return;
+        for (Future<?> decryption : decryptions) {
+            try {
+                decryption.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        decryptor.logThroughput();
+    }
+
+    /**
+     * Open a single asset straight from the APK
+     *
+     * @param path Asset path
+     * @return Stream of the asset, or null if the APK does not have it
+     * @throws IOException If the asset could not be read
+     */
+    public InputStream openEntry(String path) throws IOException {
+        ZipEntry entry = entries.get(path);
+        return (entry != null) ? apk.getInputStream(entry) : null;
+    }
+
+    /**
+     * Create a digest of every asset below a folder, from the checksums stored in the APK's index
+     *
+     * @param listDir Asset folder, for example the overlay folder of a target
+     * @return Hex encoded digest, or null if the APK could not be indexed
+     */
+    public String digest(String listDir) {
+        if (apk == null) return null;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(SUBSTRATUM_BUILDER, "Exception while getting digest", e);
+            return null;
+        }
+        // The index is sorted, so the digest does not depend on the order of the APK's entries
+        for (ZipEntry entry : entries.subMap(listDir + '/', listDir + '0').values()) {
+            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update((entry.getCrc() + ":" + entry.getSize())
+                    .getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return String.format("%64s", new BigInteger(1, digest.digest()).toString(16))
+                .replace(' ', '0');
+    }
+
+    /**
+     * Same as {@link #copyFileOrDir}, but the folder is only extracted once for the whole batch
+     * and then hard linked into the destination
+     *
+     * @param assetManager Asset manager of the theme, used when the APK does not have the assets
+     * @param listDir      Asset folder to be linked
+     * @param destination  Destination, files already in there are replaced by the layer's files
+     * @param decryptor    Decryptor of an encrypted theme, null otherwise
+     */
+    public void linkDir(AssetManager assetManager,
+                        String listDir,
+                        String destination,
+                        ThemeDecryptor decryptor) {
+        File layer = (layers != null) && !entries.subMap(listDir + '/', true,
+                listDir + '0', false).isEmpty() ? getLayer(listDir, decryptor) : null;
+        if (layer == null) {
+            copyFileOrDir(assetManager, listDir, destination, listDir, decryptor);
+            return;
+        }
+        String layerPath = layer.getAbsolutePath();
+        File target = new File(destination);
+        int linked = 0;
+        int copied = 0;
+        for (File file : FileUtils.listFiles(layer, null, true)) {
+            File output = new File(target, file.getAbsolutePath().substring(layerPath.length()));
+            File parent = output.getParentFile();
+            if ((parent != null) && !parent.exists() && !parent.mkdirs()) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not create " + parent.getAbsolutePath());
+            }
+            if (output.exists() && !output.delete()) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not replace " + output.getAbsolutePath());
+                continue;
+            }
+            try {
+                Os.link(file.getAbsolutePath(), output.getAbsolutePath());
+                linked++;
+            } catch (ErrnoException e) {
+                // Some file systems do not support hard links, the file has to be copied then
+                try {
+                    FileUtils.copyFile(file, output, false);
+                    copied++;
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+        Substratum.log(SUBSTRATUM_BUILDER,
+                "Linked " + linked + " and copied " + copied + " files of " + listDir);
+    }
+
+    @Override
+    public void close() {
+        if (apk != null) {
+            try {
+                apk.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (layers != null) FileUtils.deleteQuietly(layers);
+    }
+
+    /**
+     * Get the layer of a folder, extracting it if no other job has done so yet
+     *
+     * @param listDir   Asset folder
+     * @param decryptor Decryptor of an encrypted theme, null otherwise
+     * @return Directory holding the extracted folder, or null if it could not be extracted
+     */
+    private File getLayer(String listDir, ThemeDecryptor decryptor) {
+        CompletableFuture<File> layer = new CompletableFuture<>();
+        CompletableFuture<File> existing = extractedLayers.putIfAbsent(listDir, layer);
+        if (existing == null) {
+            File directory = new File(layers, String.valueOf(LAYER_COUNTER.incrementAndGet()));
+            try {
+                copyFileOrDir(null, listDir, directory.getAbsolutePath(), listDir, decryptor);
+            } finally {
+                // Waiting jobs copy the folder themselves if it could not be extracted
+                layer.complete(directory.isDirectory() ? directory : null);
+            }
+            existing = layer;
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Check every "-vXX" folder of a path against the running system, the same way that
+     * {@link FileOperations#copyFileOrDir} does
+     *
+     * @param path Asset path
+     * @return True, if the path may be copied on this system
+     */
+    private static boolean isSupportedVersion(String path) {
+        for (String segment : path.split("/")) {
+            if (segment.length() < 4) continue;
+            String ending = segment.substring(segment.length() - 4);
+            if (ending.startsWith("-v") &&
+                    Character.isDigit(ending.charAt(2)) && Character.isDigit(ending.charAt(3))) {
+                if (Build.VERSION.SDK_INT < Integer.parseInt(ending.substring(2))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void extract(String filename,
+                         ZipEntry entry,
+                         String destination,
+                         String remember,
+                         ThemeDecryptor decryptor,
+                         byte[] buffer) {
+        boolean encrypted = filename.endsWith(ENCRYPTED_FILE_EXTENSION);
+        if (encrypted && (decryptor == null)) return;
+        try {
+            String destinationFile = destination + filename.replaceAll("\\s+", "")
+                    .substring(remember.replaceAll("\\s+", "").length());
+            File output = new File((decryptor != null) ?
+                    destinationFile.substring(0, destinationFile.length() - 4) :
+                    destinationFile);
+            File parent = output.getParentFile();
+            if ((parent != null) && !parent.exists() && !parent.mkdirs()) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not create " + parent.getAbsolutePath());
+            }
+            // The file may be linked to a layer, which has to stay as it is
+            if (output.exists() && !output.delete()) {
+                Log.e(SUBSTRATUM_BUILDER, "Could not replace " + output.getAbsolutePath());
+            }
+            // Encrypted assets that have been decrypted by an earlier build are copied as they are
+            File decrypted = null;
+            if (encrypted && (decryptedAssets != null)) {
+                decrypted = DecryptedAssetCache.getEntry(decryptedAssets, filename);
+                if (DecryptedAssetCache.restore(decrypted, output)) return;
+            }
+            if (encrypted) {
+                decryptor.decrypt(apk.getInputStream(entry), output);
+                if (decrypted != null) DecryptedAssetCache.store(output, decrypted);
+                return;
+            }
+            // Stored entries are handed out by the zip file as they are, without an inflater
+            try (InputStream input = apk.getInputStream(entry);
+                 OutputStream outputStream = new FileOutputStream(output)) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e(SUBSTRATUM_BUILDER, "Could not extract " + filename + ": " + e.getMessage());
+        }
+    }
+}
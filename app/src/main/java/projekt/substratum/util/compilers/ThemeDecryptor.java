@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2016-2019 Projekt Substratum
+ * This file is part of Substratum.
+ *
+ * SPDX-License-Identifier: GPL-3.0-Or-Later
+ */
+
+package projekt.substratum.util.compilers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import projekt.substratum.Substratum;
+import projekt.substratum.common.Theming;
+
+import static projekt.substratum.common.Internal.CIPHER_ALGORITHM;
+import static projekt.substratum.common.Internal.ENCRYPTION_KEY_EXTRA;
+import static projekt.substratum.common.Internal.IV_ENCRYPTION_KEY_EXTRA;
+import static projekt.substratum.common.Internal.SECRET_KEY_SPEC;
+import static projekt.substratum.common.References.KEY_RETRIEVAL;
+import static projekt.substratum.common.References.SUBSTRATUM_BUILDER;
+
+/**
+ * Decrypts the encrypted assets of a theme.
+ * <p>
+ * A {@link Cipher} keeps the state of the stream it is working on, so a single one can not be
+ * shared by compile jobs running at the same time. The decryptor holds on to the key and IV handed
+ * out by the theme, and gives every thread its own cipher and its own pair of direct buffers, so
+ * independent assets can be decrypted in parallel on a shared pool of workers.
+ */
+public class ThemeDecryptor {
+
+    private static final int BUFFER_SIZE = 262144;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static ExecutorService workers;
+    private final SecretKeySpec key;
+    private final IvParameterSpec iv;
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial(() ->
+            new ByteBuffer[]{
+                    ByteBuffer.allocateDirect(BUFFER_SIZE),
+                    // Room for the block that is held back by the cipher
+                    ByteBuffer.allocateDirect(BUFFER_SIZE + 32)
+            });
+    private final AtomicLong decryptedBytes = new AtomicLong();
+    private final AtomicLong decryptionTime = new AtomicLong();
+
+    private ThemeDecryptor(byte[] key, byte[] iv) {
+        super();
+        this.key = new SecretKeySpec(key, SECRET_KEY_SPEC);
+        this.iv = new IvParameterSpec(iv);
+    }
+
+    /**
+     * Create a decryptor from the keys returned by the theme
+     *
+     * @param key Encryption key
+     * @param iv  IV encryption key
+     * @return Decryptor, or null if the theme has not handed out valid keys
+     */
+    public static ThemeDecryptor create(byte[] key, byte[] iv) {
+        if ((key == null) || (iv == null)) return null;
+        ThemeDecryptor decryptor = new ThemeDecryptor(key, iv);
+        return (decryptor.getCipher() != null) ? decryptor : null;
+    }
+
+    /**
+     * Ask a theme for its keys, blocking until the theme has answered
+     *
+     * @param context      Context
+     * @param themePackage Theme package
+     * @param timeout      Time in milliseconds to wait for the theme
+     * @return Decryptor, or null if the theme has not handed out valid keys in time
+     */
+    public static ThemeDecryptor requestKeys(Context context, String themePackage, long timeout) {
+        CompletableFuture<Intent> keys = new CompletableFuture<>();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                keys.complete(intent);
+            }
+        };
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        localBroadcastManager.registerReceiver(receiver, new IntentFilter(KEY_RETRIEVAL));
+        try {
+            Theming.getThemeKeys(context, themePackage);
+            Intent intent = keys.get(timeout, TimeUnit.MILLISECONDS);
+            return create(intent.getByteArrayExtra(ENCRYPTION_KEY_EXTRA),
+                    intent.getByteArrayExtra(IV_ENCRYPTION_KEY_EXTRA));
+        } catch (TimeoutException e) {
+            Log.e(SUBSTRATUM_BUILDER, "Could not receive handshake in time...");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            localBroadcastManager.unregisterReceiver(receiver);
+        }
+        return null;
+    }
+
+    /**
+     * Workers are shared by every decryptor, as only one theme is compiled at a time
+     *
+     * @return Pool of decryption workers
+     */
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable,
+                                "ThemeDecryptor-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return workers;
+    }
+
+    /**
+     * Get the cipher of the calling thread, ready to decrypt a new asset
+     *
+     * @return Cipher, or null if it could not be initialized
+     */
+    public Cipher getCipher() {
+        try {
+            Cipher cipher = ciphers.get();
+            if (cipher == null) {
+                cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                ciphers.set(cipher);
+            }
+            // Start over, in case the previous asset has not been read to its end
+            cipher.init(Cipher.DECRYPT_MODE, key, iv);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Run a decryption on the shared workers
+     *
+     * @param task Task decrypting one or more assets
+     * @return Future of the task
+     */
+    Future<?> submit(Runnable task) {
+        return getWorkers().submit(task);
+    }
+
+    /**
+     * Decrypt an asset into a file
+     *
+     * @param input  Encrypted asset, closed once it has been read
+     * @param output Destination of the decrypted asset
+     * @throws IOException              If the asset could not be read or written
+     * @throws GeneralSecurityException If the asset could not be decrypted
+     */
+    void decrypt(InputStream input, File output) throws IOException, GeneralSecurityException {
+        Cipher cipher = getCipher();
+        if (cipher == null) throw new GeneralSecurityException("No cipher for " + output);
+        ByteBuffer[] buffer = buffers.get();
+        ByteBuffer encrypted = buffer[0];
+        ByteBuffer decrypted = buffer[1];
+        long start = SystemClock.elapsedRealtime();
+        long size = 0L;
+        try (ReadableByteChannel source = Channels.newChannel(input);
+             FileChannel destination = new FileOutputStream(output).getChannel()) {
+            encrypted.clear();
+            while (source.read(encrypted) != -1) {
+                encrypted.flip();
+                decrypted.clear();
+                cipher.update(encrypted, decrypted);
+                decrypted.flip();
+                size += write(destination, decrypted);
+                encrypted.clear();
+            }
+            encrypted.flip();
+            decrypted.clear();
+            cipher.doFinal(encrypted, decrypted);
+            decrypted.flip();
+            size += write(destination, decrypted);
+        }
+        decryptedBytes.addAndGet(size);
+        decryptionTime.addAndGet(SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Log how many bytes have been decrypted so far, and how fast
+     */
+    void logThroughput() {
+        long bytes = decryptedBytes.get();
+        long time = decryptionTime.get();
+        Substratum.log(SUBSTRATUM_BUILDER, "Decrypted " + (bytes / 1024L) + "KB in " + time +
+                "ms of worker time (" + ((time > 0L) ? (bytes / time) : bytes) + " bytes/ms)");
+    }
+
+    private static int write(FileChannel destination, ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            destination.write(buffer);
+        }
+        return size;
+    }
+}
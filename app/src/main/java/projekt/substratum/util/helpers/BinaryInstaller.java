@@ -12,6 +12,7 @@ import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
 import projekt.substratum.Substratum;
@@ -21,14 +22,15 @@ import projekt.substratum.common.commands.FileOperations;
 public class BinaryInstaller {
 
     /**
-     * Install the AAPT/AAPT and ZipAlign binaries to the working files of Substratum
+     * Install the AAPT/AAPT binaries to the working files of Substratum
      *
      * @param context Self explanatory, bud.
      * @param forced  Ignore the dynamic check and just install no matter what
      */
     public static void install(Context context, boolean forced) {
         injectAAPT(context, forced);
-        injectZipAlign(context, forced);
+        injectAAPT2(context, forced);
+        removeZipAlign(context);
     }
 
     /**
@@ -91,42 +93,52 @@ public class BinaryInstaller {
     }
 
     /**
-     * Inject ZipAlign binaries into the device
+     * Inject AAPT2 binaries into the device, when they have been bundled with this build
      *
      * @param context Self explanatory, bud.
      * @param forced  Ignore the dynamic check and just install no matter what
      */
-    private static void injectZipAlign(Context context, boolean forced) {
-        String zipalignPath = context.getFilesDir().getAbsolutePath() + "/zipalign";
-        File f = new File(zipalignPath);
+    private static void injectAAPT2(Context context, boolean forced) {
+        String aapt2Path = context.getFilesDir().getAbsolutePath() + "/aapt2";
+        File f = new File(aapt2Path);
 
-        // Check if ZipAlign is already installed
+        // Check if AAPT2 is already installed
         if (f.exists() && !forced)
             return;
 
+        String asset;
         if (!Arrays.toString(Build.SUPPORTED_ABIS).contains("86")) {
-            String architecture =
-                    !Arrays.asList(Build.SUPPORTED_64_BIT_ABIS).isEmpty() ? "ARM64" : "ARM";
-            FileOperations.copyFromAsset(context, "zipalign" + ("ARM64".equals(architecture) ?
-                    "64" :
-                    ""), zipalignPath);
-            Substratum.log(References.SUBSTRATUM_LOG,
-                    "ZipAlign (" + architecture + ") " +
-                            "has been added into the compiler directory.");
+            asset = "aapt2" +
+                    (!Arrays.asList(Build.SUPPORTED_64_BIT_ABIS).isEmpty() ? "64" : "");
         } else {
-            // Take account for x86 devices
-            try {
-                FileOperations.copyFromAsset(context, "zipalign86", zipalignPath);
-                Substratum.log(References.SUBSTRATUM_LOG,
-                        "ZipAlign (x86) " +
-                                "has been added into the compiler directory.");
-            } catch (Exception ignored) {
-            }
+            asset = "aapt2x86";
+        }
+        try {
+            if (!Arrays.asList(context.getAssets().list("")).contains(asset))
+                return;
+        } catch (IOException ignored) {
+            return;
         }
+        FileOperations.copyFromAsset(context, asset, aapt2Path);
+        Substratum.log(References.SUBSTRATUM_LOG,
+                "Android Asset Packaging Tool 2 (" + asset + ") " +
+                        "has been added into the compiler directory.");
 
         if (f.isFile()) {
             if (!f.setExecutable(true, true))
                 Log.e("BinaryInstaller", "Could not set executable...");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Overlays are aligned while they are being signed, so clean up the ZipAlign binary that
+     * older versions used to inject into the device
+     *
+     * @param context Self explanatory, bud.
+     */
+    private static void removeZipAlign(Context context) {
+        File f = new File(context.getFilesDir().getAbsolutePath() + "/zipalign");
+        if (f.exists() && !f.delete())
+            Log.e("BinaryInstaller", "Could not remove ZipAlign...");
+    }
+}